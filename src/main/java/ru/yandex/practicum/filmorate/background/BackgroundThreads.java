@@ -0,0 +1,54 @@
+package ru.yandex.practicum.filmorate.background;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Фоновые потоки приложения: демоны, которые при остановке не прерываются.
+// H2 работает с файлом БД через прерываемые каналы NIO, и прерывание потока посреди чтения или записи
+// закрывает файл для всего приложения. Поэтому остановка только просит пул завершиться
+// и ждёт текущую работу не дольше STOP_TIMEOUT_MS, а циклы в потоках выходят по своему флагу.
+@Slf4j
+public final class BackgroundThreads {
+    public static final long STOP_TIMEOUT_MS = 5000;
+
+    private BackgroundThreads() {
+    }
+
+    public static ExecutorService newSingleThread(String name) {
+        return Executors.newSingleThreadExecutor(daemonThreads(name));
+    }
+
+    public static ExecutorService newPool(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(daemonThreads(name));
+    }
+
+    // Запланированные, но не начатые задачи отменяются, начатая дорабатывает
+    public static void stop(ExecutorService executor, String name) throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            log.warn("Потоки {} не завершились за {} мс", name, STOP_TIMEOUT_MS);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger number = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
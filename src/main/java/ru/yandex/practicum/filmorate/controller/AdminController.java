@@ -0,0 +1,41 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import ru.yandex.practicum.filmorate.model.EventLogStats;
+import ru.yandex.practicum.filmorate.service.EventService;
+import ru.yandex.practicum.filmorate.service.ReferenceDataService;
+
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+    private final ReferenceDataService referenceDataService;
+    private final EventService eventService;
+
+    @Autowired
+    public AdminController(ReferenceDataService referenceDataService, EventService eventService) {
+        this.referenceDataService = referenceDataService;
+        this.eventService = eventService;
+    }
+
+    // Перечитать справочники MPA и жанров после ручного изменения таблиц
+    @PostMapping("/reference-data/reload")
+    public void reloadReferenceData() {
+        referenceDataService.reload();
+    }
+
+    // Размер таблицы EVENTS и архива событий
+    @GetMapping("/events/stats")
+    public EventLogStats getEventLogStats() {
+        return eventService.getLogStats();
+    }
+
+    // Перенести старые окна событий в архив, не дожидаясь планировщика
+    @PostMapping("/events/archive")
+    public EventLogStats archiveEvents() {
+        return eventService.archiveEvents();
+    }
+}
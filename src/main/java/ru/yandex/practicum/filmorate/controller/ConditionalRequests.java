@@ -0,0 +1,36 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.WebRequest;
+
+// Проверка If-None-Match до обращения к сервису: при совпадении ETag ответ 304 без тела.
+// Попадания и промахи считаются в метрике filmorate.etag.requests с тегами endpoint и result.
+@Component
+public class ConditionalRequests {
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public ConditionalRequests(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public boolean isNotModified(WebRequest request, String endpoint, String etag) {
+        boolean notModified = request.checkNotModified(etag);
+        meterRegistry.counter("filmorate.etag.requests",
+                "endpoint", endpoint, "result", notModified ? "hit" : "miss").increment();
+        return notModified;
+    }
+
+    // Для сущности по id: тег несуществующей сущности совпадает с тегом версии 0, поэтому при совпадении
+    // сначала выполняется checkExists, которая бросает NotFoundException. Без совпадения проверки нет
+    public boolean isNotModified(WebRequest request, String endpoint, String etag, Runnable checkExists) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            checkExists.run();
+        }
+        return isNotModified(request, endpoint, etag);
+    }
+}
@@ -1,9 +1,15 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Suggestion;
 import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
@@ -14,16 +20,35 @@ import java.util.Set;
 @RestController
 @RequestMapping("/films")
 public class FilmController {
+    private static final int DEFAULT_PAGE_SIZE = 100;
     private final FilmService filmService;
+    private final ObjectMapper objectMapper;
+    private final EntityVersions entityVersions;
+    private final ConditionalRequests conditionalRequests;
 
     @Autowired
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService,
+                          ObjectMapper objectMapper,
+                          EntityVersions entityVersions,
+                          ConditionalRequests conditionalRequests) {
         this.filmService = filmService;
+        this.objectMapper = objectMapper;
+        this.entityVersions = entityVersions;
+        this.conditionalRequests = conditionalRequests;
     }
 
     @GetMapping
-    public List<Film> getFilms() {
-        return filmService.getFilms();
+    public List<Film> getFilms(@RequestParam(required = false) Long afterId,
+                               @RequestParam(required = false) Integer limit) {
+        if (afterId == null && limit == null) {
+            return filmService.getFilms();
+        }
+        return filmService.getFilms(afterId == null ? 0 : afterId, limit == null ? DEFAULT_PAGE_SIZE : limit);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StreamingResponseBody streamFilms() {
+        return JsonArrayStream.of(objectMapper, filmService::streamFilms);
     }
 
     @PostMapping
@@ -57,7 +82,11 @@ public class FilmController {
     @GetMapping("/popular")
     public List<Film> getPopularFilms(@RequestParam(value = "count", defaultValue = "10") Integer count,
                                       @RequestParam(defaultValue = "0") Integer genreId,
-                                      @RequestParam(defaultValue = "0") Integer year) {
+                                      @RequestParam(defaultValue = "0") Integer year,
+                                      WebRequest request) {
+        if (conditionalRequests.isNotModified(request, "popular", entityVersions.popularTag())) {
+            return null;
+        }
         return filmService.getPopularFilms(count, genreId, year);
     }
 
@@ -68,14 +97,20 @@ public class FilmController {
     }
 
     @GetMapping("/{id}")
-    public Film getFilm(@PathVariable long id) {
+    public Film getFilm(@PathVariable long id, WebRequest request) {
+        if (conditionalRequests.isNotModified(request, "film", entityVersions.filmTag(id),
+                () -> filmService.checkFilmIsExist(id))) {
+            return null;
+        }
         return filmService.getFilm(id);
     }
 
     @GetMapping("/director/{directorId}")
     public List<Film> getDirectorsFilms(@PathVariable long directorId,
-                                        @RequestParam Set<String> sortBy) {
-        return filmService.getDirectorsFilms(directorId, sortBy);
+                                        @RequestParam Set<String> sortBy,
+                                        @RequestParam(defaultValue = "0") int offset,
+                                        @RequestParam(required = false) Integer limit) {
+        return filmService.getDirectorsFilms(directorId, sortBy, offset, limit);
     }
 
     @GetMapping("/search")
@@ -83,4 +118,10 @@ public class FilmController {
                                        @RequestParam(defaultValue = "") String by) {
         return filmService.getFilmsBySearch(query, by);
     }
+
+    @GetMapping("/search/suggest")
+    public List<Suggestion> getSuggestions(@RequestParam String prefix,
+                                           @RequestParam(defaultValue = "10") Integer count) {
+        return filmService.getSuggestions(prefix, count);
+    }
 }
@@ -5,8 +5,10 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.service.GenreService;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import java.util.List;
 
@@ -14,14 +16,23 @@ import java.util.List;
 @RequestMapping("/genres")
 public class GenreController {
     private final GenreService genreService;
+    private final EntityVersions entityVersions;
+    private final ConditionalRequests conditionalRequests;
 
     @Autowired
-    public GenreController(GenreService genreService) {
+    public GenreController(GenreService genreService,
+                           EntityVersions entityVersions,
+                           ConditionalRequests conditionalRequests) {
         this.genreService = genreService;
+        this.entityVersions = entityVersions;
+        this.conditionalRequests = conditionalRequests;
     }
 
     @GetMapping
-    public List<Genre> getGenres() {
+    public List<Genre> getGenres(WebRequest request) {
+        if (conditionalRequests.isNotModified(request, "genres", entityVersions.genresTag())) {
+            return null;
+        }
         return genreService.getGenres();
     }
 
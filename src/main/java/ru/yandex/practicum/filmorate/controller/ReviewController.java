@@ -1,8 +1,10 @@
 package ru.yandex.practicum.filmorate.controller;
 
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import ru.yandex.practicum.filmorate.model.Review;
 import ru.yandex.practicum.filmorate.service.ReviewService;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import javax.validation.Valid;
 import java.util.List;
@@ -12,9 +14,15 @@ import java.util.List;
 public class ReviewController {
 
     private final ReviewService reviewService;
+    private final EntityVersions entityVersions;
+    private final ConditionalRequests conditionalRequests;
 
-    public ReviewController(ReviewService reviewService) {
+    public ReviewController(ReviewService reviewService,
+                            EntityVersions entityVersions,
+                            ConditionalRequests conditionalRequests) {
         this.reviewService = reviewService;
+        this.entityVersions = entityVersions;
+        this.conditionalRequests = conditionalRequests;
     }
 
     @PostMapping
@@ -33,7 +41,11 @@ public class ReviewController {
     }
 
     @GetMapping(value = "/{reviewId}")
-    public Review getReviewById(@PathVariable Long reviewId) {
+    public Review getReviewById(@PathVariable Long reviewId, WebRequest request) {
+        if (conditionalRequests.isNotModified(request, "review", entityVersions.reviewTag(reviewId),
+                () -> reviewService.checkReviewIsExist(reviewId))) {
+            return null;
+        }
         return reviewService.getReviewById(reviewId);
     }
 
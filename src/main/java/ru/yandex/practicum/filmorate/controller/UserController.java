@@ -1,12 +1,19 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.model.Event;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.service.EventService;
+import ru.yandex.practicum.filmorate.service.FeedStreamService;
 import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import javax.validation.Valid;
 import java.util.Collection;
@@ -15,18 +22,41 @@ import java.util.List;
 @RestController
 @RequestMapping("/users")
 public class UserController {
+    private static final int DEFAULT_PAGE_SIZE = 100;
     private final UserService userService;
     private final EventService eventService;
+    private final FeedStreamService feedStreamService;
+    private final ObjectMapper objectMapper;
+    private final EntityVersions entityVersions;
+    private final ConditionalRequests conditionalRequests;
 
     @Autowired
-    public UserController(UserService userService, EventService eventService) {
+    public UserController(UserService userService,
+                          EventService eventService,
+                          FeedStreamService feedStreamService,
+                          ObjectMapper objectMapper,
+                          EntityVersions entityVersions,
+                          ConditionalRequests conditionalRequests) {
         this.userService = userService;
         this.eventService = eventService;
+        this.feedStreamService = feedStreamService;
+        this.objectMapper = objectMapper;
+        this.entityVersions = entityVersions;
+        this.conditionalRequests = conditionalRequests;
     }
 
     @GetMapping
-    public List<User> getUser() {
-        return userService.getUsers();
+    public List<User> getUser(@RequestParam(required = false) Long afterId,
+                              @RequestParam(required = false) Integer limit) {
+        if (afterId == null && limit == null) {
+            return userService.getUsers();
+        }
+        return userService.getUsers(afterId == null ? 0 : afterId, limit == null ? DEFAULT_PAGE_SIZE : limit);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StreamingResponseBody streamUsers() {
+        return JsonArrayStream.of(objectMapper, userService::streamUsers);
     }
 
     @PostMapping
@@ -57,8 +87,21 @@ public class UserController {
     }
 
     @GetMapping("/{id}/friends")
-    public List<User> getFriendsListForUser(@PathVariable long id) {
-        return userService.getFriendsListForUser(id);
+    public List<User> getFriendsListForUser(@PathVariable long id,
+                                            @RequestParam(required = false) Long afterId,
+                                            @RequestParam(required = false) Integer limit) {
+        if (afterId == null && limit == null) {
+            return userService.getFriendsListForUser(id);
+        }
+        return userService.getFriendsListForUser(id, afterId == null ? 0 : afterId,
+                limit == null ? DEFAULT_PAGE_SIZE : limit);
+    }
+
+    @GetMapping("/{id}/friends/ids")
+    public List<Long> getFriendIds(@PathVariable long id,
+                                   @RequestParam(required = false) Long afterId,
+                                   @RequestParam(required = false) Integer limit) {
+        return userService.getFriendIds(id, afterId == null ? 0 : afterId, limit == null ? DEFAULT_PAGE_SIZE : limit);
     }
 
     @GetMapping("/{id}/friends/common/{otherId}")
@@ -67,14 +110,38 @@ public class UserController {
         return userService.getMutualFriends(id, otherId);
     }
 
+    @GetMapping("/{id}/friends/suggestions")
+    public List<User> getFriendSuggestions(@PathVariable long id,
+                                           @RequestParam(defaultValue = "10") int limit) {
+        return userService.getFriendSuggestions(id, limit);
+    }
+
     @GetMapping("/{id}")
     public User getUser(@PathVariable long id) {
         return userService.getUser(id);
     }
 
     @GetMapping("/{id}/feed")
-    public Collection<Event> getFeed(@PathVariable long id) {
-        return eventService.getEventOfUser(id);
+    public Collection<Event> getFeed(@PathVariable long id,
+                                     @RequestParam(required = false) Long afterEventId,
+                                     @RequestParam(required = false) Long beforeEventId,
+                                     @RequestParam(required = false) Integer limit,
+                                     WebRequest request) {
+        if (conditionalRequests.isNotModified(request, "feed", entityVersions.feedTag(id),
+                () -> userService.checkUserIsExist(id))) {
+            return null;
+        }
+        if (afterEventId == null && beforeEventId == null && limit == null) {
+            return eventService.getEventOfUser(id);
+        }
+        return eventService.getEventOfUser(id, afterEventId, beforeEventId,
+                limit == null ? DEFAULT_PAGE_SIZE : limit);
+    }
+
+    @GetMapping(value = "/{id}/feed/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamFeed(@PathVariable long id,
+                                 @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        return feedStreamService.subscribe(id, lastEventId);
     }
 
     @GetMapping("/{id}/recommendations")
@@ -0,0 +1,21 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.*;
+
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+public class EventLogStats {
+    private long tableEvents;
+
+    private long tableBytes;
+
+    private int segments;
+
+    private long archivedEvents;
+
+    private long archiveBytes;
+
+    private Long oldestTableTimestamp;
+}
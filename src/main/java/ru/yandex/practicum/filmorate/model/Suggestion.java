@@ -0,0 +1,18 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.*;
+import ru.yandex.practicum.filmorate.model.enums.SuggestionType;
+
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+public class Suggestion {
+    private SuggestionType type;
+
+    private long id;
+
+    private String name;
+
+    private int marksCount;
+}
@@ -5,16 +5,19 @@ import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import java.util.List;
 
 @Service
 public class DirectorService {
     private final DirectorStorage directorStorage;
+    private final EntityVersions entityVersions;
 
     @Autowired
-    public DirectorService(DirectorStorage directorStorage) {
+    public DirectorService(DirectorStorage directorStorage, EntityVersions entityVersions) {
         this.directorStorage = directorStorage;
+        this.entityVersions = entityVersions;
     }
 
     public List<Director> getDirectors() {
@@ -32,12 +35,17 @@ public class DirectorService {
 
     public Director updateDirector(Director director) {
         checkDirectorIsExist(director.getId());
-        return directorStorage.updateDirector(director);
+        Director updated = directorStorage.updateDirector(director);
+        // Режиссёры входят в ответы по фильмам
+        entityVersions.sharedChanged();
+        return updated;
     }
 
     public Director deleteDirector(long id) {
         checkDirectorIsExist(id);
-        return directorStorage.deleteDirector(id);
+        Director deleted = directorStorage.deleteDirector(id);
+        entityVersions.sharedChanged();
+        return deleted;
     }
 
     public void checkDirectorIsExist(long id) {
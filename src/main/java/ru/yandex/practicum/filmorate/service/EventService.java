@@ -3,8 +3,11 @@ package ru.yandex.practicum.filmorate.service;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.EventLogStats;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
 import java.util.List;
@@ -12,14 +15,17 @@ import java.util.List;
 
 @Service
 public class EventService {
+    private static final int MAX_FEED_PAGE = 1000;
 
     private final EventStorage eventStorage;
     private final UserStorage userStorage;
+    private final EventArchive eventArchive;
 
     @Autowired
-    public EventService(EventStorage eventStorage, UserStorage userStorage) {
+    public EventService(EventStorage eventStorage, UserStorage userStorage, EventArchive eventArchive) {
         this.eventStorage = eventStorage;
         this.userStorage = userStorage;
+        this.eventArchive = eventArchive;
     }
 
     public List<Event> getEventOfUser(long userId) {
@@ -29,4 +35,24 @@ public class EventService {
             return eventStorage.getEventOfUser(userId);
         }
     }
-}
\ No newline at end of file
+
+    public List<Event> getEventOfUser(long userId, Long afterEventId, Long beforeEventId, int limit) {
+        PageLimits.check(limit, MAX_FEED_PAGE);
+        if (!userStorage.isExists(userId)) {
+            throw new NotFoundException("Пользователя не существует: " + userId);
+        }
+        return eventStorage.getEventOfUser(userId, afterEventId, beforeEventId, limit);
+    }
+
+    public EventLogStats getLogStats() {
+        return eventArchive.getStats();
+    }
+
+    public EventLogStats archiveEvents() {
+        if (!eventArchive.isEnabled()) {
+            throw new ValidationException("Архив событий выключен: filmorate.events.archive.retention-days = 0");
+        }
+        eventArchive.archive();
+        return eventArchive.getStats();
+    }
+}
@@ -0,0 +1,237 @@
+package ru.yandex.practicum.filmorate.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Живая лента пользователя по Server-Sent Events.
+// Подписчики хранятся по пользователям, записанные события раскладываются по их ограниченным очередям.
+// Отправку делает небольшой пул потоков, поэтому открытое соединение не занимает поток сервлета.
+// Переполненная очередь закрывает поток: клиент переподключается с Last-Event-ID и дочитывает пропущенное из БД.
+// Раз в heartbeatMs подписчикам уходит комментарий, на нём же обнаруживаются оборванные соединения.
+@Service
+@Slf4j
+public class FeedStreamService {
+    private final EventStorage eventStorage;
+    private final UserStorage userStorage;
+    private final int queueCapacity;
+    private final long heartbeatMs;
+    private final long timeoutMs;
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ExecutorService senders;
+    private final ScheduledExecutorService heartbeats;
+
+    @Autowired
+    public FeedStreamService(EventStorage eventStorage,
+                             UserStorage userStorage,
+                             MeterRegistry meterRegistry,
+                             @Value("${filmorate.feed.stream.queue-capacity:100}") int queueCapacity,
+                             @Value("${filmorate.feed.stream.heartbeat-ms:15000}") long heartbeatMs,
+                             @Value("${filmorate.feed.stream.timeout-ms:1800000}") long timeoutMs,
+                             @Value("${filmorate.feed.stream.sender-threads:4}") int senderThreads) {
+        this.eventStorage = eventStorage;
+        this.userStorage = userStorage;
+        this.queueCapacity = queueCapacity;
+        this.heartbeatMs = heartbeatMs;
+        this.timeoutMs = timeoutMs;
+        this.senders = BackgroundThreads.newPool("feed-stream", senderThreads);
+        this.heartbeats = BackgroundThreads.newScheduler("feed-heartbeat");
+        meterRegistry.gauge("filmorate.feed.subscribers", subscriberCount);
+    }
+
+    @PostConstruct
+    public void start() {
+        eventStorage.addListener(this::publish);
+        heartbeats.scheduleAtFixedRate(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        BackgroundThreads.stop(heartbeats, "feed-heartbeat");
+        senders.shutdown();
+        for (Set<Subscriber> userSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : userSubscribers) {
+                subscriber.emitter.complete();
+            }
+        }
+        BackgroundThreads.stop(senders, "feed-stream");
+    }
+
+    public SseEmitter subscribe(long userId, Long lastEventId) {
+        if (!userStorage.isExists(userId)) {
+            throw new NotFoundException("Пользователя не существует: " + userId);
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(userId, emitter, lastEventId);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unsubscribe(subscriber));
+        subscribers.compute(userId, (id, userSubscribers) -> {
+            Set<Subscriber> result = userSubscribers == null ? ConcurrentHashMap.newKeySet() : userSubscribers;
+            result.add(subscriber);
+            return result;
+        });
+        subscriberCount.incrementAndGet();
+        log.debug("Подписка на ленту пользователя {}, последнее событие {}", userId, lastEventId);
+        if (lastEventId != null) {
+            schedule(subscriber);
+        }
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    // Вызывается из потока записи событий, поэтому только раскладывает события по очередям
+    private void publish(List<Event> events) {
+        for (Event event : events) {
+            Set<Subscriber> userSubscribers = subscribers.get(event.getUserId());
+            if (userSubscribers == null) {
+                continue;
+            }
+            for (Subscriber subscriber : userSubscribers) {
+                if (!subscriber.queue.offer(event)) {
+                    subscriber.overflowed = true;
+                }
+                schedule(subscriber);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        for (Set<Subscriber> userSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : userSubscribers) {
+                subscriber.heartbeat.set(true);
+                schedule(subscriber);
+            }
+        }
+    }
+
+    // Для одного подписчика в пуле не больше одной задачи, поэтому отправки в его поток не пересекаются
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.closed || !subscriber.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            senders.execute(() -> drain(subscriber));
+        } catch (RejectedExecutionException e) {
+            subscriber.scheduled.set(false);
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            if (subscriber.replayFrom != null) {
+                replay(subscriber);
+            }
+            boolean sent = false;
+            Event event;
+            while ((event = subscriber.queue.poll()) != null) {
+                sent |= send(subscriber, event);
+            }
+            if (subscriber.overflowed) {
+                log.info("Очередь ленты пользователя {} переполнена, поток закрыт после события {}",
+                        subscriber.userId, subscriber.lastSentId);
+                close(subscriber);
+                return;
+            }
+            if (subscriber.heartbeat.getAndSet(false) && !sent) {
+                subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Клиент отключился или поток уже завершён
+            log.debug("Поток ленты пользователя {} закрыт: {}", subscriber.userId, e.getMessage());
+            unsubscribe(subscriber);
+        } catch (RuntimeException e) {
+            log.error("Ошибка отправки ленты пользователя {}", subscriber.userId, e);
+            close(subscriber);
+        } finally {
+            subscriber.scheduled.set(false);
+            if (!subscriber.queue.isEmpty() || subscriber.heartbeat.get()) {
+                schedule(subscriber);
+            }
+        }
+    }
+
+    // Досылка пропущенного после переподключения; события из очереди с теми же id отбрасываются при отправке
+    private void replay(Subscriber subscriber) throws IOException {
+        long afterEventId = subscriber.replayFrom;
+        subscriber.replayFrom = null;
+        List<Event> page;
+        do {
+            page = eventStorage.getEventOfUser(subscriber.userId, afterEventId, null, queueCapacity);
+            for (Event event : page) {
+                send(subscriber, event);
+                afterEventId = event.getEventId();
+            }
+        } while (page.size() == queueCapacity);
+    }
+
+    private boolean send(Subscriber subscriber, Event event) throws IOException {
+        if (event.getEventId() <= subscriber.lastSentId) {
+            return false;
+        }
+        subscriber.emitter.send(SseEmitter.event()
+                .id(String.valueOf(event.getEventId()))
+                .name("event")
+                .data(event, MediaType.APPLICATION_JSON));
+        subscriber.lastSentId = event.getEventId();
+        return true;
+    }
+
+    private void close(Subscriber subscriber) {
+        unsubscribe(subscriber);
+        subscriber.emitter.complete();
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscriber.closed = true;
+        subscribers.computeIfPresent(subscriber.userId, (id, userSubscribers) -> {
+            if (userSubscribers.remove(subscriber)) {
+                subscriberCount.decrementAndGet();
+            }
+            return userSubscribers.isEmpty() ? null : userSubscribers;
+        });
+    }
+
+    private final class Subscriber {
+        private final long userId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean heartbeat = new AtomicBoolean();
+        private volatile boolean overflowed;
+        private volatile boolean closed;
+        // Меняются только в задаче отправки, которая для подписчика всегда одна
+        private Long replayFrom;
+        private long lastSentId;
+
+        private Subscriber(long userId, SseEmitter emitter, Long lastEventId) {
+            this.userId = userId;
+            this.emitter = emitter;
+            this.replayFrom = lastEventId;
+            this.lastSentId = lastEventId == null ? 0 : lastEventId;
+        }
+    }
+}
@@ -5,16 +5,22 @@ import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Suggestion;
 import ru.yandex.practicum.filmorate.model.enums.EventOperation;
 import ru.yandex.practicum.filmorate.model.enums.EventType;
 import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.impl.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationCache;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 @Service
 public class FilmService {
@@ -24,50 +30,98 @@ public class FilmService {
     private final UserStorage userStorage;
     private final DirectorStorage directorStorage;
     private final EventStorage eventStorage;
+    private final SuggestIndex suggestIndex;
+    private final RecommendationCache recommendationCache;
+    private final EntityVersions entityVersions;
+    private final LikeWriteBuffer likeBuffer;
 
     @Autowired
     public FilmService(FilmStorage filmStorage,
                        UserStorage userStorage,
                        DirectorStorage directorStorage,
-                       EventStorage eventStorage) {
+                       EventStorage eventStorage,
+                       SuggestIndex suggestIndex,
+                       RecommendationCache recommendationCache,
+                       EntityVersions entityVersions,
+                       LikeWriteBuffer likeBuffer) {
         this.filmStorage = filmStorage;
         this.userStorage = userStorage;
         this.directorStorage = directorStorage;
         this.eventStorage = eventStorage;
+        this.suggestIndex = suggestIndex;
+        this.recommendationCache = recommendationCache;
+        this.entityVersions = entityVersions;
+        this.likeBuffer = likeBuffer;
     }
 
     public List<Film> getFilms() {
         return filmStorage.getFilms();
     }
 
+    public List<Film> getFilms(long afterId, int limit) {
+        PageLimits.check(limit);
+        return filmStorage.getFilms(afterId, limit);
+    }
+
+    public void streamFilms(Consumer<Film> consumer) {
+        filmStorage.streamFilms(consumer);
+    }
+
     public Film createFilm(Film film) {
         checkReleaseDate(film.getReleaseDate());
-        return filmStorage.createFilm(film);
+        Film created = filmStorage.createFilm(film);
+        entityVersions.filmChanged(created.getId());
+        return created;
     }
 
     public Film updateFIlm(Film film) {
         checkFilmIsExist(film.getId());
         checkReleaseDate(film.getReleaseDate());
-        return filmStorage.updateFilm(film);
+        Film updated = filmStorage.updateFilm(film);
+        entityVersions.filmChanged(updated.getId());
+        return updated;
     }
 
     public Film setLikeToFilm(long id, long userId, int mark) {
         checkFilmIsExist(id);
         checkUserIsExist(userId);
         eventStorage.addEvent(userId, EventType.LIKE, EventOperation.ADD, id);
-        return filmStorage.setLikeToFilm(id, userId, mark);
+        Film film;
+        if (likeBuffer.isEnabled()) {
+            likeBuffer.setMark(id, userId, (double) mark);
+            film = filmStorage.getFilm(id);
+        } else {
+            film = filmStorage.setLikeToFilm(id, userId, mark);
+        }
+        recommendationCache.invalidate(userId, id);
+        entityVersions.filmChanged(id);
+        return film;
     }
 
     public Film deleteLikeFromFilm(long id, long userId) {
         checkFilmIsExist(id);
         checkUserIsExist(userId);
         eventStorage.addEvent(userId, EventType.LIKE, EventOperation.REMOVE, id);
-        return filmStorage.deleteLikeFromFilm(id, userId);
+        Film film;
+        if (likeBuffer.isEnabled()) {
+            likeBuffer.setMark(id, userId, null);
+            film = filmStorage.getFilm(id);
+        } else {
+            film = filmStorage.deleteLikeFromFilm(id, userId);
+        }
+        recommendationCache.invalidate(userId, id);
+        entityVersions.filmChanged(id);
+        return film;
     }
 
     public Film deleteFilm(long id) {
         checkFilmIsExist(id);
-        return filmStorage.deleteFilm(id);
+        // Удаление идёт каскадом по записанным оценкам, поэтому буфер сначала сбрасывается в БД
+        Film deleted = likeBuffer.flushAndRun(() -> filmStorage.deleteFilm(id));
+        entityVersions.filmDeleted(id);
+        // Вместе с фильмом удаляются его отзывы
+        entityVersions.sharedChanged();
+        return deleted;
     }
 
     public void checkFilmIsExist(long id) {
@@ -89,6 +143,7 @@ public class FilmService {
     }
 
     public List<Film> getPopularFilms(Integer count, Integer genreId, Integer year) {
+        PageLimits.check(count);
         return filmStorage.getPopularFilms(count, genreId, year);
     }
 
@@ -100,11 +155,17 @@ public class FilmService {
         }
     }
 
-    public List<Film> getDirectorsFilms(long directorId, Set<String> sortBy) {
+    public List<Film> getDirectorsFilms(long directorId, Set<String> sortBy, int offset, Integer limit) {
+        if (offset < 0) {
+            throw new ValidationException("Смещение не может быть отрицательным: " + offset);
+        }
+        if (limit != null) {
+            PageLimits.check(limit);
+        }
         if (!directorStorage.isExists(directorId)) {
             throw new NotFoundException("Режиссёра не существует: " + directorId);
         } else {
-            return filmStorage.getDirectorsFilms(directorId, sortBy);
+            return filmStorage.getDirectorsFilms(directorId, sortBy, offset, limit);
         }
     }
 
@@ -121,4 +182,9 @@ public class FilmService {
     public List<Film> getFilmsBySearch(String query, String by) {
         return filmStorage.getFilmsBySearch(query, by);
     }
+
+    public List<Suggestion> getSuggestions(String prefix, int count) {
+        PageLimits.check(count);
+        return suggestIndex.suggest(prefix, count);
+    }
 }
@@ -0,0 +1,22 @@
+package ru.yandex.practicum.filmorate.service;
+
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+
+// Проверка размера страницы для всех постраничных запросов
+final class PageLimits {
+    private PageLimits() {
+    }
+
+    static void check(int limit) {
+        if (limit <= 0) {
+            throw new ValidationException("Размер страницы должен быть положительным: " + limit);
+        }
+    }
+
+    static void check(int limit, int maxLimit) {
+        check(limit);
+        if (limit > maxLimit) {
+            throw new ValidationException("Размер страницы не больше " + maxLimit + ": " + limit);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ru.yandex.practicum.filmorate.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
+
+@Service
+public class ReferenceDataService {
+    private final ReferenceDataRegistry referenceData;
+    private final EntityVersions entityVersions;
+
+    @Autowired
+    public ReferenceDataService(ReferenceDataRegistry referenceData, EntityVersions entityVersions) {
+        this.referenceData = referenceData;
+        this.entityVersions = entityVersions;
+    }
+
+    public void reload() {
+        referenceData.reload();
+        entityVersions.genresChanged();
+    }
+}
@@ -9,6 +9,7 @@ import ru.yandex.practicum.filmorate.model.enums.EventType;
 import ru.yandex.practicum.filmorate.model.Review;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
 import ru.yandex.practicum.filmorate.storage.review.ReviewStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import java.util.List;
 
@@ -18,18 +19,24 @@ public class ReviewService {
     private final ReviewStorage reviewStorage;
     private final FilmService filmService;
     private final EventStorage eventStorage;
+    private final EntityVersions entityVersions;
 
     @Autowired
-    public ReviewService(ReviewStorage reviewStorage, FilmService filmService, EventStorage eventStorage) {
+    public ReviewService(ReviewStorage reviewStorage,
+                         FilmService filmService,
+                         EventStorage eventStorage,
+                         EntityVersions entityVersions) {
         this.reviewStorage = reviewStorage;
         this.filmService = filmService;
         this.eventStorage = eventStorage;
+        this.entityVersions = entityVersions;
     }
 
     public Review createReview(Review review) {
         checkUserAndFilm(review.getFilmId(), review.getUserId());
         checkPositive(review.getIsPositive());
         Review newReview = reviewStorage.createReview(review);
+        entityVersions.reviewChanged(newReview.getReviewId());
         eventStorage.addEvent(newReview.getUserId(), EventType.REVIEW, EventOperation.ADD, newReview.getReviewId());
         return newReview;
     }
@@ -38,6 +45,7 @@ public class ReviewService {
         checkPositive(review.getIsPositive());
         checkReviewIsExist(review.getReviewId());
         Review newReview = reviewStorage.updateReview(review);
+        entityVersions.reviewChanged(review.getReviewId());
         Review oldReview = reviewStorage.getReviewById(review.getReviewId());
         eventStorage.addEvent(oldReview.getUserId(),
                 EventType.REVIEW, EventOperation.UPDATE, oldReview.getReviewId());
@@ -48,6 +56,7 @@ public class ReviewService {
         checkReviewIsExist(reviewId);
         Review delReview = reviewStorage.getReviewById(reviewId);
         reviewStorage.deleteReviewById(reviewId);
+        entityVersions.reviewDeleted(reviewId);
         eventStorage.addEvent(delReview.getUserId(), EventType.REVIEW, EventOperation.REMOVE, delReview.getReviewId());
     }
 
@@ -67,27 +76,31 @@ public class ReviewService {
         checkReviewIsExist(reviewId);
         filmService.checkUserIsExist(userId);
         reviewStorage.putLikeReview(reviewId, userId);
+        entityVersions.reviewChanged(reviewId);
     }
 
     public void putDislikeReview(Long reviewId, Long userId) {
         checkReviewIsExist(reviewId);
         filmService.checkUserIsExist(userId);
         reviewStorage.putDislikeReview(reviewId, userId);
+        entityVersions.reviewChanged(reviewId);
     }
 
     public void deleteLikeReview(Long reviewId, Long userId) {
         checkReviewIsExist(reviewId);
         filmService.checkUserIsExist(userId);
         reviewStorage.deleteLikeReview(reviewId, userId);
+        entityVersions.reviewChanged(reviewId);
     }
 
     public void deleteDislikeReview(Long reviewId, Long userId) {
         checkReviewIsExist(reviewId);
         filmService.checkUserIsExist(userId);
         reviewStorage.deleteDislikeReview(reviewId, userId);
+        entityVersions.reviewChanged(reviewId);
     }
 
-    private void checkReviewIsExist(Long id) {
+    public void checkReviewIsExist(Long id) {
         if (!reviewStorage.isExists(id)) {
             throw new NotFoundException("Отзыв отсутствует: " + id);
         }
@@ -9,37 +9,68 @@ import ru.yandex.practicum.filmorate.model.enums.EventOperation;
 import ru.yandex.practicum.filmorate.model.enums.EventType;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.impl.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationCache;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 @Service
 public class UserService {
     private final UserStorage userStorage;
     private final EventStorage eventStorage;
+    private final EventArchive eventArchive;
     private final FilmStorage filmStorage;
+    private final RecommendationCache recommendationCache;
+    private final EntityVersions entityVersions;
+    private final LikeWriteBuffer likeBuffer;
 
     @Autowired
-    public UserService(UserStorage userStorage, EventStorage eventStorage, FilmStorage filmStorage) {
+    public UserService(UserStorage userStorage,
+                       EventStorage eventStorage,
+                       EventArchive eventArchive,
+                       FilmStorage filmStorage,
+                       RecommendationCache recommendationCache,
+                       EntityVersions entityVersions,
+                       LikeWriteBuffer likeBuffer) {
         this.userStorage = userStorage;
         this.eventStorage = eventStorage;
+        this.eventArchive = eventArchive;
         this.filmStorage = filmStorage;
+        this.recommendationCache = recommendationCache;
+        this.entityVersions = entityVersions;
+        this.likeBuffer = likeBuffer;
     }
 
     public List<User> getUsers() {
-        if (!userStorage.getUsers().isEmpty()) {
-            return userStorage.getUsers();
-        } else {
+        List<User> users = userStorage.getUsers();
+        if (users.isEmpty()) {
             throw new NotFoundException("Список пользователей пуст");
         }
+        return users;
+    }
+
+    public List<User> getUsers(long afterId, int limit) {
+        PageLimits.check(limit);
+        return userStorage.getUsers(afterId, limit);
+    }
+
+    public void streamUsers(Consumer<User> consumer) {
+        userStorage.streamUsers(consumer);
     }
 
     public User createUser(User user) {
         if (StringUtils.isBlank(user.getName())) {
             user.setName(user.getLogin());
         }
-        return userStorage.createUser(user);
+        User created = userStorage.createUser(user);
+        entityVersions.feedChanged(created.getId());
+        return created;
     }
 
     public User updateUser(User user) {
@@ -52,21 +83,33 @@ public class UserService {
 
     public User deleteUser(long id) {
         checkUserIsExist(id);
-        return userStorage.deleteUser(id);
+        Set<Long> neighbours = recommendationCache.getNeighbours(id);
+        // Рейтинги фильмов при удалении правятся по оценкам в БД, поэтому буфер сначала сбрасывается
+        User user = likeBuffer.flushAndRun(() -> userStorage.deleteUser(id));
+        // События в таблице удаляются каскадом, а архивные - переписыванием сегментов
+        eventArchive.removeUser(id);
+        recommendationCache.remove(id, neighbours);
+        entityVersions.feedDeleted(id);
+        // Вместе с пользователем удаляются его оценки фильмов и отзывы
+        entityVersions.sharedChanged();
+        return user;
     }
 
+    // Событие пишется после изменения графа дружбы: на этом порядке держится снимок FriendshipSnapshot
     public User addToFriends(long id, long friendId) {
         checkUserIsExist(id);
         checkUserIsExist(friendId);
+        User user = userStorage.addFriend(id, friendId);
         eventStorage.addEvent(id, EventType.FRIEND, EventOperation.ADD, friendId);
-        return userStorage.addFriend(id, friendId);
+        return user;
     }
 
     public User deleteFromFriends(long id, long friendId) {
         checkUserIsExist(id);
         checkUserIsExist(friendId);
+        User user = userStorage.deleteFromFriends(id, friendId);
         eventStorage.addEvent(id, EventType.FRIEND, EventOperation.REMOVE, friendId);
-        return userStorage.deleteFromFriends(id, friendId);
+        return user;
     }
 
     public List<User> getFriendsListForUser(long id) {
@@ -74,12 +117,30 @@ public class UserService {
         return userStorage.getFriendsListForUser(id);
     }
 
+    public List<User> getFriendsListForUser(long id, long afterId, int limit) {
+        checkUserIsExist(id);
+        PageLimits.check(limit);
+        return userStorage.getFriendsListForUser(id, afterId, limit);
+    }
+
+    public List<Long> getFriendIds(long id, long afterId, int limit) {
+        checkUserIsExist(id);
+        PageLimits.check(limit);
+        return userStorage.getFriendIds(id, afterId, limit);
+    }
+
     public List<User> getMutualFriends(long id, long otherId) {
         checkUserIsExist(id);
         checkUserIsExist(otherId);
         return userStorage.getMutualFriends(id, otherId);
     }
 
+    public List<User> getFriendSuggestions(long id, int limit) {
+        checkUserIsExist(id);
+        PageLimits.check(limit);
+        return userStorage.getFriendSuggestions(id, limit);
+    }
+
     public void checkUserIsExist(long id) {
         if (!userStorage.isExists(id)) {
             throw new NotFoundException("Пользователя не существует: " + id);
@@ -93,6 +154,6 @@ public class UserService {
 
     public List<Film> getRecommendationsByUserId(long id) {
         checkUserIsExist(id);
-        return filmStorage.getRecommendationsByUserId(id);
+        return filmStorage.getFilmsInOrder(recommendationCache.get(id));
     }
 }
@@ -10,6 +10,8 @@ import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exception.SQLWorkException;
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
+import ru.yandex.practicum.filmorate.storage.film.index.SearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -24,9 +26,13 @@ public class DBDirectorStorage implements DirectorStorage {
     private static final String DIRECTOR_ID = "DIRECTOR_ID";
     private static final String NAME = "NAME";
     private final JdbcTemplate jdbcTemplate;
+    private final SearchIndex searchIndex;
+    private final SuggestIndex suggestIndex;
 
-    public DBDirectorStorage(JdbcTemplate jdbcTemplate) {
+    public DBDirectorStorage(JdbcTemplate jdbcTemplate, SearchIndex searchIndex, SuggestIndex suggestIndex) {
         this.jdbcTemplate = jdbcTemplate;
+        this.searchIndex = searchIndex;
+        this.suggestIndex = suggestIndex;
     }
 
     @Override
@@ -55,6 +61,8 @@ public class DBDirectorStorage implements DirectorStorage {
             return stmt;
         }, keyHolder);
         director.setId(Objects.requireNonNull(keyHolder.getKey()).longValue());
+        searchIndex.putDirector(director.getId(), director.getName());
+        suggestIndex.putDirector(director.getId(), director.getName());
         return director;
     }
 
@@ -62,6 +70,8 @@ public class DBDirectorStorage implements DirectorStorage {
     public Director updateDirector(Director director) {
         String sqlQuery = "update DIRECTORS set NAME=? where DIRECTOR_ID=?";
         jdbcTemplate.update(sqlQuery, director.getName(), director.getId());
+        searchIndex.putDirector(director.getId(), director.getName());
+        suggestIndex.putDirector(director.getId(), director.getName());
         return getDirector(director.getId());
     }
 
@@ -70,6 +80,8 @@ public class DBDirectorStorage implements DirectorStorage {
         Director director = getDirector(id);
         String sqlQuery = "delete from DIRECTORS where DIRECTOR_ID=?";
         jdbcTemplate.update(sqlQuery, id);
+        searchIndex.removeDirector(id);
+        suggestIndex.removeDirector(id);
         return director;
     }
 
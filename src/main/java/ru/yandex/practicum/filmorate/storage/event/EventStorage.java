@@ -5,6 +5,7 @@ import ru.yandex.practicum.filmorate.model.enums.EventOperation;
 import ru.yandex.practicum.filmorate.model.enums.EventType;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface EventStorage {
         Event addEvent(long userId, EventType eventType, EventOperation eventOperation, long entityId);
@@ -12,4 +13,9 @@ public interface EventStorage {
         Event saveEvent(Event event);
 
         List<Event> getEventOfUser(long userId);
+
+        List<Event> getEventOfUser(long userId, Long afterEventId, Long beforeEventId, int limit);
+
+        // Слушатель получает события после их записи, в порядке идентификаторов
+        void addListener(Consumer<List<Event>> listener);
 }
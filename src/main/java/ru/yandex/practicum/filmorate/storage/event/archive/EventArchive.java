@@ -0,0 +1,371 @@
+package ru.yandex.practicum.filmorate.storage.event.archive;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+import ru.yandex.practicum.filmorate.exception.SQLWorkException;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.EventLogStats;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Архив старых событий.
+// События делятся на окна по времени (partitionHours). Окна старше retentionDays переносятся из таблицы EVENTS
+// в сжатые сегменты на диске, по файлу на окно; файлы только создаются, но не меняются.
+// Список сегментов хранится в EVENT_SEGMENTS и меняется в одной транзакции с удалением строк из EVENTS.
+// Файлы не из списка (сбой до коммита или сброс БД через data.sql) удаляются при старте.
+// Оглавления всех сегментов держатся в памяти, лента пользователя читает только его блоки.
+// При удалении пользователя сегменты с его событиями переписываются в новые файлы без них.
+// MAX_EVENT_ID сегмента при этом не меняется, чтобы id удалённых событий не выдавались повторно.
+// Архив выключен по умолчанию (retentionDays = 0).
+@Component
+@Slf4j
+public class EventArchive {
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Path directory;
+    private final long retentionMs;
+    private final long partitionMs;
+    private final long intervalMs;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<EventSegment> segments = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public EventArchive(JdbcTemplate jdbcTemplate,
+                        PlatformTransactionManager transactionManager,
+                        @Value("${filmorate.events.archive.dir:./db/events-archive}") String directory,
+                        @Value("${filmorate.events.archive.retention-days:0}") long retentionDays,
+                        @Value("${filmorate.events.archive.partition-hours:24}") long partitionHours,
+                        @Value("${filmorate.events.archive.interval-ms:3600000}") long intervalMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.directory = Paths.get(directory);
+        this.retentionMs = TimeUnit.DAYS.toMillis(retentionDays);
+        this.partitionMs = partitionHours * HOUR_MS;
+        this.intervalMs = intervalMs;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Map<String, Long> catalog = new HashMap<>();
+        jdbcTemplate.query("select FILE_NAME, WINDOW_START from EVENT_SEGMENTS", rs -> {
+            catalog.put(rs.getString("FILE_NAME"), rs.getLong("WINDOW_START"));
+        });
+        List<EventSegment> loaded = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            // Только файлы сегментов, включая недописанные .tmp: каталог может быть общим
+            String pattern = SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + "*";
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, pattern)) {
+                for (Path file : files) {
+                    Long windowStart = catalog.remove(file.getFileName().toString());
+                    if (windowStart == null) {
+                        log.info("Удалён сегмент событий не из списка EVENT_SEGMENTS: {}", file);
+                        Files.delete(file);
+                    } else {
+                        loaded.add(EventSegment.open(file, windowStart));
+                    }
+                }
+            }
+        }
+        if (!catalog.isEmpty()) {
+            throw new SQLWorkException("Не найдены файлы сегментов событий: " + catalog.keySet());
+        }
+        loaded.sort(Comparator.comparingLong(EventSegment::getWindowStart));
+        lock.writeLock().lock();
+        try {
+            segments.clear();
+            segments.addAll(loaded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Архив событий загружен: {} сегментов", loaded.size());
+        if (isEnabled()) {
+            scheduler = BackgroundThreads.newScheduler("events-archiver");
+            scheduler.scheduleWithFixedDelay(this::archiveQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        BackgroundThreads.stop(scheduler, "events-archiver");
+    }
+
+    public boolean isEnabled() {
+        return retentionMs > 0;
+    }
+
+    public long getMaxEventId() {
+        Long maxEventId = jdbcTemplate.queryForObject("select coalesce(max(MAX_EVENT_ID), 0) from EVENT_SEGMENTS",
+                Long.class);
+        return maxEventId == null ? 0 : maxEventId;
+    }
+
+    public int archive() {
+        return archive(System.currentTimeMillis());
+    }
+
+    // Переносит в архив окна, целиком закончившиеся раньше now - retentionDays. Возвращает число событий
+    public synchronized int archive(long now) {
+        long cutoff = Math.floorDiv(now - retentionMs, partitionMs) * partitionMs;
+        int archived = 0;
+        Long oldest;
+        while ((oldest = jdbcTemplate.queryForObject("select min(TIMESTAMP) from EVENTS where TIMESTAMP < ?",
+                Long.class, cutoff)) != null) {
+            long windowStart = Math.floorDiv(oldest, partitionMs) * partitionMs;
+            archived += archiveWindow(windowStart, windowStart + partitionMs);
+        }
+        if (archived > 0) {
+            log.info("В архив перенесено {} событий старше {}", archived, new Date(cutoff));
+        }
+        return archived;
+    }
+
+    // Убирает из архива события удалённого пользователя. Возвращает число удалённых событий
+    public synchronized int removeUser(long userId) {
+        List<EventSegment> affected = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (EventSegment segment : segments) {
+                if (segment.getBlock(userId) != null) {
+                    affected.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        int removed = 0;
+        for (EventSegment segment : affected) {
+            removed += rewriteWithout(segment, userId);
+        }
+        if (removed > 0) {
+            log.info("Из архива удалено {} событий пользователя {}", removed, userId);
+        }
+        return removed;
+    }
+
+    // Дополняет события пользователя из таблицы архивными с id строго между курсорами.
+    // Остаётся не больше limit событий, ближайших к началу обхода (forward - от старых к новым, иначе наоборот).
+    // Блок сегмента читается, только если в нём могут быть события ближе уже найденных. Результат упорядочен по id
+    public List<Event> withArchived(long userId, List<Event> events, Long afterEventId, Long beforeEventId,
+                                    int limit, boolean forward) {
+        long after = afterEventId == null ? Long.MIN_VALUE : afterEventId;
+        long before = beforeEventId == null ? Long.MAX_VALUE : beforeEventId;
+        List<EventSegment.Block> candidates = new ArrayList<>();
+        List<EventSegment> candidateSegments = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (EventSegment segment : segments) {
+                EventSegment.Block block = segment.getBlock(userId);
+                if (block != null && block.getMaxEventId() > after && block.getMinEventId() < before) {
+                    candidates.add(block);
+                    candidateSegments.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (candidates.isEmpty()) {
+            return events;
+        }
+        // Пока окно переносится в архив, его события могут оказаться и в таблице, и в сегменте
+        NavigableMap<Long, Event> result = new TreeMap<>();
+        for (Event event : events) {
+            result.put(event.getEventId(), event);
+        }
+        trim(result, limit, forward);
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Comparator<Integer> byMinId = Comparator.comparingLong(i -> candidates.get(i).getMinEventId());
+        Arrays.sort(order, forward ? byMinId : Comparator.comparingLong(
+                (Integer i) -> candidates.get(i).getMaxEventId()).reversed());
+        for (int i : order) {
+            EventSegment.Block block = candidates.get(i);
+            if (result.size() >= limit && (forward ? block.getMinEventId() > result.lastKey()
+                    : block.getMaxEventId() < result.firstKey())) {
+                break;
+            }
+            for (Event event : readSegment(candidateSegments.get(i), userId)) {
+                if (event.getEventId() > after && event.getEventId() < before) {
+                    result.put(event.getEventId(), event);
+                }
+            }
+            trim(result, limit, forward);
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    public EventLogStats getStats() {
+        EventLogStats.EventLogStatsBuilder stats = EventLogStats.builder();
+        jdbcTemplate.query("select count(*) as EVENTS_COUNT, min(TIMESTAMP) as OLDEST, " +
+                "DISK_SPACE_USED('EVENTS') as TABLE_BYTES from EVENTS", rs -> {
+            stats.tableEvents(rs.getLong("EVENTS_COUNT"))
+                    .oldestTableTimestamp(rs.getObject("OLDEST", Long.class))
+                    .tableBytes(rs.getLong("TABLE_BYTES"));
+        });
+        lock.readLock().lock();
+        try {
+            long archivedEvents = 0;
+            long archiveBytes = 0;
+            for (EventSegment segment : segments) {
+                archivedEvents += segment.getEventsCount();
+                archiveBytes += segment.getSize();
+            }
+            return stats.segments(segments.size())
+                    .archivedEvents(archivedEvents)
+                    .archiveBytes(archiveBytes)
+                    .build();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void archiveQuietly() {
+        try {
+            archive();
+        } catch (RuntimeException e) {
+            log.error("Ошибка переноса событий в архив", e);
+        }
+    }
+
+    // Сегмент попадает в оглавление до удаления строк, чтобы чтение ленты не потеряло события;
+    // дубли на это время отсекаются при слиянии по id
+    private int archiveWindow(long windowStart, long windowEnd) {
+        List<Event> events = jdbcTemplate.query("select EVENT_ID, USER_ID, ENTITY_ID, EVENT_TYPE, " +
+                "EVENT_OPERATION, TIMESTAMP from EVENTS where TIMESTAMP >= ? and TIMESTAMP < ? " +
+                "order by USER_ID, EVENT_ID", (rs, rowNum) -> Event.builder()
+                .eventId(rs.getLong("EVENT_ID"))
+                .userId(rs.getLong("USER_ID"))
+                .entityId(rs.getLong("ENTITY_ID"))
+                .eventType(EventType.valueOf(rs.getString("EVENT_TYPE")))
+                .operation(EventOperation.valueOf(rs.getString("EVENT_OPERATION")))
+                .timestamp(rs.getLong("TIMESTAMP"))
+                .build(), windowStart, windowEnd);
+        long minEventId = events.stream().mapToLong(Event::getEventId).min().orElseThrow();
+        long maxEventId = events.stream().mapToLong(Event::getEventId).max().orElseThrow();
+        String fileName = SEGMENT_PREFIX + windowStart + "-" + minEventId + SEGMENT_SUFFIX;
+        EventSegment segment;
+        try {
+            Files.createDirectories(directory);
+            segment = EventSegment.write(directory.resolve(fileName), windowStart, events);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать сегмент событий " + fileName, e);
+        }
+        addSegment(segment);
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update("insert into EVENT_SEGMENTS (FILE_NAME, WINDOW_START, WINDOW_END, " +
+                                "MIN_EVENT_ID, MAX_EVENT_ID, EVENTS_COUNT) values (?, ?, ?, ?, ?, ?)",
+                        fileName, windowStart, windowEnd, minEventId, maxEventId, events.size());
+                jdbcTemplate.update("delete from EVENTS where TIMESTAMP >= ? and TIMESTAMP < ? and EVENT_ID <= ?",
+                        windowStart, windowEnd, maxEventId);
+            });
+        } catch (RuntimeException e) {
+            removeSegment(segment);
+            throw e;
+        }
+        log.debug("Окно событий с {} перенесено в {}: {} событий", new Date(windowStart), fileName, events.size());
+        return events.size();
+    }
+
+    // Новый файл попадает в EVENT_SEGMENTS вместо старого в одной транзакции,
+    // старый файл удаляется после неё, а при сбое между ними - при следующем старте
+    private int rewriteWithout(EventSegment segment, long userId) {
+        String oldName = segment.getFile().getFileName().toString();
+        String fileName = SEGMENT_PREFIX + segment.getWindowStart() + "-" + System.currentTimeMillis()
+                + "-" + userId + SEGMENT_SUFFIX;
+        EventSegment rewritten;
+        try {
+            List<Event> events = segment.readAllExcept(userId);
+            rewritten = EventSegment.write(directory.resolve(fileName), segment.getWindowStart(), events);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось переписать сегмент событий " + oldName, e);
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update("update EVENT_SEGMENTS " +
+                            "set FILE_NAME=?, EVENTS_COUNT=? where FILE_NAME=?",
+                    fileName, rewritten.getEventsCount(), oldName));
+        } catch (RuntimeException e) {
+            deleteFile(rewritten);
+            throw e;
+        }
+        lock.writeLock().lock();
+        try {
+            segments.set(segments.indexOf(segment), rewritten);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deleteFile(segment);
+        return segment.getEventsCount() - rewritten.getEventsCount();
+    }
+
+    private void addSegment(EventSegment segment) {
+        lock.writeLock().lock();
+        try {
+            segments.add(segment);
+            segments.sort(Comparator.comparingLong(EventSegment::getWindowStart));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeSegment(EventSegment segment) {
+        lock.writeLock().lock();
+        try {
+            segments.remove(segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deleteFile(segment);
+    }
+
+    private void deleteFile(EventSegment segment) {
+        try {
+            Files.deleteIfExists(segment.getFile());
+        } catch (IOException e) {
+            log.warn("Не удалось удалить сегмент {}: {}", segment.getFile(), e.getMessage());
+        }
+    }
+
+    private static void trim(NavigableMap<Long, Event> events, int limit, boolean forward) {
+        while (events.size() > limit) {
+            if (forward) {
+                events.pollLastEntry();
+            } else {
+                events.pollFirstEntry();
+            }
+        }
+    }
+
+    private static List<Event> readSegment(EventSegment segment, long userId) {
+        try {
+            return segment.read(userId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка чтения сегмента событий " + segment.getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ru.yandex.practicum.filmorate.storage.event.archive;
+
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Неизменяемый файл с событиями одного окна времени.
+// События каждого пользователя сжаты отдельным блоком и упорядочены по id.
+// В конце файла оглавление: пользователь, смещение и длина блока, число событий, минимальный и максимальный id,
+// за ним смещение оглавления, число блоков и сигнатура.
+final class EventSegment {
+    private static final int MAGIC = 0x45565347;
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int ENTRY_SIZE = Long.BYTES * 4 + Integer.BYTES * 2;
+    private static final EventType[] TYPES = EventType.values();
+    private static final EventOperation[] OPERATIONS = EventOperation.values();
+    private final Path file;
+    private final long windowStart;
+    private final Map<Long, Block> blocks;
+    private final long size;
+
+    private EventSegment(Path file, long windowStart, Map<Long, Block> blocks, long size) {
+        this.file = file;
+        this.windowStart = windowStart;
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+    // События должны быть упорядочены по пользователю и id.
+    // Файл пишется во временный, сбрасывается на диск и только потом переименовывается
+    static EventSegment write(Path file, long windowStart, List<Event> events) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<Long, Block> blocks = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            long offset = 0;
+            int from = 0;
+            while (from < events.size()) {
+                long userId = events.get(from).getUserId();
+                int to = from;
+                while (to < events.size() && events.get(to).getUserId() == userId) {
+                    to++;
+                }
+                byte[] block = compress(events.subList(from, to));
+                out.write(block);
+                blocks.put(userId, new Block(offset, block.length, to - from,
+                        events.get(from).getEventId(), events.get(to - 1).getEventId()));
+                offset += block.length;
+                from = to;
+            }
+            DataOutputStream footer = new DataOutputStream(out);
+            for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+                Block block = entry.getValue();
+                footer.writeLong(entry.getKey());
+                footer.writeLong(block.offset);
+                footer.writeInt(block.length);
+                footer.writeInt(block.count);
+                footer.writeLong(block.minEventId);
+                footer.writeLong(block.maxEventId);
+            }
+            footer.writeLong(offset);
+            footer.writeInt(blocks.size());
+            footer.writeInt(MAGIC);
+            footer.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        return new EventSegment(file, windowStart, blocks, Files.size(file));
+    }
+
+    static EventSegment open(Path file, long windowStart) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long footerOffset = trailer.getLong();
+            int count = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Повреждён сегмент событий: " + file);
+            }
+            ByteBuffer footer = read(channel, footerOffset, count * ENTRY_SIZE);
+            Map<Long, Block> blocks = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                blocks.put(footer.getLong(), new Block(footer.getLong(), footer.getInt(), footer.getInt(),
+                        footer.getLong(), footer.getLong()));
+            }
+            return new EventSegment(file, windowStart, blocks, size);
+        }
+    }
+
+    // Файл открывается на каждое чтение: общий канал закрылся бы при прерывании любого читающего потока
+    List<Event> read(long userId) throws IOException {
+        Block block = blocks.get(userId);
+        if (block == null) {
+            return List.of();
+        }
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = read(channel, block.offset, block.length);
+        }
+        List<Event> events = new ArrayList<>(block.count);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(data.array(), 0, block.length)))) {
+            for (int i = 0; i < block.count; i++) {
+                events.add(Event.builder()
+                        .eventId(in.readLong())
+                        .userId(userId)
+                        .entityId(in.readLong())
+                        .eventType(TYPES[in.readByte()])
+                        .operation(OPERATIONS[in.readByte()])
+                        .timestamp(in.readLong())
+                        .build());
+            }
+        }
+        return events;
+    }
+
+    // Все события сегмента, кроме событий пользователя skipUserId, по пользователям и id
+    List<Event> readAllExcept(long skipUserId) throws IOException {
+        List<Long> userIds = new ArrayList<>(blocks.keySet());
+        Collections.sort(userIds);
+        List<Event> events = new ArrayList<>();
+        for (Long userId : userIds) {
+            if (userId != skipUserId) {
+                events.addAll(read(userId));
+            }
+        }
+        return events;
+    }
+
+    Block getBlock(long userId) {
+        return blocks.get(userId);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    long getWindowStart() {
+        return windowStart;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getEventsCount() {
+        int count = 0;
+        for (Block block : blocks.values()) {
+            count += block.count;
+        }
+        return count;
+    }
+
+    private static byte[] compress(List<Event> events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            for (Event event : events) {
+                out.writeLong(event.getEventId());
+                out.writeLong(event.getEntityId());
+                out.writeByte(event.getEventType().ordinal());
+                out.writeByte(event.getOperation().ordinal());
+                out.writeLong(event.getTimestamp());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Сегмент событий обрывается на позиции " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static final class Block {
+        private final long offset;
+        private final int length;
+        private final int count;
+        private final long minEventId;
+        private final long maxEventId;
+
+        private Block(long offset, int length, int count, long minEventId, long maxEventId) {
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+            this.minEventId = minEventId;
+            this.maxEventId = maxEventId;
+        }
+
+        long getMinEventId() {
+            return minEventId;
+        }
+
+        long getMaxEventId() {
+            return maxEventId;
+        }
+    }
+}
@@ -1,29 +1,116 @@
 package ru.yandex.practicum.filmorate.storage.event.impl;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
 import ru.yandex.practicum.filmorate.model.Event;
 import ru.yandex.practicum.filmorate.model.enums.EventOperation;
 import ru.yandex.practicum.filmorate.model.enums.EventType;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
-import java.sql.PreparedStatement;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+// События пишутся асинхронно: вызывающий кладёт событие в ограниченную очередь,
+// отдельный поток вставляет накопившиеся события одним пакетом в одной транзакции.
+// Идентификаторы выдаются в памяти по порядку постановки в очередь (от максимального в таблице),
+// поэтому всё с id не больше записанного уже лежит в БД.
+// Лента пользователя перед чтением дожидается записи его последнего события.
+// При переполнении очереди событие либо ждёт места (BLOCK), либо отбрасывается со счётчиком (DROP),
+// отброшенное событие возвращается без id.
+// Записанные события передаются слушателям из потока записи.
+// Старые события лежат в архиве EventArchive, лента склеивает их со строками таблицы по id.
+// Используется по умолчанию, filmorate.events.storage=db.
 @Repository
+@ConditionalOnProperty(name = "filmorate.events.storage", havingValue = "db", matchIfMissing = true)
+@Slf4j
 public class DBEventStorage implements EventStorage {
+    private static final long FLUSH_TIMEOUT_MS = 5000;
+    private static final String INSERT_EVENT = "insert into EVENTS " +
+            "(event_id, entity_id, event_type, event_operation, timestamp, user_id) values (?, ?, ?, ?, ?, ?)";
+    private static final String EVENTS_SELECT = "SELECT EVENT_ID, USER_ID, ENTITY_ID, EVENT_TYPE, EVENT_OPERATION, " +
+            "TIMESTAMP FROM EVENTS ";
     private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EventArchive eventArchive;
+    private final EntityVersions entityVersions;
+    private final Counter droppedEvents;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<Event> queue;
+    private final Lock appendLock = new ReentrantLock();
+    private final Lock writtenLock = new ReentrantLock();
+    private final Condition writtenChanged = writtenLock.newCondition();
+    // Последнее ещё не записанное событие пользователя, поэтому размер не больше очереди с пакетом
+    private final Map<Long, Long> lastEventByUser = new ConcurrentHashMap<>();
+    private final List<Consumer<List<Event>>> listeners = new CopyOnWriteArrayList<>();
+    private long nextEventId;
+    private volatile long writtenEventId;
+    private volatile boolean running;
+    private ExecutorService writer;
 
     @Autowired
-    public DBEventStorage(JdbcTemplate jdbcTemplate) {
+    public DBEventStorage(JdbcTemplate jdbcTemplate,
+                          PlatformTransactionManager transactionManager,
+                          EventArchive eventArchive,
+                          EntityVersions entityVersions,
+                          MeterRegistry meterRegistry,
+                          @Value("${filmorate.events.queue-capacity:10000}") int queueCapacity,
+                          @Value("${filmorate.events.batch-size:500}") int batchSize,
+                          @Value("${filmorate.events.overflow:BLOCK}") OverflowPolicy overflowPolicy) {
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.eventArchive = eventArchive;
+        this.entityVersions = entityVersions;
+        this.droppedEvents = meterRegistry.counter("filmorate.events.dropped");
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        meterRegistry.gauge("filmorate.events.queue", queue, BlockingQueue::size);
+    }
+
+    @PostConstruct
+    public void start() {
+        Long maxId = jdbcTemplate.queryForObject("select coalesce(max(event_id), 0) from EVENTS", Long.class);
+        nextEventId = Math.max(maxId == null ? 0 : maxId, eventArchive.getMaxEventId()) + 1;
+        writtenEventId = nextEventId - 1;
+        running = true;
+        writer = BackgroundThreads.newSingleThread("events-writer");
+        writer.execute(this::writeLoop);
+    }
+
+    // Очередь дописывается до конца, но не дольше BackgroundThreads.STOP_TIMEOUT_MS
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        BackgroundThreads.stop(writer, "events-writer");
     }
 
     @Override
@@ -45,28 +132,181 @@ public class DBEventStorage implements EventStorage {
 
     @Override
     public Event saveEvent(Event event) {
-
-        String sql = "insert into EVENTS (entity_id, event_type, event_operation, timestamp, user_id)" +
-                " values (?, ?, ?, ?, ?)";
-
-        KeyHolder keyHolder = new GeneratedKeyHolder();
-        jdbcTemplate.update(connection -> {
-            PreparedStatement stmt = connection.prepareStatement(sql, new String[]{"event_id"});
-            stmt.setLong(1, event.getEntityId());
-            stmt.setString(2, event.getEventType().toString());
-            stmt.setString(3, event.getOperation().toString());
-            stmt.setLong(4, event.getTimestamp());
-            stmt.setLong(5, event.getUserId());
-            return stmt;
-        }, keyHolder);
-        event.setEventId(Objects.requireNonNull(keyHolder.getKey()).longValue());
+        appendLock.lock();
+        try {
+            event.setEventId(nextEventId);
+            if (overflowPolicy == OverflowPolicy.BLOCK) {
+                queue.put(event);
+            } else if (!queue.offer(event)) {
+                event.setEventId(null);
+                droppedEvents.increment();
+                log.warn("Очередь событий переполнена, событие отброшено: пользователь {}, {} {}",
+                        event.getUserId(), event.getEventType(), event.getOperation());
+                return event;
+            }
+            nextEventId++;
+            lastEventByUser.put(event.getUserId(), event.getEventId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Прервано ожидание места в очереди событий", e);
+        } finally {
+            appendLock.unlock();
+        }
+        // Версия ленты меняется сразу: чтение ленты всё равно дождётся записи события
+        entityVersions.feedChanged(event.getUserId());
         return event;
     }
 
     @Override
     public List<Event> getEventOfUser(long userId) {
-        String sql = "SELECT * FROM EVENTS WHERE USER_ID = ?";
-        return jdbcTemplate.query(sql, this::mapRowToEvent, userId);
+        awaitUserEvents(userId);
+        // Читается по убыванию, как лежит в индексе, и разворачивается
+        String sql = EVENTS_SELECT + "WHERE USER_ID = ? ORDER BY USER_ID, EVENT_ID DESC";
+        List<Event> events = jdbcTemplate.query(sql, this::mapRowToEvent, userId);
+        Collections.reverse(events);
+        return eventArchive.withArchived(userId, events, null, null, Integer.MAX_VALUE, true);
+    }
+
+    // Страница ленты по индексу (USER_ID, EVENT_ID DESC).
+    // H2 берёт порядок из индекса, только если ORDER BY начинается с USER_ID и совпадает с индексом по направлению,
+    // поэтому чтение назад (последние события, прокрутка ленты) читает не больше limit строк при любом размере ленты.
+    // Чтение вперёд (дочитывание потока после Last-Event-ID) проходит по индексу все события новее курсора
+    // и сортирует их: второго индекса по возрастанию ради него нет, разрыв обычно небольшой.
+    // afterEventId - события новее курсора, от старых к новым;
+    // beforeEventId или без курсоров - последние limit событий до курсора, тоже от старых к новым
+    @Override
+    public List<Event> getEventOfUser(long userId, Long afterEventId, Long beforeEventId, int limit) {
+        awaitUserEvents(userId);
+        List<Object> params = new ArrayList<>();
+        params.add(userId);
+        StringBuilder sql = new StringBuilder(EVENTS_SELECT).append("USE INDEX (IDX_EVENTS_USER) WHERE USER_ID = ? ");
+        if (afterEventId != null) {
+            sql.append("AND EVENT_ID > ? ");
+            params.add(afterEventId);
+        }
+        if (beforeEventId != null) {
+            sql.append("AND EVENT_ID < ? ");
+            params.add(beforeEventId);
+        }
+        boolean forward = afterEventId != null && beforeEventId == null;
+        sql.append(forward ? "ORDER BY USER_ID, EVENT_ID " : "ORDER BY USER_ID, EVENT_ID DESC ").append("LIMIT ?");
+        params.add(limit);
+        List<Event> events = jdbcTemplate.query(sql.toString(), this::mapRowToEvent, params.toArray());
+        if (!forward) {
+            Collections.reverse(events);
+        }
+        return eventArchive.withArchived(userId, events, afterEventId, beforeEventId, limit, forward);
+    }
+
+    @Override
+    public void addListener(Consumer<List<Event>> listener) {
+        listeners.add(listener);
+    }
+
+    private void awaitUserEvents(long userId) {
+        Long lastEventId = lastEventByUser.get(userId);
+        if (lastEventId != null) {
+            awaitWritten(lastEventId);
+        }
+    }
+
+    private void awaitWritten(long eventId) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        writtenLock.lock();
+        try {
+            while (writtenEventId < eventId) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    log.warn("Событие {} не записано за {} мс, лента читается без него", eventId, FLUSH_TIMEOUT_MS);
+                    return;
+                }
+                writtenChanged.awaitNanos(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writtenLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                List<Event> written = write(batch);
+                markWritten(batch.get(batch.size() - 1).getEventId());
+                for (Event event : batch) {
+                    lastEventByUser.remove(event.getUserId(), event.getEventId());
+                }
+                notifyListeners(written);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Ошибка записи событий", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private List<Event> write(List<Event> events) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert(events));
+            return List.copyOf(events);
+        } catch (RuntimeException e) {
+            // Например, пользователь удалён, пока его событие ждало в очереди
+            log.warn("Ошибка пакетной записи событий, запись по одному: {}", e.getMessage());
+            List<Event> written = new ArrayList<>(events.size());
+            for (Event event : events) {
+                try {
+                    insert(List.of(event));
+                    written.add(event);
+                } catch (RuntimeException single) {
+                    log.error("Событие {} пользователя {} не записано: {}",
+                            event.getEventId(), event.getUserId(), single.getMessage());
+                }
+            }
+            return written;
+        }
+    }
+
+    private void notifyListeners(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (Consumer<List<Event>> listener : listeners) {
+            try {
+                listener.accept(events);
+            } catch (RuntimeException e) {
+                log.error("Ошибка обработки записанных событий", e);
+            }
+        }
+    }
+
+    private void insert(List<Event> events) {
+        List<Object[]> batch = new ArrayList<>(events.size());
+        for (Event event : events) {
+            batch.add(new Object[]{event.getEventId(), event.getEntityId(), event.getEventType().toString(),
+                    event.getOperation().toString(), event.getTimestamp(), event.getUserId()});
+        }
+        jdbcTemplate.batchUpdate(INSERT_EVENT, batch);
+    }
+
+    private void markWritten(long eventId) {
+        writtenLock.lock();
+        try {
+            writtenEventId = eventId;
+            writtenChanged.signalAll();
+        } finally {
+            writtenLock.unlock();
+        }
     }
 
     private Event mapRowToEvent(ResultSet rs, int rowNum) throws SQLException {
@@ -78,4 +318,8 @@ public class DBEventStorage implements EventStorage {
                 .timestamp(rs.getLong("timestamp"))
                 .build();
     }
+
+    public enum OverflowPolicy {
+        BLOCK, DROP
+    }
 }
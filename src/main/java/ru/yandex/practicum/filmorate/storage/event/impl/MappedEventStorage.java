@@ -0,0 +1,463 @@
+package ru.yandex.practicum.filmorate.storage.event.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// События в отображённом в память файле: записи фиксированной длины только дописываются в конец.
+// Запись: id события, пользователь, объект, время, порядковые номера типа и операции, контрольная сумма.
+// Файл отображается кусками по chunkRecords записей и растёт по мере заполнения.
+// Для каждого пользователя в памяти хранятся номера его записей по возрастанию id,
+// поэтому лента и её страницы читаются без просмотра чужих событий.
+// При старте журнал читается до первой пустой или повреждённой записи (оборванная запись при сбое),
+// события удалённых пользователей и пользователей из сброшенной через data.sql базы в индекс не попадают.
+// Если такие события или оборванная запись нашлись, журнал сжимается: живые записи переписываются
+// во временный файл, который заменяет журнал. Последняя запись остаётся всегда, чтобы id продолжались после неё.
+// Записи сразу попадают в страничный кэш ОС и переживают падение процесса. На диск они сбрасываются
+// раз в forceIntervalMs и при остановке, поэтому при сбое ОС или питания теряются события не больше
+// чем за этот интервал; 0 - сброс после каждой записи.
+// Слушатели вызываются вне блокировки журнала, но по одному и в порядке id.
+// Включается настройкой filmorate.events.storage=mapped.
+@Repository
+@ConditionalOnProperty(name = "filmorate.events.storage", havingValue = "mapped")
+@Slf4j
+public class MappedEventStorage implements EventStorage {
+    static final int RECORD_SIZE = 40;
+    private static final int CHECKSUM_OFFSET = 36;
+    private static final EventType[] TYPES = EventType.values();
+    private static final EventOperation[] OPERATIONS = EventOperation.values();
+    private final JdbcTemplate jdbcTemplate;
+    private final EntityVersions entityVersions;
+    private final Path file;
+    private final int chunkRecords;
+    private final long forceIntervalMs;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final Map<Long, RecordList> userRecords = new HashMap<>();
+    private final List<Consumer<List<Event>>> listeners = new CopyOnWriteArrayList<>();
+    // Записанные, но ещё не переданные слушателям события в порядке id
+    private final Queue<Event> notifications = new ConcurrentLinkedQueue<>();
+    private final Lock notifyLock = new ReentrantLock();
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final CRC32 checksum = new CRC32();
+    private FileChannel channel;
+    private ScheduledExecutorService forceScheduler;
+    private long recordCount;
+    private volatile long forcedCount;
+    private long nextEventId;
+
+    @Autowired
+    public MappedEventStorage(JdbcTemplate jdbcTemplate,
+                              EntityVersions entityVersions,
+                              @Value("${filmorate.events.mapped.file:./db/events.log}") String file,
+                              @Value("${filmorate.events.mapped.chunk-records:1048576}") int chunkRecords,
+                              @Value("${filmorate.events.mapped.force-interval-ms:1000}") long forceIntervalMs) {
+        if (chunkRecords <= 0 || (long) chunkRecords * RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Недопустимый размер куска журнала событий: " + chunkRecords);
+        }
+        if (forceIntervalMs < 0) {
+            throw new IllegalArgumentException("Интервал сброса журнала событий не может быть отрицательным: "
+                    + forceIntervalMs);
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.entityVersions = entityVersions;
+        this.file = Paths.get(file);
+        this.chunkRecords = chunkRecords;
+        this.forceIntervalMs = forceIntervalMs;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Set<Long> users = new HashSet<>(jdbcTemplate.queryForList("select USER_ID from USERS", Long.class));
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        lock.writeLock().lock();
+        try {
+            open();
+            Recovery recovery = recover(users);
+            if (recovery.needsCompaction()) {
+                compact(users);
+                open();
+                recovery = recover(users);
+            }
+            forcedCount = recordCount;
+            log.info("Журнал событий {} восстановлен: {} записей, без пользователя {}", file, recordCount,
+                    recovery.skipped);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (forceIntervalMs > 0) {
+            forceScheduler = BackgroundThreads.newScheduler("events-force");
+            forceScheduler.scheduleWithFixedDelay(this::forceQuietly, forceIntervalMs, forceIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        try {
+            BackgroundThreads.stop(forceScheduler, "events-force");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            forcedCount = recordCount;
+            close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Event addEvent(long userId, EventType eventType, EventOperation eventOperation, long entityId) {
+        Event event = Event.builder().userId(userId)
+                .eventType(eventType)
+                .operation(eventOperation)
+                .entityId(entityId)
+                .timestamp(System.currentTimeMillis())
+                .build();
+        return saveEvent(event);
+    }
+
+    @Override
+    public Event saveEvent(Event event) {
+        lock.writeLock().lock();
+        try {
+            event.setEventId(nextEventId);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            buffer.putLong(event.getEventId())
+                    .putLong(event.getUserId())
+                    .putLong(event.getEntityId())
+                    .putLong(event.getTimestamp())
+                    .put((byte) event.getEventType().ordinal())
+                    .put((byte) event.getOperation().ordinal())
+                    .putShort((short) 0);
+            checksum.reset();
+            checksum.update(record, 0, CHECKSUM_OFFSET);
+            buffer.putInt((int) checksum.getValue());
+            ByteBuffer target = chunkFor(recordCount).duplicate();
+            target.position(offsetOf(recordCount));
+            target.put(record);
+            if (forceIntervalMs == 0) {
+                chunkFor(recordCount).force();
+            }
+            userRecords.computeIfAbsent(event.getUserId(), id -> new RecordList()).add(recordCount);
+            recordCount++;
+            nextEventId++;
+            // В очередь под блокировкой, чтобы слушатели получали события в порядке id
+            notifications.add(event);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        entityVersions.feedChanged(event.getUserId());
+        notifyListeners();
+        return event;
+    }
+
+    @Override
+    public List<Event> getEventOfUser(long userId) {
+        return getEventOfUser(userId, null, null, Integer.MAX_VALUE);
+    }
+
+    // Границы страницы ищутся двоичным поиском по id в записях пользователя, порядок как у DBEventStorage
+    @Override
+    public List<Event> getEventOfUser(long userId, Long afterEventId, Long beforeEventId, int limit) {
+        lock.readLock().lock();
+        try {
+            RecordList records = userRecords.get(userId);
+            if (records == null) {
+                return new ArrayList<>();
+            }
+            int from = afterEventId == null ? 0 : upperBound(records, afterEventId);
+            int to = beforeEventId == null ? records.size : lowerBound(records, beforeEventId);
+            if (to - from > limit) {
+                boolean forward = afterEventId != null && beforeEventId == null;
+                if (forward) {
+                    to = from + limit;
+                } else {
+                    from = to - limit;
+                }
+            }
+            List<Event> events = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                events.add(readEvent(records.numbers[i]));
+            }
+            return events;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addListener(Consumer<List<Event>> listener) {
+        listeners.add(listener);
+    }
+
+    // Очередь разбирает один поток; событие, добавленное после его выхода, разберёт следующая проверка
+    private void notifyListeners() {
+        while (!notifications.isEmpty() && notifyLock.tryLock()) {
+            try {
+                Event event;
+                while ((event = notifications.poll()) != null) {
+                    for (Consumer<List<Event>> listener : listeners) {
+                        try {
+                            listener.accept(List.of(event));
+                        } catch (RuntimeException e) {
+                            log.error("Ошибка обработки записанных событий", e);
+                        }
+                    }
+                }
+            } finally {
+                notifyLock.unlock();
+            }
+        }
+    }
+
+    // Сбрасывает на диск куски с записями после прошлого сброса; писатели при этом не ждут
+    private void force() {
+        List<MappedByteBuffer> dirty;
+        long count;
+        lock.readLock().lock();
+        try {
+            count = recordCount;
+            if (count == forcedCount) {
+                return;
+            }
+            dirty = new ArrayList<>(chunks.subList((int) (forcedCount / chunkRecords),
+                    (int) ((count - 1) / chunkRecords) + 1));
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (MappedByteBuffer chunk : dirty) {
+            chunk.force();
+        }
+        forcedCount = count;
+    }
+
+    private void forceQuietly() {
+        try {
+            force();
+        } catch (RuntimeException e) {
+            log.error("Ошибка сброса журнала событий на диск", e);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private void close() throws IOException {
+        chunks.clear();
+        userRecords.clear();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Читает журнал до первой пустой или повреждённой записи и строит индекс живых пользователей
+    private Recovery recover(Set<Long> users) throws IOException {
+        Recovery recovery = new Recovery();
+        long records = channel.size() / RECORD_SIZE;
+        recordCount = 0;
+        nextEventId = 1;
+        while (recordCount < records) {
+            ByteBuffer chunk = chunkFor(recordCount);
+            int offset = offsetOf(recordCount);
+            long eventId = chunk.getLong(offset);
+            if (eventId == 0 || !isValid(chunk, offset)) {
+                recovery.damaged = eventId != 0;
+                break;
+            }
+            long userId = chunk.getLong(offset + 8);
+            recovery.lastSkipped = !users.contains(userId);
+            if (recovery.lastSkipped) {
+                recovery.skipped++;
+            } else {
+                userRecords.computeIfAbsent(userId, id -> new RecordList()).add(recordCount);
+            }
+            nextEventId = eventId + 1;
+            recordCount++;
+        }
+        return recovery;
+    }
+
+    // Переписывает живые записи и последнюю запись во временный файл и подменяет им журнал
+    private void compact(Set<Long> users) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long kept = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            for (long number = 0; number < recordCount; number++) {
+                ByteBuffer chunk = chunks.get((int) (number / chunkRecords));
+                int offset = offsetOf(number);
+                if (!users.contains(chunk.getLong(offset + 8)) && number + 1 < recordCount) {
+                    continue;
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    writeFully(out, buffer);
+                }
+                ByteBuffer source = chunk.duplicate();
+                source.position(offset).limit(offset + RECORD_SIZE);
+                buffer.put(source);
+                kept++;
+            }
+            buffer.flip();
+            writeFully(out, buffer);
+            out.force(true);
+        }
+        long before = recordCount;
+        close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Журнал событий {} сжат: {} записей из {}", file, kept, before);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Кусок файла с записью number; при заполнении последнего куска отображается следующий
+    private MappedByteBuffer chunkFor(long number) {
+        int index = (int) (number / chunkRecords);
+        while (chunks.size() <= index) {
+            long position = (long) chunks.size() * chunkRecords * RECORD_SIZE;
+            try {
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) chunkRecords * RECORD_SIZE));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Не удалось отобразить журнал событий " + file, e);
+            }
+        }
+        return chunks.get(index);
+    }
+
+    private int offsetOf(long number) {
+        return (int) (number % chunkRecords) * RECORD_SIZE;
+    }
+
+    private boolean isValid(ByteBuffer chunk, int offset) {
+        byte[] bytes = new byte[CHECKSUM_OFFSET];
+        for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+            bytes[i] = chunk.get(offset + i);
+        }
+        checksum.reset();
+        checksum.update(bytes, 0, CHECKSUM_OFFSET);
+        return (int) checksum.getValue() == chunk.getInt(offset + CHECKSUM_OFFSET);
+    }
+
+    private long eventIdOf(long number) {
+        return chunks.get((int) (number / chunkRecords)).getLong(offsetOf(number));
+    }
+
+    private Event readEvent(long number) {
+        ByteBuffer chunk = chunks.get((int) (number / chunkRecords));
+        int offset = offsetOf(number);
+        return Event.builder()
+                .eventId(chunk.getLong(offset))
+                .userId(chunk.getLong(offset + 8))
+                .entityId(chunk.getLong(offset + 16))
+                .timestamp(chunk.getLong(offset + 24))
+                .eventType(TYPES[chunk.get(offset + 32)])
+                .operation(OPERATIONS[chunk.get(offset + 33)])
+                .build();
+    }
+
+    // Первая запись с id больше eventId
+    private int upperBound(RecordList records, long eventId) {
+        int low = 0;
+        int high = records.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (eventIdOf(records.numbers[middle]) <= eventId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Первая запись с id не меньше eventId
+    private int lowerBound(RecordList records, long eventId) {
+        int low = 0;
+        int high = records.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (eventIdOf(records.numbers[middle]) < eventId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Номера записей пользователя в порядке добавления
+    private static final class RecordList {
+        private long[] numbers = new long[4];
+        private int size;
+
+        private void add(long number) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = number;
+        }
+    }
+
+    private static final class Recovery {
+        // События удалённых пользователей
+        private long skipped;
+        private boolean lastSkipped;
+        // После последней целой записи осталась оборванная
+        private boolean damaged;
+
+        // Последняя запись остаётся в журнале и после сжатия, ради неё журнал не переписывается
+        private boolean needsCompaction() {
+            return damaged || skipped > (lastSkipped ? 1 : 0);
+        }
+    }
+}
@@ -4,11 +4,16 @@ import ru.yandex.practicum.filmorate.model.Film;
 
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
 
     List<Film> getFilms();
 
+    List<Film> getFilms(long afterId, int limit);
+
+    void streamFilms(Consumer<Film> consumer);
+
     Film createFilm(Film film);
 
     Film updateFilm(Film film);
@@ -23,7 +28,7 @@ public interface FilmStorage {
 
     Film getFilm(long id);
 
-    List<Film> getDirectorsFilms(long directorId, Set<String> sortBy);
+    List<Film> getDirectorsFilms(long directorId, Set<String> sortBy, int offset, Integer limit);
 
     Film deleteFilm(long id);
 
@@ -32,4 +37,6 @@ public interface FilmStorage {
     List<Film> getFilmsBySearch(String query, String by);
 
     List<Film> getRecommendationsByUserId(long id);
+
+    List<Film> getFilmsInOrder(List<Long> ids);
 }
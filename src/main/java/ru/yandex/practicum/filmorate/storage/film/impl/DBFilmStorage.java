@@ -3,25 +3,29 @@ package ru.yandex.practicum.filmorate.storage.film.impl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.exception.SQLWorkException;
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
-import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.storage.AfterCommit;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.function.Consumer;
 
 @Component("DBFilmStorage")
 @Primary
@@ -32,20 +36,42 @@ public class DBFilmStorage implements FilmStorage {
     private static final String GENRE_ID = "GENRE_ID";
     private static final String DIRECTOR_ID = "DIRECTOR_ID";
     private static final String NAME = "NAME";
-    private static final String MPA_NAME = "MPA_NAME";
     private static final String DESCRIPTION = "DESCRIPTION";
-    private static final String MPA_DESCRIPTION = "MPA_DESCRIPTION";
     private static final String RELEASEDATE = "RELEASEDATE";
     private static final String DURATION = "DURATION";
     private static final String CNT = "CNT";
+    private static final String MARK = "MARK";
+    private static final String DIRECTOR_NAME = "DIRECTOR_NAME";
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final String FILMS_SELECT = "select f.FILM_ID, f.MPA_ID, f.NAME, f.DESCRIPTION, " +
+            "f.RELEASEDATE, f.DURATION, " +
+            "r.RATING as CNT " +
+            "from FILMS as f " +
+            "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID ";
+    private static final String GENRES_INSERT = "insert into FILMS_GENRES (FILM_ID, GENRE_ID) values (?, ?)";
+    private static final String DIRECTORS_INSERT = "insert into FILMS_DIRECTORS (FILM_ID, DIRECTOR_ID) values (?, ?)";
     private final JdbcTemplate jdbcTemplate;
-    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final PopularityIndex popularityIndex;
+    private final SearchIndex searchIndex;
+    private final SuggestIndex suggestIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final ReferenceDataRegistry referenceData;
+    private final LikeWriteBuffer likeBuffer;
 
     public DBFilmStorage(JdbcTemplate jdbcTemplate,
-                         NamedParameterJdbcTemplate namedParameterJdbcTemplate) {
+                         PopularityIndex popularityIndex,
+                         SearchIndex searchIndex,
+                         SuggestIndex suggestIndex,
+                         RecommendationIndex recommendationIndex,
+                         ReferenceDataRegistry referenceData,
+                         LikeWriteBuffer likeBuffer) {
         this.jdbcTemplate = jdbcTemplate;
-        this.namedJdbcTemplate = namedParameterJdbcTemplate;
-
+        this.popularityIndex = popularityIndex;
+        this.searchIndex = searchIndex;
+        this.suggestIndex = suggestIndex;
+        this.recommendationIndex = recommendationIndex;
+        this.referenceData = referenceData;
+        this.likeBuffer = likeBuffer;
     }
 
     @Override
@@ -56,22 +82,48 @@ public class DBFilmStorage implements FilmStorage {
                 "       f.DESCRIPTION, " +
                 "       f.RELEASEDATE, " +
                 "       f.DURATION, " +
-                "       m.NAME as MPA_NAME, " +
-                "       m.DESCRIPTION as MPA_DESCRIPTION, " +
-                "       AVG (fl.MARK) as CNT " +
+                "       r.RATING as CNT " +
                 "from FILMS as f " +
-                "left join MPAS as m on f.MPA_ID = M.MPA_ID " +
-                "left join FILMS_LIKES as fl on f.FILM_ID = FL.FILM_ID " +
-                "group by f.FILM_ID;";
+                "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID;";
 
         List<Film> films = jdbcTemplate.query(sqlQuery2, (rs, rowNum) -> makeFilmOptimized(rs));
-        for (Film film : films) {
-            setAdvFilmDataLow(film);
-        }
+        setAdvFilmData(films);
+        return films;
+    }
+
+    @Override
+    public List<Film> getFilms(long afterId, int limit) {
+        String sqlQuery = FILMS_SELECT +
+                "where f.FILM_ID > ? " +
+                "order by f.FILM_ID " +
+                "limit ?";
+        List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), afterId, limit);
+        setAdvFilmData(films);
         return films;
     }
 
+    // Фильмы читаются курсором порциями по STREAM_FETCH_SIZE, жанры и режиссёры догружаются на порцию
     @Override
+    public void streamFilms(Consumer<Film> consumer) {
+        String sqlQuery = FILMS_SELECT + "order by f.FILM_ID";
+        List<Film> chunk = new ArrayList<>(STREAM_FETCH_SIZE);
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(sqlQuery);
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            return stmt;
+        }, rs -> {
+            chunk.add(makeFilmOptimized(rs));
+            if (chunk.size() == STREAM_FETCH_SIZE) {
+                flushChunk(chunk, consumer);
+            }
+        });
+        flushChunk(chunk, consumer);
+    }
+
+    // Фильм, рейтинг и связи пишутся в одной транзакции, связи - пакетами.
+    // Ответ собирается из записанных данных без повторного чтения фильма
+    @Override
+    @Transactional
     public Film createFilm(Film film) {
         String filmQuery = "insert into FILMS (MPA_ID, NAME, DESCRIPTION, RELEASEDATE, DURATION) values (?, ?, ?, ?, ? )";
         KeyHolder keyHolder = new GeneratedKeyHolder();
@@ -90,24 +142,20 @@ public class DBFilmStorage implements FilmStorage {
             log.warn("Ошибка создания фильма" + e.getMessage());
             throw new SQLWorkException("Ошибка создания фильма");
         }
-        if (film.getGenres() != null && !film.getGenres().isEmpty()) {
-            String sqlQuery = "insert into FILMS_GENRES (FILM_ID, GENRE_ID) values (?, ?)";
-            for (Genre genre : film.getGenres()) {
-                jdbcTemplate.update(sqlQuery, film.getId(), genre.getId());
-            }
-        }
-        if (film.getDirectors() != null && !film.getDirectors().isEmpty()) {
-            List<Object[]> batch = new ArrayList<>();
-            for (Director director : film.getDirectors()) {
-                Object[] values = new Object[]{film.getId(), director.getId()};
-                batch.add(values);
-            }
-            jdbcTemplate.batchUpdate("insert into FILMS_DIRECTORS(FILM_ID, DIRECTOR_ID) values (?, ?)", batch);
-        }
-        return getFilm(film.getId());
+        jdbcTemplate.update("insert into FILMS_RATINGS (FILM_ID) values (?)", film.getId());
+        Set<Long> genreIds = getGenreIds(film);
+        Set<Long> directorIds = getDirectorIds(film);
+        batchLinks(GENRES_INSERT, film.getId(), genreIds);
+        batchLinks(DIRECTORS_INSERT, film.getId(), directorIds);
+        Film created = makeWrittenFilm(film, genreIds, directorIds, 0);
+        putToIndexes(created);
+        return created;
     }
 
+    // Связи с жанрами и режиссёрами не пересоздаются целиком: удаляются и добавляются только отличия.
+    // Строка фильма блокируется первым же update, поэтому параллельное изменение того же фильма ждёт
     @Override
+    @Transactional
     public Film updateFilm(Film film) {
         String sqlQuery = "update FILMS set MPA_ID=?, NAME=?, DESCRIPTION=?, RELEASEDATE=?, DURATION=? where FILM_ID=?";
         jdbcTemplate.update(sqlQuery,
@@ -117,9 +165,26 @@ public class DBFilmStorage implements FilmStorage {
                 film.getReleaseDate(),
                 film.getDuration(),
                 film.getId());
-        setGenresDataForFilm(film);
-        setDirectorsDataForFilm(film);
-        return getFilm(film.getId());
+        Set<Long> oldGenreIds = new HashSet<>();
+        Set<Long> oldDirectorIds = new HashSet<>();
+        String linksQuery = "select GENRE_ID as LINK_ID, true as IS_GENRE from FILMS_GENRES where FILM_ID=? " +
+                "union all " +
+                "select DIRECTOR_ID, false from FILMS_DIRECTORS where FILM_ID=?";
+        jdbcTemplate.query(linksQuery, rs -> {
+            (rs.getBoolean("IS_GENRE") ? oldGenreIds : oldDirectorIds).add(rs.getLong("LINK_ID"));
+        }, film.getId(), film.getId());
+        Set<Long> genreIds = getGenreIds(film);
+        Set<Long> directorIds = getDirectorIds(film);
+        batchLinks("delete from FILMS_GENRES where FILM_ID=? and GENRE_ID=?", film.getId(),
+                difference(oldGenreIds, genreIds));
+        batchLinks("delete from FILMS_DIRECTORS where FILM_ID=? and DIRECTOR_ID=?", film.getId(),
+                difference(oldDirectorIds, directorIds));
+        batchLinks(GENRES_INSERT, film.getId(), difference(genreIds, oldGenreIds));
+        batchLinks(DIRECTORS_INSERT, film.getId(), difference(directorIds, oldDirectorIds));
+        Film updated = makeWrittenFilm(film, genreIds, directorIds,
+                popularityIndex.getRating(film.getId()));
+        putToIndexes(updated);
+        return updated;
     }
 
     @Override
@@ -134,103 +199,85 @@ public class DBFilmStorage implements FilmStorage {
     }
 
     @Override
+    @Transactional
     public Film setLikeToFilm(long id, long userId, int mark) {
+        Double oldMark = lockRatingAndGetMark(id, userId);
         String sqlQuery = "merge into FILMS_LIKES (FILM_ID, USER_ID, MARK) values (?, ?, ?)";
         jdbcTemplate.update(sqlQuery, id, userId, mark);
+        double marksDelta = oldMark == null ? mark : mark - oldMark;
+        int countDelta = oldMark == null ? 1 : 0;
+        updateRating(id, marksDelta, countDelta);
+        AfterCommit.run(() -> {
+            popularityIndex.addMark(id, marksDelta, countDelta);
+            syncMark(id, userId);
+        });
         return getFilm(id);
     }
 
     @Override
+    @Transactional
     public Film deleteLikeFromFilm(long id, long userId) {
-        String sqlQuery = "delete from FILMS_LIKES where FILM_ID=? and USER_ID=?";
-        jdbcTemplate.update(sqlQuery, id, userId);
+        Double oldMark = lockRatingAndGetMark(id, userId);
+        if (oldMark != null) {
+            String sqlQuery = "delete from FILMS_LIKES where FILM_ID=? and USER_ID=?";
+            jdbcTemplate.update(sqlQuery, id, userId);
+            updateRating(id, -oldMark, -1);
+            AfterCommit.run(() -> {
+                popularityIndex.addMark(id, -oldMark, -1);
+                syncMark(id, userId);
+            });
+        }
         return getFilm(id);
     }
 
     @Override
     public List<Film> getPopularFilms(Integer count, Integer genreId, Integer year) {
-        String sqlQuery = "SELECT F.FILM_ID, F.MPA_ID, F.NAME, F.DESCRIPTION, F.RELEASEDATE, F.DURATION, "
-                + "(SUM (MARK) / COUNT(USER_ID)) as CNT, "
-                + "m.NAME as MPA_NAME, m.DESCRIPTION as MPA_DESCRIPTION "
-                + "from FILMS as F "
-                + "LEFT JOIN FILMS_LIKES L on F.FILM_ID = L.FILM_ID "
-                + "LEFT JOIN MPAS as m on F.MPA_ID = m.MPA_ID "
-                + "%s "
-                + "WHERE %s "
-                + "GROUP BY F.FILM_ID %s "
-                + "ORDER BY CNT desc "
-                + "LIMIT ?";
-        String joinGenresQuery = genreId > 0 ? "LEFT JOIN FILMS_GENRES FG on F.FILM_ID = FG.FILM_ID " : "";
-        String whereCondition;
-        String groupByGenre = "";
-        if (genreId > 0 && year > 0) {
-            whereCondition = "FG.GENRE_ID=? AND EXTRACT(YEAR FROM F.RELEASEDATE)=?";
-            groupByGenre = ", FG.GENRE_ID";
-        } else if (genreId > 0) {
-            whereCondition = "FG.GENRE_ID=?";
-            groupByGenre = ", FG.GENRE_ID";
-        } else if (year > 0) {
-            whereCondition = "EXTRACT(YEAR FROM F.RELEASEDATE)=?";
-        } else {
-            whereCondition = "1=1";
-        }
-        String formattedSql = String.format(sqlQuery, joinGenresQuery, whereCondition, groupByGenre);
-        List<Object> queryParams = new ArrayList<>();
-        if (genreId > 0) queryParams.add(genreId);
-        if (year > 0) queryParams.add(year);
-        queryParams.add(count);
-        List<Film> films = jdbcTemplate.query(formattedSql, (rs, rowNum) -> makeFilmOptimized(rs), queryParams.toArray());
-        for (Film film : films) {
-            setAdvFilmDataLow(film);
-        }
-        return films;
+        return getFilmsInOrder(popularityIndex.getTop(count, genreId, year));
     }
 
     @Override
     public Film getFilm(long id) {
-        String sqlQuery = "select * from FILMS where FILM_ID=?";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id);
-        if (userRows.next()) {
-            return new Film(userRows.getLong(FILM_ID),
-                    userRows.getString(NAME),
-                    userRows.getString(DESCRIPTION),
-                    Objects.requireNonNull(userRows.getDate(RELEASEDATE)).toLocalDate(),
-                    userRows.getInt(DURATION),
-                    getMpaDataByMpaId(userRows.getLong(MPA_ID)),
-                    getGenresDataForFilm(userRows.getLong(FILM_ID)),
-                    getDirectorsForFilm(userRows.getLong(FILM_ID)),
-                    getRating(userRows.getLong(FILM_ID)));
-        }
-        return null;
+        String sqlQuery = "select f.FILM_ID, f.MPA_ID, f.NAME, f.DESCRIPTION, f.RELEASEDATE, f.DURATION, " +
+                "r.RATING as CNT, " +
+                "fg.GENRE_ID, fd.DIRECTOR_ID, d.NAME as DIRECTOR_NAME " +
+                "from FILMS as f " +
+                "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID " +
+                "left join FILMS_GENRES as fg on f.FILM_ID = fg.FILM_ID " +
+                "left join FILMS_DIRECTORS as fd on f.FILM_ID = fd.FILM_ID " +
+                "left join DIRECTORS as d on fd.DIRECTOR_ID = d.DIRECTOR_ID " +
+                "where f.FILM_ID=?";
+        return jdbcTemplate.query(sqlQuery, this::makeFullFilm, id);
     }
 
     @Override
     public Film deleteFilm(long id) {
         Film film = getFilm(id);
+        // Связь с режиссёрами объявлена без каскадного удаления
+        jdbcTemplate.update("delete from FILMS_DIRECTORS where FILM_ID=?", id);
         String sqlQuery = "delete from FILMS where FILM_ID=?";
         jdbcTemplate.update(sqlQuery, id);
+        popularityIndex.removeFilm(id);
+        searchIndex.removeFilm(id);
+        suggestIndex.removeFilm(id);
+        recommendationIndex.removeFilm(id);
         return film;
     }
 
+    // По убыванию числа оценок, в поле rating - тоже число оценок, как отвечал /films/common раньше
     @Override
     public List<Film> getCommonFilms(long userId, long friendId) {
-        String sqlQuery = "select f.FILM_ID, f.MPA_ID, f.NAME, f.DESCRIPTION, f.RELEASEDATE, f.DURATION, " +
-                "m.NAME AS MPA_NAME, m.DESCRIPTION as MPA_DESCRIPTION, count(flc.USER_ID) as CNT " +
-                "from FILMS as f " +
-                "inner join FILMS_LIKES as l1 ON f.FILM_ID = l1.FILM_ID and l1.USER_ID = ? and l1.MARK > 5 " +
-                "join FILMS_LIKES as l2 ON l1.FILM_ID = l2.FILM_ID and l2.USER_ID = ? and l2.MARK > 5 " +
-                "left join MPAS as m ON m.MPA_ID = f.MPA_ID " +
-                "left join FILMS_LIKES as flc ON flc.FILM_ID = f.FILM_ID " +
-                "group by f.FILM_ID";
-        List<Film> result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), userId, friendId);
-        for (Film film : result) {
-            setAdvFilmDataLow(film);
+        List<Long> ids = recommendationIndex.getCommonFilms(userId, friendId);
+        ids.sort(Comparator.comparingInt((Long id) -> popularityIndex.getMarksCount(id)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        List<Film> films = getFilmsInOrder(ids);
+        for (Film film : films) {
+            film.setRating(popularityIndex.getMarksCount(film.getId()));
         }
-        return result;
+        return films;
     }
 
     @Override
-    public List<Film> getDirectorsFilms(long directorId, Set<String> sortBy) {
+    public List<Film> getDirectorsFilms(long directorId, Set<String> sortBy, int offset, Integer limit) {
         boolean likes = false;
         boolean year = false;
 
@@ -243,53 +290,42 @@ public class DBFilmStorage implements FilmStorage {
                 }
             }
         }
-        SqlParameterSource parameters = new MapSqlParameterSource("ids", getFilmsIdsForDirector(directorId));
         String sqlQuery = "select f.FILM_ID, " +
                 "       f.MPA_ID, " +
                 "       f.NAME, " +
                 "       f.DESCRIPTION, " +
                 "       f.RELEASEDATE, " +
                 "       f.DURATION, " +
-                "       m.NAME as MPA_NAME, " +
-                "       m.DESCRIPTION as MPA_DESCRIPTION, " +
-                "       AVG (fl.MARK) as CNT " +
-                "from FILMS as f " +
-                "left join MPAS as m on f.MPA_ID = M.MPA_ID " +
-                "left join FILMS_LIKES as fl on f.FILM_ID = FL.FILM_ID " +
-                "where f.FILM_ID in (:ids) " +
-                "group by f.FILM_ID ";
+                "       r.RATING as CNT " +
+                "from FILMS_DIRECTORS as fd " +
+                "join FILMS as f on f.FILM_ID = fd.FILM_ID " +
+                "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID " +
+                "where fd.DIRECTOR_ID = ? ";
         if (year && likes) {
-            sqlQuery += "order by f.RELEASEDATE, CNT ";
+            sqlQuery += "order by f.RELEASEDATE, CNT, f.FILM_ID ";
         } else if (year) {
-            sqlQuery += "order by f.RELEASEDATE ";
+            sqlQuery += "order by f.RELEASEDATE, f.FILM_ID ";
         } else if (likes) {
-            sqlQuery += "order by CNT ";
+            sqlQuery += "order by CNT, f.FILM_ID ";
+        } else {
+            sqlQuery += "order by f.FILM_ID ";
         }
-        List<Film> result = namedJdbcTemplate.query(sqlQuery, parameters, (rs, rowNum) -> makeFilmOptimized(rs));
-        for (Film film : result) {
-            setAdvFilmDataLow(film);
+        sqlQuery += "offset ? rows";
+        List<Film> result;
+        if (limit == null) {
+            result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), directorId, offset);
+        } else {
+            sqlQuery += " fetch first ? rows only";
+            result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), directorId, offset, limit);
         }
+        setAdvFilmData(result);
         return result;
     }
 
     @Override
     public List<Film> getFilmsBySearch(String query, String by) {
-        List<Film> result = new ArrayList<>();
         boolean director = false;
         boolean title = false;
-
-        String modQuery = "%" + query + "%";
-        String sqlQuery = "SELECT f.film_id, f.mpa_id, f.name, f.description, f.releaseDate, f.duration, " +
-                "m.NAME as MPA_NAME, m.DESCRIPTION as MPA_DESCRIPTION, " +
-                "AVG (fl.MARK) as CNT, " +
-                "COUNT(fl.USER_ID) as num_mark " +
-                "FROM FILMS AS f " +
-                "LEFT JOIN FILMS_LIKES AS fl ON f.film_id = fl.film_id " +
-                "LEFT JOIN FILMS_DIRECTORS AS fd ON fd.film_id = f.film_id " +
-                "LEFT JOIN DIRECTORS AS d ON d.director_id = fd.director_id " +
-                "LEFT JOIN MPAS AS m ON m.MPA_ID = f.MPA_ID " +
-                "WHERE %s " +
-                "GROUP BY f.film_id ORDER BY num_mark DESC";
         for (String str : by.split(",")) {
             if (str.equals("director")) {
                 director = true;
@@ -297,122 +333,110 @@ public class DBFilmStorage implements FilmStorage {
                 title = true;
             }
         }
-        if (title && director) {
-            sqlQuery = String.format(sqlQuery, "f.NAME ILIKE ? or d.NAME ILIKE ? ");
-            result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), modQuery, modQuery);
-        } else if (director) {
-            sqlQuery = String.format(sqlQuery, "d.NAME ILIKE ? ");
-            result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), modQuery);
-        } else if (title) {
-            sqlQuery = String.format(sqlQuery, "f.NAME ILIKE ?");
-            result = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs), modQuery);
-        }
-        for (Film film : result) {
-            setAdvFilmDataLow(film);
-        }
-        return result;
+        List<Long> ids = new ArrayList<>(searchIndex.search(query, title, director));
+        ids.sort(Comparator.comparingInt((Long id) -> popularityIndex.getMarksCount(id)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        return getFilmsInOrder(ids);
     }
 
     @Override
     public List<Film> getRecommendationsByUserId(long id) {
-        final String sqlQuery = "select distinct FILM_ID, AVG (MARK) as RATE " +
-                "from FILMS_LIKES " +
-                "where FILM_ID not in (select FILM_ID " +
-                "                      from FILMS_LIKES " +
-                "                      where USER_ID = ?) " +
-                "  and USER_ID in (select USER_ID " +
-                "                  from (select USER_ID, COUNT(FILM_ID) as COUNT_FILM " +
-                "                        from FILMS_LIKES " +
-                "                        where USER_ID != ? and MARK > 5 " +
-                "                        and FILM_ID in (select FILM_ID " +
-                "                                        from FILMS_LIKES " +
-                "                                        where MARK > 5 " +
-                "                                        and FILM_ID  in (select FILM_ID " +
-                "                                                         from FILMS_LIKES " +
-                "                                                         where mark > 5 and USER_ID = ?)) " +
-                "                        group by USER_ID) as CF " +
-                "                  where COUNT_FILM = (select MAX(COUNT_FILM))) " +
-                "group by FILM_ID " +
-                "having RATE > 5";
-        List<Long> filmIds = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmId(rs), id, id, id);
-        return getFilmsByIds(filmIds);
-    }
-
-    private Set<Long> getFilmsIdsForDirector(long directorId) {
-        String sqlQuery = "select FILM_ID from FILMS_DIRECTORS where DIRECTOR_ID=?";
-        List<Long> films = (jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmId(rs), directorId));
-        if (films.isEmpty()) {
-            return new HashSet<>();
-        } else {
-            return new HashSet<>(films);
-        }
+        return getFilmsInOrder(recommendationIndex.recommend(id));
     }
 
+    // Id передаются массивом через table(ID BIGINT = ?) - синтаксис H2. В отличие от IN (...) соединение
+    // повторяет строку для повторного id, поэтому повторы убираются заранее: каждый фильм возвращается один раз,
+    // порядок строк не определён, как и с IN
     private List<Film> getFilmsByIds(List<Long> ids) {
-        SqlParameterSource parameters = new MapSqlParameterSource("ids", ids);
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
         String sqlQuery = "select f.FILM_ID, " +
                 "       f.MPA_ID, " +
                 "       f.NAME, " +
                 "       f.DESCRIPTION, " +
                 "       f.RELEASEDATE, " +
                 "       f.DURATION, " +
-                "       m.NAME as MPA_NAME, " +
-                "       m.DESCRIPTION as MPA_DESCRIPTION, " +
-                "       AVG (fl.MARK) as CNT " +
-                "from FILMS as f " +
-                "left join MPAS as m on f.MPA_ID = M.MPA_ID " +
-                "left join FILMS_LIKES as fl on f.FILM_ID = FL.FILM_ID " +
-                "where f.FILM_ID in (:ids) " +
-                "group by f.FILM_ID";
-        sqlQuery = String.format(sqlQuery, ids);
-        List<Film> films = namedJdbcTemplate.query(sqlQuery, parameters, (rs, rowNum) -> makeFilmOptimized(rs));
-        for (Film film : films) {
-            setAdvFilmDataLow(film);
-        }
+                "       r.RATING as CNT " +
+                "from table(ID BIGINT = ?) as ids " +
+                "join FILMS as f on f.FILM_ID = ids.ID " +
+                "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID";
+        List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFilmOptimized(rs),
+                (Object) new LinkedHashSet<>(ids).toArray(new Long[0]));
+        setAdvFilmData(films);
         return films;
     }
 
-    private Long makeFilmId(ResultSet rs) {
-        try {
-            return rs.getLong(FILM_ID);
-        } catch (SQLException e) {
-            log.warn("Ошибка получения id: {}", e.getMessage());
-            throw new SQLWorkException("Ошибка получения id");
+    // Оценка в матрице рекомендаций берётся из БД после фиксации: параллельные изменения одной оценки
+    // могут выполнять это действие не в порядке фиксации, а прочитанное значение всегда последнее.
+    // Разницы для рейтинга от порядка не зависят, поэтому индекс популярности правится ими
+    private void syncMark(long id, long userId) {
+        List<Double> marks = jdbcTemplate.queryForList("select MARK from FILMS_LIKES where FILM_ID=? and USER_ID=?",
+                Double.class, id, userId);
+        if (marks.isEmpty()) {
+            recommendationIndex.removeMark(userId, id);
+        } else {
+            recommendationIndex.putMark(userId, id, marks.get(0));
         }
     }
 
-
-    private Mpa getMpaDataByMpaId(Long id) {
-        String sqlQuery = "select NAME, DESCRIPTION from MPAS where MPA_ID=?";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id);
-        if (userRows.next()) {
-            return new Mpa(id, userRows.getString(NAME), userRows.getString(DESCRIPTION));
+    // Блокирует агрегат фильма до конца транзакции и возвращает текущую оценку пользователя
+    private Double lockRatingAndGetMark(long id, long userId) {
+        jdbcTemplate.queryForRowSet("select FILM_ID from FILMS_RATINGS where FILM_ID=? for update", id);
+        String sqlQuery = "select MARK from FILMS_LIKES where FILM_ID=? and USER_ID=?";
+        SqlRowSet markRows = jdbcTemplate.queryForRowSet(sqlQuery, id, userId);
+        if (markRows.next()) {
+            return markRows.getDouble(MARK);
         }
         return null;
     }
 
-    private Double getRating(long id) {
-        String sqlQuery = "select AVG(MARK) as CNT from FILMS_LIKES where FILM_ID=?";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id);
-        if (userRows.next()) {
-            return userRows.getDouble("CNT");
+    private void flushChunk(List<Film> chunk, Consumer<Film> consumer) {
+        setAdvFilmData(chunk);
+        chunk.forEach(consumer);
+        chunk.clear();
+    }
+
+    private void putToIndexes(Film film) {
+        List<Long> genreIds = new ArrayList<>();
+        if (film.getGenres() != null) {
+            for (Genre genre : film.getGenres()) {
+                genreIds.add(genre.getId());
+            }
+        }
+        List<Long> directorIds = new ArrayList<>();
+        if (film.getDirectors() != null) {
+            for (Director director : film.getDirectors()) {
+                directorIds.add(director.getId());
+            }
         }
-        return 0.0;
+        popularityIndex.putFilm(film.getId(), film.getReleaseDate().getYear(), genreIds);
+        searchIndex.putFilm(film.getId(), film.getName(), directorIds);
+        suggestIndex.putFilm(film.getId(), film.getName());
     }
 
-    private Set<Director> getDirectorsForFilm(long id) {
-        String sqlQuery = "select f.DIRECTOR_ID, d.NAME from FILMS_DIRECTORS AS f " +
-                "left join DIRECTORS AS d ON f.DIRECTOR_ID = d.DIRECTOR_ID " +
+    private void updateRating(long id, double marksDelta, int countDelta) {
+        String sqlQuery = "update FILMS_RATINGS set MARKS_SUM = MARKS_SUM + ?, MARKS_COUNT = MARKS_COUNT + ? " +
                 "where FILM_ID=?";
+        jdbcTemplate.update(sqlQuery, marksDelta, countDelta, id);
+    }
 
-        List<Director> directors = (jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeDirector(rs), id));
-        if (directors.isEmpty()) {
-            return new HashSet<>();
-        } else {
-            return new HashSet<>(directors);
+    @Override
+    public List<Film> getFilmsInOrder(List<Long> ids) {
+        Map<Long, Film> films = new HashMap<>();
+        for (Film film : getFilmsByIds(ids)) {
+            films.put(film.getId(), film);
         }
+        List<Film> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (films.containsKey(id)) {
+                result.add(films.get(id));
+            }
+        }
+        return result;
     }
 
+
     private Director makeDirector(ResultSet rs) {
         try {
             return new Director(rs.getLong(DIRECTOR_ID), rs.getString(NAME));
@@ -422,21 +446,9 @@ public class DBFilmStorage implements FilmStorage {
         }
     }
 
-    private Set<Genre> getGenresDataForFilm(long id) {
-        String sqlQuery = "select f.GENRE_ID, g.NAME from FILMS_GENRES AS f " +
-                "left join GENRES AS g ON g.GENRE_ID = f.GENRE_ID " +
-                "where FILM_ID=?";
-        List<Genre> genres = (jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeGenre(rs), id));
-        if (genres.isEmpty()) {
-            return new HashSet<>();
-        } else {
-            return new HashSet<>(genres);
-        }
-    }
-
     private Genre makeGenre(ResultSet rs) {
         try {
-            return new Genre(rs.getLong(GENRE_ID), rs.getString(NAME));
+            return referenceData.getGenre(rs.getLong(GENRE_ID));
         } catch (SQLException e) {
             log.warn("Ошибка получения жанра: {}", e.getMessage());
             throw new SQLWorkException("Ошибка получения жанра");
@@ -445,53 +457,126 @@ public class DBFilmStorage implements FilmStorage {
 
     private Film makeFilmOptimized(ResultSet rs) {
         try {
-            return new Film(rs.getLong(FILM_ID),
+            long id = rs.getLong(FILM_ID);
+            // При отложенной записи оценок в БД рейтинг отстаёт, актуальный - в индексе
+            double rating = likeBuffer.isEnabled() ? popularityIndex.getRating(id) : rs.getDouble(CNT);
+            return new Film(id,
                     rs.getString(NAME),
                     rs.getString(DESCRIPTION),
                     rs.getDate(RELEASEDATE).toLocalDate(),
                     rs.getInt(DURATION),
-                    new Mpa(rs.getLong(MPA_ID), rs.getString(MPA_NAME), rs.getString(MPA_DESCRIPTION)),
-                    null, null, rs.getDouble(CNT));
+                    referenceData.getMpa(rs.getLong(MPA_ID)),
+                    null, null, rating);
         } catch (SQLException e) {
             log.warn("Ошибка получения фильма: {}", e.getMessage());
             throw new SQLWorkException("Ошибка получения фильма");
         }
     }
 
-    private void setGenresDataForFilm(Film film) {
-        String sqlQuery = "delete from FILMS_GENRES where FILM_ID = ?";
-        jdbcTemplate.update(sqlQuery, film.getId());
+    // Фильм целиком собирается из строк одного запроса: по строке на пару жанр/режиссёр
+    private Film makeFullFilm(ResultSet rs) throws SQLException {
+        Film film = null;
+        Map<Long, Director> directors = new HashMap<>();
+        while (rs.next()) {
+            if (film == null) {
+                film = makeFilmOptimized(rs);
+                film.setGenres(new HashSet<>());
+            }
+            long genreId = rs.getLong(GENRE_ID);
+            if (!rs.wasNull()) {
+                film.getGenres().add(referenceData.getGenre(genreId));
+            }
+            long directorId = rs.getLong(DIRECTOR_ID);
+            if (!rs.wasNull()) {
+                directors.putIfAbsent(directorId, new Director(directorId, rs.getString(DIRECTOR_NAME)));
+            }
+        }
+        if (film != null) {
+            film.setDirectors(new HashSet<>(directors.values()));
+        }
+        return film;
+    }
 
-        if (film.getGenres() != null && !film.getGenres().isEmpty()) {
-            Set<Genre> genres = new HashSet<>(film.getGenres());
-            List<Object[]> batch = new ArrayList<>();
-            for (Genre genre : genres) {
-                Object[] values = new Object[]{film.getId(), genre.getId()};
-                batch.add(values);
+    private static Set<Long> getGenreIds(Film film) {
+        Set<Long> result = new LinkedHashSet<>();
+        if (film.getGenres() != null) {
+            for (Genre genre : film.getGenres()) {
+                result.add(genre.getId());
             }
-            jdbcTemplate.batchUpdate("insert into FILMS_GENRES (FILM_ID, GENRE_ID) values (?, ? )", batch);
         }
+        return result;
+    }
 
+    private static Set<Long> getDirectorIds(Film film) {
+        Set<Long> result = new LinkedHashSet<>();
+        if (film.getDirectors() != null) {
+            for (Director director : film.getDirectors()) {
+                result.add(director.getId());
+            }
+        }
+        return result;
     }
 
-    private void setDirectorsDataForFilm(Film film) {
-        String sqlQuery = "delete from FILMS_DIRECTORS where FILM_ID=?";
-        jdbcTemplate.update(sqlQuery, film.getId());
+    private static Set<Long> difference(Set<Long> from, Set<Long> excluded) {
+        Set<Long> result = new LinkedHashSet<>(from);
+        result.removeAll(excluded);
+        return result;
+    }
 
-        if (film.getDirectors() != null && !film.getDirectors().isEmpty()) {
-            Set<Director> directors = new HashSet<>(film.getDirectors());
-            List<Object[]> batch = new ArrayList<>();
-            for (Director director : directors) {
-                Object[] values = new Object[]{film.getId(), director.getId()};
-                batch.add(values);
-            }
-            jdbcTemplate.batchUpdate("insert into FILMS_DIRECTORS (film_id, director_id) values (?, ? )", batch);
+    private void batchLinks(String sqlQuery, long filmId, Collection<Long> linkIds) {
+        if (linkIds.isEmpty()) {
+            return;
         }
+        List<Object[]> batch = new ArrayList<>(linkIds.size());
+        for (Long linkId : linkIds) {
+            batch.add(new Object[]{filmId, linkId});
+        }
+        jdbcTemplate.batchUpdate(sqlQuery, batch);
     }
 
-    private void setAdvFilmDataLow(Film film) {
-        film.setGenres(getGenresDataForFilm(film.getId()));
-        film.setDirectors(getDirectorsForFilm(film.getId()));
+    // MPA и жанры берутся из справочника, имена режиссёров - из поискового индекса
+    private Film makeWrittenFilm(Film film, Set<Long> genreIds, Set<Long> directorIds, double rating) {
+        Set<Genre> genres = new HashSet<>();
+        for (Long genreId : genreIds) {
+            genres.add(referenceData.getGenre(genreId));
+        }
+        Set<Director> directors = new HashSet<>();
+        for (Long directorId : directorIds) {
+            directors.add(new Director(directorId, searchIndex.getDirectorName(directorId)));
+        }
+        return new Film(film.getId(),
+                film.getName(),
+                film.getDescription(),
+                film.getReleaseDate(),
+                film.getDuration(),
+                referenceData.getMpa(film.getMpa().getId()),
+                genres, directors, rating);
+    }
+
+    // Жанры и режиссёры для всего списка фильмов загружаются двумя запросами, а не 2 * N
+    private void setAdvFilmData(List<Film> films) {
+        if (films.isEmpty()) {
+            return;
+        }
+        Map<Long, Film> filmsById = new HashMap<>();
+        for (Film film : films) {
+            film.setGenres(new HashSet<>());
+            film.setDirectors(new HashSet<>());
+            filmsById.put(film.getId(), film);
+        }
+        // Идентификаторы передаются одним параметром-массивом: длинный IN (...) H2 разбирает на порядок медленнее
+        Object ids = filmsById.keySet().toArray(new Long[0]);
+        String genresQuery = "select fg.FILM_ID, fg.GENRE_ID from table(ID BIGINT = ?) as ids " +
+                "join FILMS_GENRES AS fg ON fg.FILM_ID = ids.ID";
+        jdbcTemplate.query(genresQuery, rs -> {
+            filmsById.get(rs.getLong(FILM_ID)).getGenres().add(makeGenre(rs));
+        }, ids);
+        String directorsQuery = "select fd.FILM_ID, fd.DIRECTOR_ID, d.NAME from table(ID BIGINT = ?) as ids " +
+                "join FILMS_DIRECTORS AS fd ON fd.FILM_ID = ids.ID " +
+                "left join DIRECTORS AS d ON d.DIRECTOR_ID = fd.DIRECTOR_ID";
+        jdbcTemplate.query(directorsQuery, rs -> {
+            filmsById.get(rs.getLong(FILM_ID)).getDirectors().add(makeDirector(rs));
+        }, ids);
     }
 }
 
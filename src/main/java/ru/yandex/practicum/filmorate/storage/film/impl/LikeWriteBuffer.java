@@ -0,0 +1,342 @@
+package ru.yandex.practicum.filmorate.storage.film.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+import ru.yandex.practicum.filmorate.exception.SQLWorkException;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Отложенная запись оценок фильмов.
+// Оценка сразу попадает в индексы в памяти, а в БД уходит пакетом: по размеру буфера или по таймеру.
+// Повторные оценки одной пары фильм/пользователь до записи схлопываются в одну.
+// Режимы:
+//  SYNC - буфер выключен, оценка пишется в БД в запросе;
+//  GROUP_COMMIT - запрос ждёт записи своего пакета, оценки не теряются;
+//  WRITE_BEHIND - запрос не ждёт, при падении теряется не больше flushIntervalMs последних оценок.
+// Если оценку не удалось записать, индексы по этой паре возвращаются к оценке из БД,
+// а ожидающий её запрос получает ошибку.
+@Component
+@Slf4j
+public class LikeWriteBuffer {
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PopularityIndex popularityIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final Mode mode;
+    private final int flushSize;
+    private final long flushIntervalMs;
+    private final Lock lock = new ReentrantLock();
+    private final Condition full = lock.newCondition();
+    private final Lock flushLock = new ReentrantLock();
+    private Map<Key, Change> pending = new LinkedHashMap<>();
+    private volatile boolean running;
+    private ExecutorService worker;
+
+    @Autowired
+    public LikeWriteBuffer(JdbcTemplate jdbcTemplate,
+                           PlatformTransactionManager transactionManager,
+                           PopularityIndex popularityIndex,
+                           RecommendationIndex recommendationIndex,
+                           @Value("${filmorate.likes.write-mode:SYNC}") Mode mode,
+                           @Value("${filmorate.likes.flush-size:500}") int flushSize,
+                           @Value("${filmorate.likes.flush-interval-ms:100}") long flushIntervalMs) {
+        if (mode != Mode.SYNC && flushIntervalMs <= 0) {
+            throw new IllegalArgumentException("Интервал записи оценок должен быть положительным: " + flushIntervalMs);
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.popularityIndex = popularityIndex;
+        this.recommendationIndex = recommendationIndex;
+        this.mode = mode;
+        this.flushSize = flushSize;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        running = true;
+        worker = BackgroundThreads.newSingleThread("likes-flush");
+        worker.execute(this::flushLoop);
+        log.info("Отложенная запись оценок: {}, пакет {}, интервал {} мс", mode, flushSize, flushIntervalMs);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (worker != null) {
+            lock.lock();
+            try {
+                full.signal();
+            } finally {
+                lock.unlock();
+            }
+            BackgroundThreads.stop(worker, "likes-flush");
+        }
+        flush();
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.SYNC;
+    }
+
+    // mark == null - удаление оценки
+    public void setMark(long filmId, long userId, Double mark) {
+        CompletableFuture<Void> committed;
+        lock.lock();
+        try {
+            Double oldMark = recommendationIndex.getMark(userId, filmId);
+            if (Objects.equals(oldMark, mark)) {
+                return;
+            }
+            Key key = new Key(filmId, userId);
+            Change change = pending.get(key);
+            Double baseMark = change == null ? oldMark : change.baseMark;
+            committed = change == null ? new CompletableFuture<>() : change.committed;
+            if (Objects.equals(baseMark, mark)) {
+                pending.remove(key);
+                committed.complete(null);
+            } else {
+                pending.put(key, new Change(filmId, userId, baseMark, mark, committed));
+            }
+            applyToIndexes(filmId, userId, oldMark, mark);
+            if (pending.size() >= flushSize) {
+                full.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (mode == Mode.GROUP_COMMIT) {
+            try {
+                committed.join();
+            } catch (CompletionException e) {
+                throw new SQLWorkException("Оценка фильма " + filmId + " пользователем " + userId + " не записана");
+            }
+        }
+    }
+
+    // Записывает накопленные оценки. Пакеты пишутся строго по очереди,
+    // поэтому исходная оценка в каждом изменении совпадает с тем, что лежит в БД
+    public void flush() {
+        flushLock.lock();
+        try {
+            Map<Key, Change> batch;
+            lock.lock();
+            try {
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            } finally {
+                lock.unlock();
+            }
+            write(batch.values());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Удаление фильма или пользователя: буфер записывается до него, а новые оценки ждут его окончания.
+    // Иначе оценка, поставленная между сбросом и удалением, вернулась бы в индексы уже удалённой записи
+    public <T> T flushAndRun(Supplier<T> action) {
+        flushLock.lock();
+        try {
+            lock.lock();
+            try {
+                Map<Key, Change> batch = pending;
+                pending = new LinkedHashMap<>();
+                write(batch.values());
+                return action.get();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Collection<Change> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> writeBatch(changes));
+            changes.forEach(change -> change.committed.complete(null));
+        } catch (RuntimeException e) {
+            // Пакет целиком откатился, например из-за удалённого за это время фильма:
+            // изменения пишутся по одному, чтобы потерять только невалидные
+            log.warn("Ошибка пакетной записи оценок, запись по одной: {}", e.getMessage());
+            for (Change change : changes) {
+                try {
+                    transactionTemplate.executeWithoutResult(status -> writeBatch(List.of(change)));
+                    change.committed.complete(null);
+                } catch (RuntimeException single) {
+                    log.error("Оценка фильма {} пользователем {} не записана: {}",
+                            change.filmId, change.userId, single.getMessage());
+                    revert(change);
+                    change.committed.completeExceptionally(single);
+                }
+            }
+        }
+    }
+
+    // Индексы возвращаются к оценке из БД. Если в буфере уже есть более новая оценка этой пары,
+    // индексы остаются с ней, а её исходной оценкой становится оценка из БД
+    private void revert(Change change) {
+        Double storedMark = getStoredMark(change.filmId, change.userId);
+        lock.lock();
+        try {
+            Key key = new Key(change.filmId, change.userId);
+            Change newer = pending.get(key);
+            if (newer == null) {
+                applyToIndexes(change.filmId, change.userId,
+                        recommendationIndex.getMark(change.userId, change.filmId), storedMark);
+            } else if (Objects.equals(storedMark, newer.mark)) {
+                pending.remove(key);
+                newer.committed.complete(null);
+            } else {
+                pending.put(key, new Change(change.filmId, change.userId, storedMark, newer.mark, newer.committed));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Double getStoredMark(long filmId, long userId) {
+        List<Double> marks = jdbcTemplate.queryForList("select MARK from FILMS_LIKES where FILM_ID=? and USER_ID=?",
+                Double.class, filmId, userId);
+        return marks.isEmpty() ? null : marks.get(0);
+    }
+
+    private void writeBatch(Collection<Change> changes) {
+        List<Object[]> merges = new ArrayList<>();
+        List<Object[]> deletes = new ArrayList<>();
+        Map<Long, double[]> ratings = new HashMap<>();
+        for (Change change : changes) {
+            double[] delta = ratings.computeIfAbsent(change.filmId, id -> new double[2]);
+            if (change.baseMark != null) {
+                delta[0] -= change.baseMark;
+                delta[1]--;
+            }
+            if (change.mark != null) {
+                merges.add(new Object[]{change.filmId, change.userId, change.mark});
+                delta[0] += change.mark;
+                delta[1]++;
+            } else {
+                deletes.add(new Object[]{change.filmId, change.userId});
+            }
+        }
+        List<Object[]> ratingUpdates = new ArrayList<>(ratings.size());
+        ratings.forEach((filmId, delta) -> ratingUpdates.add(new Object[]{delta[0], (int) delta[1], filmId}));
+        if (!merges.isEmpty()) {
+            jdbcTemplate.batchUpdate("merge into FILMS_LIKES (FILM_ID, USER_ID, MARK) values (?, ?, ?)", merges);
+        }
+        if (!deletes.isEmpty()) {
+            jdbcTemplate.batchUpdate("delete from FILMS_LIKES where FILM_ID=? and USER_ID=?", deletes);
+        }
+        jdbcTemplate.batchUpdate("update FILMS_RATINGS set MARKS_SUM = MARKS_SUM + ?, " +
+                "MARKS_COUNT = MARKS_COUNT + ? where FILM_ID=?", ratingUpdates);
+    }
+
+    private void applyToIndexes(long filmId, long userId, Double oldMark, Double mark) {
+        double marksDelta = (mark == null ? 0 : mark) - (oldMark == null ? 0 : oldMark);
+        int countDelta = (mark == null ? 0 : 1) - (oldMark == null ? 0 : 1);
+        popularityIndex.addMark(filmId, marksDelta, countDelta);
+        if (mark == null) {
+            recommendationIndex.removeMark(userId, filmId);
+        } else {
+            recommendationIndex.putMark(userId, filmId, mark);
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                lock.lock();
+                try {
+                    if (running && pending.size() < flushSize) {
+                        full.awaitNanos(flushIntervalMs * 1_000_000);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("Ошибка записи оценок", e);
+            }
+        }
+    }
+
+    public enum Mode {
+        SYNC, GROUP_COMMIT, WRITE_BEHIND
+    }
+
+    private static final class Key {
+        private final long filmId;
+        private final long userId;
+
+        private Key(long filmId, long userId) {
+            this.filmId = filmId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return filmId == key.filmId && userId == key.userId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filmId, userId);
+        }
+    }
+
+    // baseMark - оценка в БД до изменения, mark - итоговая оценка,
+    // committed - завершается после записи, общий для всех схлопнутых оценок пары
+    private static final class Change {
+        private final long filmId;
+        private final long userId;
+        private final Double baseMark;
+        private final Double mark;
+        private final CompletableFuture<Void> committed;
+
+        private Change(long filmId, long userId, Double baseMark, Double mark, CompletableFuture<Void> committed) {
+            this.filmId = filmId;
+            this.userId = userId;
+            this.baseMark = baseMark;
+            this.mark = mark;
+            this.committed = committed;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ru.yandex.practicum.filmorate.storage.film.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Рейтинг фильмов в памяти: общий и в разрезе жанров и годов выпуска.
+// Порядок совпадает с SQL: по средней оценке по убыванию, фильмы без оценок в конце, далее по id.
+@Component
+@Slf4j
+public class PopularityIndex {
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparing((Entry e) -> e.marksCount == 0)
+            .thenComparing(Entry::getRating, Comparator.reverseOrder())
+            .thenComparingLong(e -> e.filmId);
+    private final JdbcTemplate jdbcTemplate;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final NavigableSet<Entry> all = new TreeSet<>(ORDER);
+    private final Map<Long, NavigableSet<Entry>> byGenre = new HashMap<>();
+    private final Map<Integer, NavigableSet<Entry>> byYear = new HashMap<>();
+
+    public PopularityIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Map<Long, Entry> loaded = new HashMap<>();
+        jdbcTemplate.query("select f.FILM_ID, EXTRACT(YEAR FROM f.RELEASEDATE) as RELEASE_YEAR, " +
+                "SUM(fl.MARK) as MARKS_SUM, COUNT(fl.USER_ID) as MARKS_COUNT " +
+                "from FILMS as f " +
+                "left join FILMS_LIKES as fl on f.FILM_ID = fl.FILM_ID " +
+                "group by f.FILM_ID", rs -> {
+            long filmId = rs.getLong("FILM_ID");
+            loaded.put(filmId, new Entry(filmId, rs.getInt("RELEASE_YEAR"), new long[0],
+                    rs.getDouble("MARKS_SUM"), rs.getInt("MARKS_COUNT")));
+        });
+        Map<Long, List<Long>> genres = new HashMap<>();
+        jdbcTemplate.query("select FILM_ID, GENRE_ID from FILMS_GENRES", rs -> {
+            genres.computeIfAbsent(rs.getLong("FILM_ID"), id -> new ArrayList<>()).add(rs.getLong("GENRE_ID"));
+        });
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            all.clear();
+            byGenre.clear();
+            byYear.clear();
+            for (Entry entry : loaded.values()) {
+                List<Long> filmGenres = genres.getOrDefault(entry.filmId, List.of());
+                add(entry.withGenres(filmGenres.stream().mapToLong(Long::longValue).toArray()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Индекс популярности загружен: {} фильмов", loaded.size());
+    }
+
+    public void putFilm(long filmId, int year, Collection<Long> genreIds) {
+        lock.writeLock().lock();
+        try {
+            Entry old = remove(filmId);
+            long[] genres = genreIds.stream().mapToLong(Long::longValue).distinct().toArray();
+            if (old == null) {
+                add(new Entry(filmId, year, genres, 0, 0));
+            } else {
+                add(new Entry(filmId, year, genres, old.marksSum, old.marksCount));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(long filmId) {
+        lock.writeLock().lock();
+        try {
+            remove(filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addMark(long filmId, double marksDelta, int countDelta) {
+        lock.writeLock().lock();
+        try {
+            Entry old = remove(filmId);
+            if (old != null) {
+                add(new Entry(filmId, old.year, old.genres,
+                        old.marksSum + marksDelta, old.marksCount + countDelta));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getMarksCount(long filmId) {
+        lock.readLock().lock();
+        try {
+            Entry entry = entries.get(filmId);
+            return entry == null ? 0 : entry.marksCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Средняя оценка, как в FILMS_RATINGS.RATING; без оценок - 0
+    public double getRating(long filmId) {
+        lock.readLock().lock();
+        try {
+            Entry entry = entries.get(filmId);
+            return entry == null ? 0 : entry.getRating();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Long> getTop(int count, int genreId, int year) {
+        lock.readLock().lock();
+        try {
+            Collection<Entry> source = all;
+            if (genreId > 0) {
+                source = byGenre.getOrDefault((long) genreId, Collections.emptyNavigableSet());
+            }
+            if (year > 0) {
+                Collection<Entry> yearSource = byYear.getOrDefault(year, Collections.emptyNavigableSet());
+                if (yearSource.size() < source.size()) {
+                    source = yearSource;
+                }
+            }
+            List<Long> result = new ArrayList<>(Math.min(count, source.size()));
+            for (Entry entry : source) {
+                if (result.size() >= count) {
+                    break;
+                }
+                if ((year <= 0 || entry.year == year) && (genreId <= 0 || entry.hasGenre(genreId))) {
+                    result.add(entry.filmId);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.filmId, entry);
+        all.add(entry);
+        byYear.computeIfAbsent(entry.year, y -> new TreeSet<>(ORDER)).add(entry);
+        for (long genreId : entry.genres) {
+            byGenre.computeIfAbsent(genreId, g -> new TreeSet<>(ORDER)).add(entry);
+        }
+    }
+
+    private Entry remove(long filmId) {
+        Entry entry = entries.remove(filmId);
+        if (entry == null) {
+            return null;
+        }
+        all.remove(entry);
+        byYear.get(entry.year).remove(entry);
+        for (long genreId : entry.genres) {
+            byGenre.get(genreId).remove(entry);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+        private final long filmId;
+        private final int year;
+        private final long[] genres;
+        private final double marksSum;
+        private final int marksCount;
+
+        private Entry(long filmId, int year, long[] genres, double marksSum, int marksCount) {
+            this.filmId = filmId;
+            this.year = year;
+            this.genres = genres;
+            this.marksSum = marksSum;
+            this.marksCount = marksCount;
+        }
+
+        private Entry withGenres(long[] genres) {
+            return new Entry(filmId, year, genres, marksSum, marksCount);
+        }
+
+        private boolean hasGenre(long genreId) {
+            for (long genre : genres) {
+                if (genre == genreId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private double getRating() {
+            return marksCount == 0 ? 0 : marksSum / marksCount;
+        }
+    }
+}
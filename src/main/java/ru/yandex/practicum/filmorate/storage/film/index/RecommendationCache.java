@@ -0,0 +1,232 @@
+package ru.yandex.practicum.filmorate.storage.film.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Готовые списки рекомендаций по пользователям.
+// Оценка фильма сразу помечает устаревшим список самого пользователя, а поиск остальных затронутых
+// и их пересчёт идут в фоновом потоке. Устаревший список отдаётся не дольше maxStalenessMs
+// с момента оценки, дальше рекомендации считаются при запросе. Если поток не успел разобрать
+// оценки старше этого срока, запрос разбирает их сам.
+// Хранится не больше maxSize списков, при переполнении вытесняются самые старые.
+// При удалении пользователя устаревшими помечаются списки его соседей по оценкам: их нужно найти
+// до того, как оценки пользователя уйдут из матрицы.
+@Component
+@Slf4j
+public class RecommendationCache {
+    private final RecommendationIndex recommendationIndex;
+    private final long maxStalenessMs;
+    private final int maxSize;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    // Порядок добавления списков для вытеснения, доступ под блокировкой самого множества
+    private final Set<Long> order = new LinkedHashSet<>();
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    // Оценки, для которых ещё не найдены затронутые пользователи. Удаляются только после разбора
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean applyQueued = new AtomicBoolean();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile boolean running;
+    private ExecutorService worker;
+
+    @Autowired
+    public RecommendationCache(RecommendationIndex recommendationIndex,
+                               @Value("${filmorate.recommendations.max-staleness-ms:30000}") long maxStalenessMs,
+                               @Value("${filmorate.recommendations.cache-size:10000}") int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Размер кэша рекомендаций должен быть положительным: " + maxSize);
+        }
+        this.recommendationIndex = recommendationIndex;
+        this.maxStalenessMs = maxStalenessMs;
+        this.maxSize = maxSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        worker = BackgroundThreads.newSingleThread("recommendations-refresh");
+        worker.execute(this::refreshLoop);
+    }
+
+    // Начатый пересчёт дорабатывает, остальные списки пересчитаются при запросе
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        BackgroundThreads.stop(worker, "recommendations-refresh");
+    }
+
+    public List<Long> get(long userId) {
+        Change oldest = changes.peek();
+        if (oldest != null && !isWithinStaleness(oldest.changedAt)) {
+            applyChanges();
+        }
+        Entry entry = entries.get(userId);
+        if (entry != null && (entry.staleSince == 0 || isWithinStaleness(entry.staleSince))) {
+            return entry.filmIds;
+        }
+        return refresh(userId, entry);
+    }
+
+    public void invalidate(long userId, long filmId) {
+        invalidations.incrementAndGet();
+        long changedAt = System.currentTimeMillis();
+        markStale(userId, changedAt);
+        changes.add(new Change(userId, filmId, changedAt));
+        if (applyQueued.compareAndSet(false, true)) {
+            queue.add(() -> {
+                applyQueued.set(false);
+                applyChanges();
+            });
+        }
+    }
+
+    // Вызывается до удаления оценок пользователя из матрицы
+    public Set<Long> getNeighbours(long userId) {
+        return recommendationIndex.getSimilarUsers(userId);
+    }
+
+    public void remove(long userId, Set<Long> neighbours) {
+        entries.remove(userId);
+        synchronized (order) {
+            order.remove(userId);
+        }
+        long changedAt = System.currentTimeMillis();
+        for (Long neighbour : neighbours) {
+            markStale(neighbour, changedAt);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private synchronized void applyChanges() {
+        Change change;
+        while ((change = changes.peek()) != null) {
+            for (Long affected : recommendationIndex.getAffectedUsers(change.userId, change.filmId)) {
+                markStale(affected, change.changedAt);
+            }
+            changes.poll();
+        }
+    }
+
+    private boolean isWithinStaleness(long since) {
+        return System.currentTimeMillis() - since < maxStalenessMs;
+    }
+
+    private void markStale(long userId, long changedAt) {
+        if (entries.computeIfPresent(userId, (id, entry) -> entry.markStale(changedAt)) != null) {
+            enqueue(userId);
+        }
+    }
+
+    // Список сохраняется, только если запись не менялась во время расчёта.
+    // Если за время расчёта были новые оценки, он сразу считается устаревшим.
+    private List<Long> refresh(long userId, Entry expected) {
+        long generation = invalidations.get();
+        List<Long> filmIds = List.copyOf(recommendationIndex.recommend(userId));
+        boolean fresh = invalidations.get() == generation;
+        Entry computed = new Entry(filmIds, fresh ? 0 : System.currentTimeMillis());
+        boolean stored;
+        if (expected == null) {
+            stored = entries.putIfAbsent(userId, computed) == null;
+            if (stored) {
+                synchronized (order) {
+                    order.add(userId);
+                }
+                evict();
+            }
+        } else {
+            stored = entries.replace(userId, expected, computed);
+        }
+        if (stored && !fresh) {
+            enqueue(userId);
+        }
+        return filmIds;
+    }
+
+    private void evict() {
+        synchronized (order) {
+            Iterator<Long> oldest = order.iterator();
+            while (entries.size() > maxSize && oldest.hasNext()) {
+                entries.remove(oldest.next());
+                oldest.remove();
+            }
+        }
+    }
+
+    private void enqueue(long userId) {
+        if (queued.add(userId)) {
+            queue.add(() -> {
+                queued.remove(userId);
+                Entry entry = entries.get(userId);
+                if (entry != null && entry.staleSince != 0) {
+                    refresh(userId, entry);
+                }
+            });
+        }
+    }
+
+    private void refreshLoop() {
+        while (running) {
+            try {
+                Runnable task = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    task.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Ошибка пересчёта рекомендаций", e);
+            }
+        }
+    }
+
+    private static final class Change {
+        private final long userId;
+        private final long filmId;
+        private final long changedAt;
+
+        private Change(long userId, long filmId, long changedAt) {
+            this.userId = userId;
+            this.filmId = filmId;
+            this.changedAt = changedAt;
+        }
+    }
+
+    private static final class Entry {
+        private final List<Long> filmIds;
+        private final long staleSince;
+
+        private Entry(List<Long> filmIds, long staleSince) {
+            this.filmIds = filmIds;
+            this.staleSince = staleSince;
+        }
+
+        // Всегда новый объект, чтобы расчёт, начатый до этой пометки, не затёр её
+        private Entry markStale(long changedAt) {
+            return new Entry(filmIds, staleSince == 0 ? changedAt : Math.min(staleSince, changedAt));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package ru.yandex.practicum.filmorate.storage.film.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Разреженная матрица оценок пользователь x фильм для рекомендаций.
+// Строки (фильмы пользователя) и столбцы (пользователи фильма) хранятся отсортированными примитивными массивами.
+// Похожие пользователи - те, у кого больше всего общих фильмов с оценкой выше 5.
+@Component
+@Slf4j
+public class RecommendationIndex {
+    private static final double POSITIVE_MARK = 5;
+    private final JdbcTemplate jdbcTemplate;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, SparseVector> rows = new HashMap<>();
+    private final Map<Long, SparseVector> columns = new HashMap<>();
+
+    public RecommendationIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Map<Long, SparseVector> loadedRows = new HashMap<>();
+        Map<Long, SparseVector> loadedColumns = new HashMap<>();
+        // Порядок по пользователю и фильму позволяет заполнять строки и столбцы дописыванием в конец
+        jdbcTemplate.query("select USER_ID, FILM_ID, MARK from FILMS_LIKES order by USER_ID, FILM_ID", rs -> {
+            long userId = rs.getLong("USER_ID");
+            long filmId = rs.getLong("FILM_ID");
+            double mark = rs.getDouble("MARK");
+            loadedRows.computeIfAbsent(userId, id -> new SparseVector()).put(filmId, mark);
+            loadedColumns.computeIfAbsent(filmId, id -> new SparseVector()).put(userId, mark);
+        });
+        lock.writeLock().lock();
+        try {
+            rows.clear();
+            rows.putAll(loadedRows);
+            columns.clear();
+            columns.putAll(loadedColumns);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Матрица оценок загружена: {} пользователей, {} фильмов", loadedRows.size(), loadedColumns.size());
+    }
+
+    public void putMark(long userId, long filmId, double mark) {
+        lock.writeLock().lock();
+        try {
+            rows.computeIfAbsent(userId, id -> new SparseVector()).put(filmId, mark);
+            columns.computeIfAbsent(filmId, id -> new SparseVector()).put(userId, mark);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeMark(long userId, long filmId) {
+        lock.writeLock().lock();
+        try {
+            removeEntry(rows, userId, filmId);
+            removeEntry(columns, filmId, userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeUser(long userId) {
+        lock.writeLock().lock();
+        try {
+            removeLine(rows, columns, userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(long filmId) {
+        lock.writeLock().lock();
+        try {
+            removeLine(columns, rows, filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Double getMark(long userId, long filmId) {
+        lock.readLock().lock();
+        try {
+            SparseVector row = rows.get(userId);
+            int index = row == null ? -1 : row.indexOf(filmId);
+            return index < 0 ? null : row.marks[index];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Пользователи, чьи рекомендации могли измениться после оценки фильма пользователем:
+    // сам пользователь, оценившие этот фильм и все, у кого есть общие с ним фильмы с оценкой выше 5
+    public Set<Long> getAffectedUsers(long userId, long filmId) {
+        Set<Long> result = new HashSet<>();
+        result.add(userId);
+        lock.readLock().lock();
+        try {
+            SparseVector film = columns.get(filmId);
+            if (film != null) {
+                for (int i = 0; i < film.size; i++) {
+                    result.add(film.ids[i]);
+                }
+            }
+            addSimilarUsers(userId, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Пользователи с общими фильмами с оценкой выше 5, среди них и сам пользователь:
+    // только для них он может входить в число самых похожих
+    public Set<Long> getSimilarUsers(long userId) {
+        Set<Long> result = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            addSimilarUsers(userId, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void addSimilarUsers(long userId, Set<Long> result) {
+        SparseVector row = rows.get(userId);
+        if (row == null) {
+            return;
+        }
+        for (int i = 0; i < row.size; i++) {
+            if (row.marks[i] <= POSITIVE_MARK) {
+                continue;
+            }
+            SparseVector column = columns.get(row.ids[i]);
+            for (int j = 0; j < column.size; j++) {
+                if (column.marks[j] > POSITIVE_MARK) {
+                    result.add(column.ids[j]);
+                }
+            }
+        }
+    }
+
+    // Фильмы, оценённые обоими пользователями выше 5: слияние двух отсортированных строк матрицы
+    public List<Long> getCommonFilms(long userId, long friendId) {
+        List<Long> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            SparseVector first = rows.get(userId);
+            SparseVector second = rows.get(friendId);
+            if (first == null || second == null) {
+                return result;
+            }
+            int i = 0;
+            int j = 0;
+            while (i < first.size && j < second.size) {
+                if (first.ids[i] < second.ids[j]) {
+                    i++;
+                } else if (first.ids[i] > second.ids[j]) {
+                    j++;
+                } else {
+                    if (first.marks[i] > POSITIVE_MARK && second.marks[j] > POSITIVE_MARK) {
+                        result.add(first.ids[i]);
+                    }
+                    i++;
+                    j++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Фильмы, которые пользователь не оценивал, со средней оценкой похожих пользователей выше 5.
+    // Порядок: по средней оценке по убыванию, далее по id.
+    public List<Long> recommend(long userId) {
+        lock.readLock().lock();
+        try {
+            SparseVector row = rows.get(userId);
+            if (row == null) {
+                return new ArrayList<>();
+            }
+            Map<Long, int[]> overlaps = new HashMap<>();
+            int maxOverlap = 0;
+            for (int i = 0; i < row.size; i++) {
+                if (row.marks[i] <= POSITIVE_MARK) {
+                    continue;
+                }
+                SparseVector column = columns.get(row.ids[i]);
+                for (int j = 0; j < column.size; j++) {
+                    if (column.ids[j] != userId && column.marks[j] > POSITIVE_MARK) {
+                        int[] overlap = overlaps.computeIfAbsent(column.ids[j], id -> new int[1]);
+                        maxOverlap = Math.max(maxOverlap, ++overlap[0]);
+                    }
+                }
+            }
+            Map<Long, double[]> candidates = new HashMap<>();
+            for (Map.Entry<Long, int[]> entry : overlaps.entrySet()) {
+                if (entry.getValue()[0] < maxOverlap) {
+                    continue;
+                }
+                SparseVector similar = rows.get(entry.getKey());
+                for (int i = 0; i < similar.size; i++) {
+                    if (row.indexOf(similar.ids[i]) < 0) {
+                        double[] sum = candidates.computeIfAbsent(similar.ids[i], id -> new double[2]);
+                        sum[0] += similar.marks[i];
+                        sum[1]++;
+                    }
+                }
+            }
+            long[] filmIds = new long[candidates.size()];
+            double[] rates = new double[candidates.size()];
+            int count = 0;
+            for (Map.Entry<Long, double[]> entry : candidates.entrySet()) {
+                double rate = entry.getValue()[0] / entry.getValue()[1];
+                if (rate > POSITIVE_MARK) {
+                    filmIds[count] = entry.getKey();
+                    rates[count] = rate;
+                    count++;
+                }
+            }
+            List<Integer> order = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                order.add(i);
+            }
+            order.sort(Comparator.comparingDouble((Integer i) -> rates[i]).reversed()
+                    .thenComparingLong(i -> filmIds[i]));
+            List<Long> result = new ArrayList<>(count);
+            for (int i : order) {
+                result.add(filmIds[i]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void removeEntry(Map<Long, SparseVector> lines, long lineId, long id) {
+        SparseVector line = lines.get(lineId);
+        if (line != null) {
+            line.remove(id);
+            if (line.size == 0) {
+                lines.remove(lineId);
+            }
+        }
+    }
+
+    private static void removeLine(Map<Long, SparseVector> lines, Map<Long, SparseVector> crossLines, long lineId) {
+        SparseVector line = lines.remove(lineId);
+        if (line != null) {
+            for (int i = 0; i < line.size; i++) {
+                removeEntry(crossLines, line.ids[i], lineId);
+            }
+        }
+    }
+
+    // Отсортированные по id пары (id, оценка)
+    private static final class SparseVector {
+        private long[] ids = new long[4];
+        private double[] marks = new double[4];
+        private int size;
+
+        private int indexOf(long id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        private void put(long id, double mark) {
+            int index = size > 0 && ids[size - 1] < id ? -size - 1 : indexOf(id);
+            if (index >= 0) {
+                marks[index] = mark;
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                marks = Arrays.copyOf(marks, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(marks, index, marks, index + 1, size - index);
+            ids[index] = id;
+            marks[index] = mark;
+            size++;
+        }
+
+        private void remove(long id) {
+            int index = indexOf(id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                System.arraycopy(marks, index + 1, marks, index, size - index - 1);
+                size--;
+            }
+        }
+    }
+}
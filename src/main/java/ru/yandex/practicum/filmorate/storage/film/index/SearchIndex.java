@@ -0,0 +1,279 @@
+package ru.yandex.practicum.filmorate.storage.film.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+// Инвертированный индекс по триграммам названий фильмов и имён режиссёров.
+// Кандидаты берутся из самого короткого списка триграмм запроса и проверяются на вхождение подстроки,
+// поэтому результат совпадает с ILIKE '%query%'. Как и в ILIKE, % в запросе - любая строка, _ - любой символ,
+// \ экранирует следующий символ; тогда триграммы берутся из частей запроса между подстановочными символами,
+// а кандидаты проверяются регулярным выражением.
+@Component
+@Slf4j
+public class SearchIndex {
+    private static final int GRAM_LENGTH = 3;
+    private final JdbcTemplate jdbcTemplate;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, String> titles = new HashMap<>();
+    private final Map<String, Set<Long>> titleGrams = new HashMap<>();
+    private final Map<Long, String> directorNames = new HashMap<>();
+    private final Map<Long, String> directorTitles = new HashMap<>();
+    private final Map<String, Set<Long>> directorGrams = new HashMap<>();
+    private final Map<Long, Set<Long>> filmDirectors = new HashMap<>();
+    private final Map<Long, Set<Long>> directorFilms = new HashMap<>();
+
+    public SearchIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Map<Long, String> films = new HashMap<>();
+        jdbcTemplate.query("select FILM_ID, NAME from FILMS", rs -> {
+            films.put(rs.getLong("FILM_ID"), rs.getString("NAME"));
+        });
+        Map<Long, String> directors = new HashMap<>();
+        jdbcTemplate.query("select DIRECTOR_ID, NAME from DIRECTORS", rs -> {
+            directors.put(rs.getLong("DIRECTOR_ID"), rs.getString("NAME"));
+        });
+        Map<Long, List<Long>> links = new HashMap<>();
+        jdbcTemplate.query("select FILM_ID, DIRECTOR_ID from FILMS_DIRECTORS", rs -> {
+            links.computeIfAbsent(rs.getLong("FILM_ID"), id -> new ArrayList<>()).add(rs.getLong("DIRECTOR_ID"));
+        });
+        lock.writeLock().lock();
+        try {
+            titles.clear();
+            titleGrams.clear();
+            directorNames.clear();
+            directorTitles.clear();
+            directorGrams.clear();
+            filmDirectors.clear();
+            directorFilms.clear();
+            directors.forEach(this::addDirector);
+            films.forEach((filmId, title) -> addFilm(filmId, title, links.getOrDefault(filmId, List.of())));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Поисковый индекс загружен: {} фильмов, {} режиссёров", films.size(), directors.size());
+    }
+
+    public void putFilm(long filmId, String title, Collection<Long> directorIds) {
+        lock.writeLock().lock();
+        try {
+            removeFilmEntry(filmId);
+            addFilm(filmId, title, directorIds);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(long filmId) {
+        lock.writeLock().lock();
+        try {
+            removeFilmEntry(filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putDirector(long directorId, String name) {
+        lock.writeLock().lock();
+        try {
+            String old = directorNames.remove(directorId);
+            if (old != null) {
+                removeGrams(directorGrams, directorId, old);
+            }
+            addDirector(directorId, name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeDirector(long directorId) {
+        lock.writeLock().lock();
+        try {
+            directorTitles.remove(directorId);
+            String old = directorNames.remove(directorId);
+            if (old != null) {
+                removeGrams(directorGrams, directorId, old);
+            }
+            Set<Long> films = directorFilms.remove(directorId);
+            if (films != null) {
+                for (Long filmId : films) {
+                    filmDirectors.get(filmId).remove(directorId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Set<Long> search(String query, boolean byTitle, boolean byDirector) {
+        QueryPattern pattern = QueryPattern.parse(normalize(query));
+        Set<Long> result = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            if (byTitle) {
+                result.addAll(find(pattern, titles, titleGrams));
+            }
+            if (byDirector) {
+                for (Long directorId : find(pattern, directorNames, directorGrams)) {
+                    result.addAll(directorFilms.getOrDefault(directorId, Set.of()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    public List<Long> getDirectorFilms(long directorId) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(directorFilms.getOrDefault(directorId, Set.of()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Имя режиссёра в исходном написании, для сборки ответа без обращения к БД
+    public String getDirectorName(long directorId) {
+        lock.readLock().lock();
+        try {
+            return directorTitles.get(directorId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Long> find(QueryPattern pattern, Map<Long, String> texts, Map<String, Set<Long>> grams) {
+        Collection<Long> candidates = texts.keySet();
+        for (String literal : pattern.literals) {
+            for (String gram : toGrams(literal)) {
+                Set<Long> posting = grams.get(gram);
+                if (posting == null) {
+                    return List.of();
+                }
+                if (posting.size() < candidates.size()) {
+                    candidates = posting;
+                }
+            }
+        }
+        List<Long> result = new ArrayList<>();
+        for (Long id : candidates) {
+            if (pattern.matches(texts.get(id))) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private void addFilm(long filmId, String title, Collection<Long> directorIds) {
+        String text = normalize(title);
+        titles.put(filmId, text);
+        addGrams(titleGrams, filmId, text);
+        Set<Long> directors = new HashSet<>();
+        for (Long directorId : directorIds) {
+            if (directorNames.containsKey(directorId)) {
+                directors.add(directorId);
+                directorFilms.computeIfAbsent(directorId, id -> new HashSet<>()).add(filmId);
+            }
+        }
+        filmDirectors.put(filmId, directors);
+    }
+
+    private void removeFilmEntry(long filmId) {
+        String old = titles.remove(filmId);
+        if (old != null) {
+            removeGrams(titleGrams, filmId, old);
+        }
+        Set<Long> directors = filmDirectors.remove(filmId);
+        if (directors != null) {
+            for (Long directorId : directors) {
+                directorFilms.get(directorId).remove(filmId);
+            }
+        }
+    }
+
+    private void addDirector(long directorId, String name) {
+        String text = normalize(name);
+        directorTitles.put(directorId, name);
+        directorNames.put(directorId, text);
+        addGrams(directorGrams, directorId, text);
+    }
+
+    private static void addGrams(Map<String, Set<Long>> grams, long id, String text) {
+        for (String gram : toGrams(text)) {
+            grams.computeIfAbsent(gram, g -> new HashSet<>()).add(id);
+        }
+    }
+
+    private static void removeGrams(Map<String, Set<Long>> grams, long id, String text) {
+        for (String gram : toGrams(text)) {
+            Set<Long> posting = grams.get(gram);
+            posting.remove(id);
+            if (posting.isEmpty()) {
+                grams.remove(gram);
+            }
+        }
+    }
+
+    private static Set<String> toGrams(String text) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            result.add(text.substring(i, i + GRAM_LENGTH));
+        }
+        return result;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    // Запрос ILIKE '%query%': части без подстановочных символов и регулярное выражение, если они есть
+    private static final class QueryPattern {
+        private final List<String> literals;
+        private final Pattern regex;
+
+        private QueryPattern(List<String> literals, Pattern regex) {
+            this.literals = literals;
+            this.regex = regex;
+        }
+
+        private static QueryPattern parse(String query) {
+            if (query.indexOf('%') < 0 && query.indexOf('_') < 0 && query.indexOf('\\') < 0) {
+                return new QueryPattern(List.of(query), null);
+            }
+            List<String> literals = new ArrayList<>();
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < query.length(); i++) {
+                char c = query.charAt(i);
+                if (c == '%' || c == '_') {
+                    regex.append(Pattern.quote(literal.toString())).append(c == '%' ? ".*" : ".");
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    continue;
+                }
+                if (c == '\\' && i + 1 < query.length()) {
+                    c = query.charAt(++i);
+                }
+                literal.append(c);
+            }
+            regex.append(Pattern.quote(literal.toString()));
+            literals.add(literal.toString());
+            return new QueryPattern(literals, Pattern.compile(regex.toString(), Pattern.DOTALL));
+        }
+
+        private boolean matches(String text) {
+            return regex == null ? text.contains(literals.get(0)) : regex.matcher(text).find();
+        }
+    }
+}
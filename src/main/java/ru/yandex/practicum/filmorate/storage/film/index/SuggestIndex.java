@@ -0,0 +1,204 @@
+package ru.yandex.practicum.filmorate.storage.film.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Suggestion;
+import ru.yandex.practicum.filmorate.model.enums.SuggestionType;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Подсказки по началу слов в названиях фильмов и именах режиссёров.
+// Ключ - хвост строки с начала каждого слова, ключи отсортированы,
+// поэтому все совпадения с префиксом лежат в одном диапазоне TreeMap.
+@Component
+@Slf4j
+public class SuggestIndex {
+    private static final Comparator<Suggestion> ORDER = Comparator
+            .comparingInt(Suggestion::getMarksCount).reversed()
+            .thenComparing(Suggestion::getType)
+            .thenComparing(Suggestion::getName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparingLong(Suggestion::getId);
+    private final JdbcTemplate jdbcTemplate;
+    private final PopularityIndex popularityIndex;
+    private final SearchIndex searchIndex;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, String> filmNames = new HashMap<>();
+    private final NavigableMap<String, Set<Long>> filmKeys = new TreeMap<>();
+    private final Map<Long, String> directorNames = new HashMap<>();
+    private final NavigableMap<String, Set<Long>> directorKeys = new TreeMap<>();
+
+    public SuggestIndex(JdbcTemplate jdbcTemplate, PopularityIndex popularityIndex, SearchIndex searchIndex) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.popularityIndex = popularityIndex;
+        this.searchIndex = searchIndex;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Map<Long, String> films = new HashMap<>();
+        jdbcTemplate.query("select FILM_ID, NAME from FILMS", rs -> {
+            films.put(rs.getLong("FILM_ID"), rs.getString("NAME"));
+        });
+        Map<Long, String> directors = new HashMap<>();
+        jdbcTemplate.query("select DIRECTOR_ID, NAME from DIRECTORS", rs -> {
+            directors.put(rs.getLong("DIRECTOR_ID"), rs.getString("NAME"));
+        });
+        lock.writeLock().lock();
+        try {
+            filmNames.clear();
+            filmKeys.clear();
+            directorNames.clear();
+            directorKeys.clear();
+            films.forEach((id, name) -> add(filmNames, filmKeys, id, name));
+            directors.forEach((id, name) -> add(directorNames, directorKeys, id, name));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Индекс подсказок загружен: {} фильмов, {} режиссёров", films.size(), directors.size());
+    }
+
+    public void putFilm(long filmId, String name) {
+        lock.writeLock().lock();
+        try {
+            remove(filmNames, filmKeys, filmId);
+            add(filmNames, filmKeys, filmId, name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(long filmId) {
+        lock.writeLock().lock();
+        try {
+            remove(filmNames, filmKeys, filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putDirector(long directorId, String name) {
+        lock.writeLock().lock();
+        try {
+            remove(directorNames, directorKeys, directorId);
+            add(directorNames, directorKeys, directorId, name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeDirector(long directorId) {
+        lock.writeLock().lock();
+        try {
+            remove(directorNames, directorKeys, directorId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Режиссёр ранжируется по суммарному числу оценок его фильмов.
+    // Совпадения не собираются целиком: в куче остаются count лучших, в вершине - худший из них
+    public List<Suggestion> suggest(String prefix, int count) {
+        String key = normalize(prefix).stripLeading();
+        if (key.isEmpty() || count <= 0) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<Suggestion> top = new PriorityQueue<>(count + 1, ORDER.reversed());
+        Set<Long> topFilms = new HashSet<>();
+        Set<Long> topDirectors = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Set<Long> ids : range(filmKeys, key)) {
+                for (Long filmId : ids) {
+                    // Фильм с несколькими подходящими словами встречается повторно: если его нет в куче,
+                    // он уже проиграл худшему из лучших и проиграет снова
+                    if (!topFilms.contains(filmId)) {
+                        offer(top, count, topFilms, topDirectors, new Suggestion(SuggestionType.FILM, filmId,
+                                filmNames.get(filmId), popularityIndex.getMarksCount(filmId)));
+                    }
+                }
+            }
+            for (Set<Long> ids : range(directorKeys, key)) {
+                for (Long directorId : ids) {
+                    if (!topDirectors.contains(directorId)) {
+                        int marksCount = 0;
+                        for (Long filmId : searchIndex.getDirectorFilms(directorId)) {
+                            marksCount += popularityIndex.getMarksCount(filmId);
+                        }
+                        offer(top, count, topFilms, topDirectors, new Suggestion(SuggestionType.DIRECTOR,
+                                directorId, directorNames.get(directorId), marksCount));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Suggestion> result = new ArrayList<>(top);
+        result.sort(ORDER);
+        return result;
+    }
+
+    private static void offer(PriorityQueue<Suggestion> top, int count, Set<Long> topFilms, Set<Long> topDirectors,
+                              Suggestion suggestion) {
+        if (top.size() == count && ORDER.compare(suggestion, top.peek()) >= 0) {
+            return;
+        }
+        top.add(suggestion);
+        idsOf(suggestion, topFilms, topDirectors).add(suggestion.getId());
+        if (top.size() > count) {
+            Suggestion worst = top.poll();
+            idsOf(worst, topFilms, topDirectors).remove(worst.getId());
+        }
+    }
+
+    private static Set<Long> idsOf(Suggestion suggestion, Set<Long> topFilms, Set<Long> topDirectors) {
+        return suggestion.getType() == SuggestionType.FILM ? topFilms : topDirectors;
+    }
+
+    private static Collection<Set<Long>> range(NavigableMap<String, Set<Long>> keys, String prefix) {
+        return keys.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+    }
+
+    private static void add(Map<Long, String> names, NavigableMap<String, Set<Long>> keys, long id, String name) {
+        if (name == null) {
+            return;
+        }
+        names.put(id, name);
+        for (String key : toKeys(name)) {
+            keys.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+        }
+    }
+
+    private static void remove(Map<Long, String> names, NavigableMap<String, Set<Long>> keys, long id) {
+        String old = names.remove(id);
+        if (old == null) {
+            return;
+        }
+        for (String key : toKeys(old)) {
+            Set<Long> ids = keys.get(key);
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    private static Set<String> toKeys(String name) {
+        String text = normalize(name);
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < text.length(); i++) {
+            boolean wordStart = i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1));
+            if (wordStart && Character.isLetterOrDigit(text.charAt(i))) {
+                result.add(text.substring(i));
+            }
+        }
+        return result;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+}
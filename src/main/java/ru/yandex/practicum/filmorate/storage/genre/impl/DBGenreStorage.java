@@ -1,50 +1,28 @@
 package ru.yandex.practicum.filmorate.storage.genre.impl;
 
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
-import ru.yandex.practicum.filmorate.exception.SQLWorkException;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.storage.genre.GenreStorage;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.List;
 
+// Жанры отдаются из справочника в памяти, таблица GENRES читается только при его загрузке
 @Component("DBGenreStorage")
-@Slf4j
 public class DBGenreStorage implements GenreStorage {
-    private static final String GENRE_ID = "GENRE_ID";
-    private static final String NAME = "NAME";
-    private final JdbcTemplate jdbcTemplate;
+    private final ReferenceDataRegistry referenceData;
 
-    public DBGenreStorage(JdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
+    public DBGenreStorage(ReferenceDataRegistry referenceData) {
+        this.referenceData = referenceData;
     }
 
     @Override
     public List<Genre> getGenres() {
-        String sqlQuery = "select * from GENRES";
-        return jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeGenre(rs));
+        return referenceData.getGenres();
     }
 
     @Override
     public Genre getGenre(long id) {
-        String sqlQuery = "select * from GENRES where GENRE_ID=?";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id);
-        if (userRows.next()) {
-            return new Genre(userRows.getLong(GENRE_ID), userRows.getString(NAME));
-        }
-        return null;
-    }
-
-    private Genre makeGenre(ResultSet rs) {
-        try {
-            return new Genre(rs.getLong(GENRE_ID), rs.getString(NAME));
-        } catch (SQLException e) {
-            log.warn("Ошибка получения жанра: {}", e.getMessage());
-            throw new SQLWorkException("Ошибка получения жанра");
-        }
+        return referenceData.getGenre(id);
     }
 }
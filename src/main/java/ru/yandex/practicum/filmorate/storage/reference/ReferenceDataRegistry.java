@@ -0,0 +1,72 @@
+package ru.yandex.practicum.filmorate.storage.reference;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.Mpa;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+// Справочники MPA и жанров, загруженные один раз в массивы по id.
+// Все фильмы ссылаются на одни и те же экземпляры Mpa и Genre.
+// Перечитываются только явным вызовом reload().
+@Component
+@Slf4j
+public class ReferenceDataRegistry {
+    private final JdbcTemplate jdbcTemplate;
+    private volatile Snapshot snapshot = new Snapshot(List.of(), List.of());
+
+    public ReferenceDataRegistry(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void reload() {
+        List<Mpa> mpas = jdbcTemplate.query("select MPA_ID, NAME, DESCRIPTION from MPAS order by MPA_ID",
+                (rs, rowNum) -> new Mpa(rs.getLong("MPA_ID"), rs.getString("NAME"), rs.getString("DESCRIPTION")));
+        List<Genre> genres = jdbcTemplate.query("select GENRE_ID, NAME from GENRES order by GENRE_ID",
+                (rs, rowNum) -> new Genre(rs.getLong("GENRE_ID"), rs.getString("NAME")));
+        snapshot = new Snapshot(mpas, genres);
+        log.info("Справочники загружены: {} MPA, {} жанров", mpas.size(), genres.size());
+    }
+
+    public List<Mpa> getMpas() {
+        return snapshot.mpas;
+    }
+
+    public Mpa getMpa(long id) {
+        Mpa[] mpaById = snapshot.mpaById;
+        return id >= 0 && id < mpaById.length ? mpaById[(int) id] : null;
+    }
+
+    public List<Genre> getGenres() {
+        return snapshot.genres;
+    }
+
+    public Genre getGenre(long id) {
+        Genre[] genreById = snapshot.genreById;
+        return id >= 0 && id < genreById.length ? genreById[(int) id] : null;
+    }
+
+    private static final class Snapshot {
+        private final List<Mpa> mpas;
+        private final Mpa[] mpaById;
+        private final List<Genre> genres;
+        private final Genre[] genreById;
+
+        private Snapshot(List<Mpa> mpas, List<Genre> genres) {
+            this.mpas = List.copyOf(mpas);
+            this.genres = List.copyOf(genres);
+            mpaById = new Mpa[(int) mpas.stream().mapToLong(Mpa::getId).max().orElse(-1) + 1];
+            for (Mpa mpa : mpas) {
+                mpaById[(int) mpa.getId()] = mpa;
+            }
+            genreById = new Genre[(int) genres.stream().mapToLong(Genre::getId).max().orElse(-1) + 1];
+            for (Genre genre : genres) {
+                genreById[(int) genre.getId()] = genre;
+            }
+        }
+    }
+}
@@ -3,11 +3,16 @@ package ru.yandex.practicum.filmorate.storage.user;
 import ru.yandex.practicum.filmorate.model.User;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface UserStorage {
 
     List<User> getUsers();
 
+    List<User> getUsers(long afterId, int limit);
+
+    void streamUsers(Consumer<User> consumer);
+
     User createUser(User user);
 
     User updateUser(User user);
@@ -20,8 +25,14 @@ public interface UserStorage {
 
     List<User> getFriendsListForUser(long id);
 
+    List<User> getFriendsListForUser(long id, long afterId, int limit);
+
+    List<Long> getFriendIds(long id, long afterId, int limit);
+
     List<User> getMutualFriends(long id, long otherId);
 
+    List<User> getFriendSuggestions(long id, int limit);
+
     User getUser(long id);
 
     User deleteUser(long id);
@@ -3,22 +3,31 @@ package ru.yandex.practicum.filmorate.storage.user.impl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.exception.SQLWorkException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.AfterCommit;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
 
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 @Component("DBUserStorage")
 @Primary
@@ -32,20 +41,48 @@ public class DBUserStorage implements UserStorage {
     private static final String LOGIN = "LOGIN";
     private static final String NAME = "NAME";
     private static final String BIRTHDAY = "BIRTHDAY";
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final String USERS_WITH_FRIENDS_SELECT = "select u.USER_ID, u.EMAIL, u.LOGIN, u.NAME, " +
+            "u.BIRTHDAY, fr.USER_TWO_ID " +
+            "from %s as u " +
+            "left join FRIENDSHIPS as fr on u.USER_ID = fr.USER_ONE_ID " +
+            "order by u.USER_ID";
     private final JdbcTemplate jdbcTemplate;
+    private final PopularityIndex popularityIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final FriendshipGraph friendshipGraph;
 
-    public DBUserStorage(JdbcTemplate jdbcTemplate) {
+    public DBUserStorage(JdbcTemplate jdbcTemplate,
+                         PopularityIndex popularityIndex,
+                         RecommendationIndex recommendationIndex,
+                         FriendshipGraph friendshipGraph) {
         this.jdbcTemplate = jdbcTemplate;
+        this.popularityIndex = popularityIndex;
+        this.recommendationIndex = recommendationIndex;
+        this.friendshipGraph = friendshipGraph;
     }
 
     @Override
     public List<User> getUsers() {
-        String sqlQuery = "select * from USERS";
-        List<User> users = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeUser(rs));
-        for (User user : users) {
-            user.setFriends(new HashSet<>(getFriendsForId(user.getId())));
-        }
-        return users;
+        return loadUsers("USERS");
+    }
+
+    @Override
+    public List<User> getUsers(long afterId, int limit) {
+        return loadUsers("(select * from USERS where USER_ID > ? order by USER_ID limit ?)", afterId, limit);
+    }
+
+    // Пользователи с друзьями читаются одним курсором, строки одного пользователя идут подряд
+    @Override
+    public void streamUsers(Consumer<User> consumer) {
+        String sqlQuery = String.format(USERS_WITH_FRIENDS_SELECT, "USERS");
+        UserRowsGrouper grouper = new UserRowsGrouper(consumer);
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(sqlQuery);
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            return stmt;
+        }, grouper);
+        grouper.finish();
     }
 
     @Override
@@ -110,6 +147,7 @@ public class DBUserStorage implements UserStorage {
         }
         sqlQuery = "insert into FRIENDSHIPS (USER_ONE_ID, USER_TWO_ID, STATUS) values (?, ?, ?)";
         jdbcTemplate.update(sqlQuery, id, friendId, newStatus);
+        friendshipGraph.addFriend(id, friendId);
         return getUser(id);
     }
 
@@ -127,56 +165,103 @@ public class DBUserStorage implements UserStorage {
         }
         sqlQuery = "delete from FRIENDSHIPS where USER_ONE_ID=? and USER_TWO_ID=?";
         jdbcTemplate.update(sqlQuery, id, friendId);
+        friendshipGraph.removeFriend(id, friendId);
         return getUser(id);
     }
 
     @Override
     public List<User> getFriendsListForUser(long id) {
-        String sqlQuery = "select USER_TWO_ID from FRIENDSHIPS where USER_ONE_ID=?";
-        return (jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFriendUser(rs), id));
+        return loadUsers("(select u.* from FRIENDSHIPS as f " +
+                "join USERS as u on u.USER_ID = f.USER_TWO_ID " +
+                "where f.USER_ONE_ID = ?)", id);
+    }
+
+    // Страница друзей по возрастанию id; друзья друзей подтягиваются тем же запросом
+    @Override
+    public List<User> getFriendsListForUser(long id, long afterId, int limit) {
+        return loadUsers("(select u.* from FRIENDSHIPS as f " +
+                "join USERS as u on u.USER_ID = f.USER_TWO_ID " +
+                "where f.USER_ONE_ID = ? and f.USER_TWO_ID > ? " +
+                "order by f.USER_TWO_ID limit ?)", id, afterId, limit);
+    }
+
+    // Только id друзей: запрос читает один первичный ключ FRIENDSHIPS без USERS
+    @Override
+    public List<Long> getFriendIds(long id, long afterId, int limit) {
+        String sqlQuery = "select USER_TWO_ID from FRIENDSHIPS where USER_ONE_ID=? and USER_TWO_ID > ? " +
+                "order by USER_TWO_ID limit ?";
+        return jdbcTemplate.queryForList(sqlQuery, Long.class, id, afterId, limit);
     }
 
+    // Пересечение списков друзей в графе, затем пользователи одним запросом по списку id
     @Override
     public List<User> getMutualFriends(long id, long otherId) {
-        List<User> result = new ArrayList<>();
-        String sqlQuery = "select USER_TWO_ID from FRIENDSHIPS where USER_ONE_ID=? " +
-                "and USER_TWO_ID in (select USER_TWO_ID from FRIENDSHIPS where USER_ONE_ID=?)";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id, otherId);
-        if (userRows.next()) {
-            result.add(getUser(userRows.getLong(USER_TWO_ID)));
-        }
-        return result;
+        return getUsersInOrder(friendshipGraph.getMutualFriends(id, otherId));
+    }
+
+    @Override
+    public List<User> getFriendSuggestions(long id, int limit) {
+        return getUsersInOrder(friendshipGraph.suggestFriends(id, limit));
     }
 
     @Override
     public User getUser(long id) {
-        String sqlQuery = "select * from USERS where USER_ID=?";
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet(sqlQuery, id);
-        if (userRows.next()) {
-            User user = new User(
-                    userRows.getLong(USER_ID),
-                    userRows.getString(EMAIL),
-                    userRows.getString(LOGIN),
-                    userRows.getString(NAME),
-                    Objects.requireNonNull(userRows.getDate(BIRTHDAY)).toLocalDate(),
-                    new HashSet<>());
-            user.setFriends(new HashSet<>(getFriendsForId(user.getId())));
-            return user;
-        }
-        return null;
+        List<User> users = loadUsers("(select * from USERS where USER_ID = ?)", id);
+        return users.isEmpty() ? null : users.get(0);
     }
 
     @Override
+    @Transactional
     public User deleteUser(long id) {
         User user = getUser(id);
+        // Оценки пользователя удаляются каскадом, поэтому агрегаты рейтинга фильмов правятся заранее
+        String ratingQuery = "update FILMS_RATINGS as r " +
+                "set MARKS_SUM = MARKS_SUM - (select MARK from FILMS_LIKES as fl " +
+                "                             where fl.FILM_ID = r.FILM_ID and fl.USER_ID = ?), " +
+                "MARKS_COUNT = MARKS_COUNT - 1 " +
+                "where FILM_ID in (select FILM_ID from FILMS_LIKES where USER_ID = ?)";
+        jdbcTemplate.update(ratingQuery, id, id);
+        Map<Long, Double> marks = new HashMap<>();
+        jdbcTemplate.query("select FILM_ID, MARK from FILMS_LIKES where USER_ID=?", rs -> {
+            marks.put(rs.getLong("FILM_ID"), rs.getDouble("MARK"));
+        }, id);
         String sqlQuery = "DELETE FROM USERS WHERE USER_ID=?";
         jdbcTemplate.update(sqlQuery, id);
+        // Индексы правятся после фиксации удаления, при откате пользователь остаётся в них
+        AfterCommit.run(() -> {
+            marks.forEach((filmId, mark) -> popularityIndex.addMark(filmId, -mark, -1));
+            recommendationIndex.removeUser(id);
+            friendshipGraph.removeUser(id);
+        });
         return user;
     }
 
-    private List<Long> getFriendsForId(Long id) {
-        String sqlQuery = "select USER_TWO_ID from FRIENDSHIPS where USER_ONE_ID=?";
-        return (jdbcTemplate.query(sqlQuery, (rs, rowNum) -> makeFriendId(rs), id));
+    // Пользователи по списку id одним запросом, в порядке списка
+    private List<User> getUsersInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, User> users = new HashMap<>();
+        for (User user : loadUsers("(select u.* from table(ID BIGINT = ?) as ids " +
+                "join USERS as u on u.USER_ID = ids.ID)", (Object) ids.toArray(new Long[0]))) {
+            users.put(user.getId(), user);
+        }
+        List<User> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (users.containsKey(id)) {
+                result.add(users.get(id));
+            }
+        }
+        return result;
+    }
+
+    // Пользователи из source вместе с id друзей одним запросом, строки пользователя собираются в памяти
+    private List<User> loadUsers(String source, Object... args) {
+        List<User> users = new ArrayList<>();
+        UserRowsGrouper grouper = new UserRowsGrouper(users::add);
+        jdbcTemplate.query(String.format(USERS_WITH_FRIENDS_SELECT, source), grouper, args);
+        grouper.finish();
+        return users;
     }
 
     private User makeUser(ResultSet rs) {
@@ -193,21 +278,32 @@ public class DBUserStorage implements UserStorage {
         }
     }
 
-    private Long makeFriendId(ResultSet rs) {
-        try {
-            return rs.getLong(USER_TWO_ID);
-        } catch (SQLException e) {
-            log.warn("Ошибка получения id друга: {}", e.getMessage());
-            throw new SQLWorkException("Ошибка получения id друга");
+    private class UserRowsGrouper implements RowCallbackHandler {
+        private final Consumer<User> consumer;
+        private User current;
+
+        private UserRowsGrouper(Consumer<User> consumer) {
+            this.consumer = consumer;
         }
-    }
 
-    private User makeFriendUser(ResultSet rs) {
-        try {
-            return getUser(rs.getLong(USER_TWO_ID));
-        } catch (SQLException e) {
-            log.warn("Ошибка получения: {}", e.getMessage());
-            throw new SQLWorkException("Ошибка получения друга");
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            long userId = rs.getLong(USER_ID);
+            if (current == null || current.getId() != userId) {
+                finish();
+                current = makeUser(rs);
+            }
+            long friendId = rs.getLong(USER_TWO_ID);
+            if (!rs.wasNull()) {
+                current.getFriends().add(friendId);
+            }
+        }
+
+        private void finish() {
+            if (current != null) {
+                consumer.accept(current);
+                current = null;
+            }
         }
     }
 }
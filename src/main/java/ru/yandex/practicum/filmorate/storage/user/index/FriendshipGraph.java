@@ -0,0 +1,437 @@
+package ru.yandex.practicum.filmorate.storage.user.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Граф дружбы в памяти: для каждого пользователя отсортированный массив id тех, кого он добавил в друзья,
+// и обратный массив id тех, кто добавил его. Дружба односторонняя, поэтому без обратных массивов
+// удаление пользователя искало бы его в массивах всех пользователей.
+// Id пользователей в схеме int и выдаются подряд, поэтому массивы лежат в таблицах по id пользователя,
+// а ребро занимает 4 байта в каждой таблице. Массивы точного размера: добавление и удаление друга
+// копируют массивы обоих пользователей.
+// Бюджет кучи: 8 байт на ребро и около 40 байт на пользователя, 10 млн рёбер у 1 млн пользователей - около 120 МБ.
+// Общие друзья - слияние двух отсортированных массивов за линейное время.
+// Рекомендации друзей - обход на два шага с ограничением ветвления maxFanOut.
+// При старте граф загружает FriendshipSnapshot: из снимка или из таблицы FRIENDSHIPS.
+@Component
+@Slf4j
+public class FriendshipGraph {
+    private static final int[] EMPTY = new int[0];
+    private static final Comparator<int[]> CANDIDATE_ORDER = Comparator.<int[]>comparingInt(c -> c[1])
+            .thenComparingInt(c -> -c[0]);
+    private final JdbcTemplate jdbcTemplate;
+    private final int maxFanOut;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[][] adjacency = new int[0][];
+    private int[][] followers = new int[0][];
+    private long edgesCount;
+
+    public FriendshipGraph(JdbcTemplate jdbcTemplate,
+                           @Value("${filmorate.friends.suggestions.max-fan-out:200}") int maxFanOut) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.maxFanOut = maxFanOut;
+    }
+
+    public void rebuild() {
+        Integer maxUserId = jdbcTemplate.queryForObject("select max(USER_ID) from USERS", Integer.class);
+        AdjacencyLoader loader = new AdjacencyLoader(maxUserId == null ? 0 : maxUserId + 1);
+        jdbcTemplate.query("select USER_ONE_ID, USER_TWO_ID from FRIENDSHIPS order by USER_ONE_ID, USER_TWO_ID",
+                loader);
+        loader.finish();
+        load(loader.loaded);
+        log.info("Граф дружбы загружен: {} связей", loader.edgesCount);
+    }
+
+    // Заменяет граф таблицей отсортированных массивов точного размера
+    public void load(int[][] loaded) {
+        long loadedEdges = 0;
+        for (int[] friends : loaded) {
+            loadedEdges += friends == null ? 0 : friends.length;
+        }
+        int[][] loadedFollowers = invert(loaded);
+        lock.writeLock().lock();
+        try {
+            adjacency = loaded;
+            followers = loadedFollowers;
+            edgesCount = loadedEdges;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Копия таблицы для снимка: массивы друзей не меняются на месте, а заменяются, поэтому их можно не копировать
+    public int[][] copyAdjacency() {
+        lock.readLock().lock();
+        try {
+            return Arrays.copyOf(adjacency, adjacency.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Убирает пользователей не из users вместе со связями с ними
+    public void retainUsers(BitSet users) {
+        lock.writeLock().lock();
+        try {
+            for (int userId = 0; userId < adjacency.length; userId++) {
+                int[] friends = adjacency[userId];
+                if (friends == null) {
+                    continue;
+                }
+                if (!users.get(userId)) {
+                    adjacency[userId] = null;
+                    edgesCount -= friends.length;
+                    continue;
+                }
+                int[] kept = Arrays.stream(friends).filter(users::get).toArray();
+                if (kept.length < friends.length) {
+                    adjacency[userId] = kept.length == 0 ? null : kept;
+                    edgesCount -= friends.length - kept.length;
+                }
+            }
+            followers = invert(adjacency);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addFriend(long id, long friendId) {
+        int user = toIndex(id);
+        int friend = toIndex(friendId);
+        lock.writeLock().lock();
+        try {
+            int[] friends = insert(get(adjacency, user), friend);
+            if (friends == null) {
+                return;
+            }
+            adjacency = put(adjacency, user, friends);
+            followers = put(followers, friend, insert(get(followers, friend), user));
+            edgesCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFriend(long id, long friendId) {
+        int user = toIndex(id);
+        int friend = toIndex(friendId);
+        lock.writeLock().lock();
+        try {
+            removeEdge(user, friend);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Обходит только друзей пользователя и тех, кто добавил его в друзья
+    public void removeUser(long id) {
+        int user = toIndex(id);
+        lock.writeLock().lock();
+        try {
+            for (int friendId : get(adjacency, user)) {
+                removeEdge(user, friendId);
+            }
+            for (int followerId : get(followers, user)) {
+                removeEdge(followerId, user);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Long> getFriends(long id) {
+        lock.readLock().lock();
+        try {
+            int[] friends = get(id);
+            List<Long> result = new ArrayList<>(friends.length);
+            for (int friendId : friends) {
+                result.add((long) friendId);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Общие друзья по возрастанию id: слияние двух отсортированных массивов
+    public List<Long> getMutualFriends(long id, long otherId) {
+        List<Long> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            int[] first = get(id);
+            int[] second = get(otherId);
+            int i = 0;
+            int j = 0;
+            while (i < first.length && j < second.length) {
+                if (first[i] < second[j]) {
+                    i++;
+                } else if (first[i] > second[j]) {
+                    j++;
+                } else {
+                    result.add((long) first[i]);
+                    i++;
+                    j++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Друзья друзей по убыванию числа общих друзей, при равенстве - по возрастанию id; сам пользователь
+    // и его друзья исключаются. От пользователя и от каждого друга берётся не больше maxFanOut друзей,
+    // равномерно по массиву, поэтому у популярных друзей общие друзья считаются по выборке.
+    // Счётчики - в хеш-таблице на примитивах, лучшие limit кандидатов - в куче размера limit.
+    public List<Long> suggestFriends(long id, int limit) {
+        lock.readLock().lock();
+        try {
+            int[] friends = get(id);
+            int step = stepOf(friends.length);
+            int visits = 0;
+            for (int i = 0; i < friends.length; i += step) {
+                visits += Math.min(get(friends[i]).length, maxFanOut);
+            }
+            CandidateCounter counter = new CandidateCounter(visits);
+            for (int i = 0; i < friends.length; i += step) {
+                int[] friendsOfFriend = get(friends[i]);
+                int friendStep = stepOf(friendsOfFriend.length);
+                for (int j = 0; j < friendsOfFriend.length; j += friendStep) {
+                    counter.increment(friendsOfFriend[j]);
+                }
+            }
+            // В вершине кучи худший из лучших: меньше общих друзей, при равенстве больший id
+            PriorityQueue<int[]> top = new PriorityQueue<>(CANDIDATE_ORDER);
+            for (int i = 0; i < counter.size; i++) {
+                int slot = counter.slots[i];
+                int candidate = counter.keys[slot];
+                int count = counter.counts[slot];
+                // Сначала дешёвое сравнение с вершиной кучи, исключение друзей - только для прошедших его
+                if (top.size() == limit && !isBetter(candidate, count, top.peek())
+                        || candidate == id || Arrays.binarySearch(friends, candidate) >= 0) {
+                    continue;
+                }
+                if (top.size() == limit) {
+                    top.poll();
+                }
+                top.add(new int[]{candidate, count});
+            }
+            List<Long> result = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                result.add((long) top.poll()[0]);
+            }
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getEdgesCount() {
+        lock.readLock().lock();
+        try {
+            return edgesCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] get(long id) {
+        if (id < 0 || id >= adjacency.length || adjacency[(int) id] == null) {
+            return EMPTY;
+        }
+        return adjacency[(int) id];
+    }
+
+    private static boolean isBetter(int candidate, int count, int[] worst) {
+        return count > worst[1] || count == worst[1] && candidate < worst[0];
+    }
+
+    // Шаг по массиву, при котором из length элементов берётся не больше maxFanOut
+    private int stepOf(int length) {
+        return length <= maxFanOut ? 1 : (length + maxFanOut - 1) / maxFanOut;
+    }
+
+    private void removeEdge(int id, int friendId) {
+        int[] current = get(adjacency, id);
+        int[] friends = remove(current, friendId);
+        if (friends == current) {
+            return;
+        }
+        adjacency[id] = friends;
+        followers[friendId] = remove(get(followers, friendId), id);
+        edgesCount--;
+    }
+
+    // Id пользователей в схеме int; больший id - ошибка вызывающего кода, а не пустой список
+    private static int toIndex(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Id пользователя вне диапазона графа дружбы: " + id);
+        }
+        return (int) id;
+    }
+
+    private static int[] get(int[][] table, int id) {
+        return id >= table.length || table[id] == null ? EMPTY : table[id];
+    }
+
+    // Таблица с массивом values по индексу id; при нехватке места таблица растёт вдвое
+    private static int[][] put(int[][] table, int id, int[] values) {
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, (int) Math.max(id + 1L, Math.min(table.length * 2L, Integer.MAX_VALUE)));
+        }
+        table[id] = values;
+        return table;
+    }
+
+    // Копия отсортированного массива с value; null, если value уже есть
+    private static int[] insert(int[] values, int value) {
+        int index = Arrays.binarySearch(values, value);
+        if (index >= 0) {
+            return null;
+        }
+        index = -index - 1;
+        int[] result = new int[values.length + 1];
+        System.arraycopy(values, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(values, index, result, index + 1, values.length - index);
+        return result;
+    }
+
+    // Копия отсортированного массива без value, пустой массив заменяется null; сам values, если value нет
+    private static int[] remove(int[] values, int value) {
+        int index = Arrays.binarySearch(values, value);
+        if (index < 0) {
+            return values;
+        }
+        if (values.length == 1) {
+            return null;
+        }
+        int[] result = new int[values.length - 1];
+        System.arraycopy(values, 0, result, 0, index);
+        System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+        return result;
+    }
+
+    // Обратная таблица: для каждого пользователя отсортированный массив тех, у кого он в друзьях.
+    // Пользователи обходятся по возрастанию id, поэтому массивы получаются отсортированными без сортировки
+    private static int[][] invert(int[][] table) {
+        int size = 0;
+        for (int[] friends : table) {
+            if (friends != null && friends.length > 0) {
+                size = Math.max(size, friends[friends.length - 1] + 1);
+            }
+        }
+        int[] counts = new int[size];
+        for (int[] friends : table) {
+            if (friends != null) {
+                for (int friendId : friends) {
+                    counts[friendId]++;
+                }
+            }
+        }
+        int[][] inverted = new int[size][];
+        for (int userId = 0; userId < size; userId++) {
+            if (counts[userId] > 0) {
+                inverted[userId] = new int[counts[userId]];
+                counts[userId] = 0;
+            }
+        }
+        for (int userId = 0; userId < table.length; userId++) {
+            if (table[userId] != null) {
+                for (int friendId : table[userId]) {
+                    inverted[friendId][counts[friendId]++] = userId;
+                }
+            }
+        }
+        return inverted;
+    }
+
+    // Счётчики по id пользователя с открытой адресацией; id пользователей положительные, 0 - пустая ячейка.
+    // Занятые ячейки запоминаются, чтобы потом не просматривать всю таблицу
+    private static final class CandidateCounter {
+        private final int[] keys;
+        private final int[] counts;
+        private final int[] slots;
+        private final int mask;
+        private final int shift;
+        private int size;
+
+        // Степень двойки не меньше удвоенного числа посещений
+        private CandidateCounter(int visits) {
+            int capacity = Integer.highestOneBit(Math.max(visits, 4) * 2 - 1) << 1;
+            keys = new int[capacity];
+            counts = new int[capacity];
+            slots = new int[visits];
+            mask = capacity - 1;
+            shift = Integer.numberOfLeadingZeros(mask);
+        }
+
+        // Мультипликативный хеш: номер ячейки - старшие биты произведения
+        private void increment(int key) {
+            int index = (key * 0x9E3779B9) >>> shift;
+            while (keys[index] != 0 && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (keys[index] == 0) {
+                keys[index] = key;
+                slots[size++] = index;
+            }
+            counts[index]++;
+        }
+    }
+
+    // Собирает массив пользователя в общем буфере и кладёт в таблицу копию точного размера
+    private static final class AdjacencyLoader implements RowCallbackHandler {
+        private int[][] loaded;
+        private int[] buffer = new int[16];
+        private int size;
+        private int userId = -1;
+        private long edgesCount;
+
+        private AdjacencyLoader(int capacity) {
+            this.loaded = new int[capacity][];
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            int rowUserId = rs.getInt("USER_ONE_ID");
+            if (rowUserId != userId) {
+                finish();
+                userId = rowUserId;
+            }
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+            buffer[size++] = rs.getInt("USER_TWO_ID");
+        }
+
+        private void finish() {
+            if (size == 0) {
+                return;
+            }
+            // Пользователь мог появиться после чтения max(USER_ID)
+            if (userId >= loaded.length) {
+                loaded = Arrays.copyOf(loaded, Math.max(userId + 1, loaded.length * 2));
+            }
+            loaded[userId] = Arrays.copyOf(buffer, size);
+            edgesCount += size;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ru.yandex.practicum.filmorate.storage.user.index;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.background.BackgroundThreads;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Снимок графа дружбы в формате CSR: смещения списков друзей по id пользователя и общий массив id друзей.
+// Заголовок: сигнатура, версия, id последнего события на момент снимка, размер таблицы пользователей, число связей.
+// При старте снимок отображается в память и копируется в граф, затем из EVENTS дочитываются события FRIEND после него.
+// UserService пишет событие дружбы после изменения графа, а id события берётся до копирования графа,
+// поэтому все события до этого id уже в снимке. Повтор события над связью ничего не меняет.
+// Граф строится из FRIENDSHIPS, если снимка нет, БД сброшена, события после снимка ушли в архив
+// или после дочитывания граф расходится с таблицей даже без удалённых пользователей
+// (удаление пользователя каскадом убирает его дружбы без событий, события пишутся в фоне и могли не дойти
+// до БД при сбое). Одного числа связей для сверки мало: потерянные добавление и удаление его не меняют.
+// Поэтому сверяются число связей и контрольная сумма пар (USER_ONE_ID, USER_TWO_ID): сумма по связям
+// нелинейного хеша пары, не зависящая от порядка. В БД она считается одним агрегатом без передачи строк.
+// Пишется раз в intervalMs и при остановке: во временный файл, который затем переименовывается.
+// Снимок включается путём в filmorate.friends.snapshot.file, по умолчанию путь пустой и снимок выключен.
+// С журналом событий в файле (filmorate.events.storage=mapped) снимок тоже не используется.
+@Component
+@Slf4j
+public class FriendshipSnapshot {
+    private static final int MAGIC = 0x46524E44;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final long CHECKSUM_MODULUS = 2147483647;
+    private static final long CHECKSUM_SHIFT = 40503;
+    private final JdbcTemplate jdbcTemplate;
+    private final FriendshipGraph friendshipGraph;
+    private final Path file;
+    private final long intervalMs;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public FriendshipSnapshot(JdbcTemplate jdbcTemplate,
+                              FriendshipGraph friendshipGraph,
+                              @Value("${filmorate.friends.snapshot.file:}") String file,
+                              @Value("${filmorate.friends.snapshot.interval-ms:600000}") long intervalMs,
+                              @Value("${filmorate.events.storage:db}") String eventsStorage) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.friendshipGraph = friendshipGraph;
+        this.file = file.isBlank() || !"db".equals(eventsStorage) ? null : Paths.get(file);
+        this.intervalMs = intervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        long started = System.currentTimeMillis();
+        if (file == null || !load()) {
+            friendshipGraph.rebuild();
+            log.info("Граф дружбы построен из FRIENDSHIPS за {} мс", System.currentTimeMillis() - started);
+        } else {
+            log.info("Граф дружбы загружен из снимка {} за {} мс", file, System.currentTimeMillis() - started);
+        }
+        if (file != null && intervalMs > 0) {
+            scheduler = BackgroundThreads.newScheduler("friendship-snapshot");
+            scheduler.scheduleWithFixedDelay(this::writeQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        BackgroundThreads.stop(scheduler, "friendship-snapshot");
+        if (file != null) {
+            writeQuietly();
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    public synchronized void write() throws IOException {
+        long lastEventId = getLastEventId();
+        int[][] adjacency = friendshipGraph.copyAdjacency();
+        long edgesCount = 0;
+        for (int[] friends : adjacency) {
+            edgesCount += friends == null ? 0 : friends.length;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastEventId);
+            out.writeInt(adjacency.length);
+            out.writeLong(edgesCount);
+            int offset = 0;
+            out.writeInt(offset);
+            for (int[] friends : adjacency) {
+                offset += friends == null ? 0 : friends.length;
+                out.writeInt(offset);
+            }
+            for (int[] friends : adjacency) {
+                if (friends != null) {
+                    for (int friendId : friends) {
+                        out.writeInt(friendId);
+                    }
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Снимок графа дружбы записан: {} связей, событие {}", edgesCount, lastEventId);
+    }
+
+    // false - снимок не подходит и граф нужно строить из FRIENDSHIPS
+    private boolean load() {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        long lastEventId;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Неизвестный формат снимка графа дружбы: " + file);
+            }
+            lastEventId = buffer.getLong();
+            int usersCount = buffer.getInt();
+            long edgesCount = buffer.getLong();
+            if (channel.size() != HEADER_SIZE + (usersCount + 1L + edgesCount) * Integer.BYTES) {
+                throw new IOException("Снимок графа дружбы обрывается: " + file);
+            }
+            IntBuffer ints = buffer.asIntBuffer();
+            int[] offsets = new int[usersCount + 1];
+            ints.get(offsets);
+            int[][] adjacency = new int[usersCount][];
+            for (int userId = 0; userId < usersCount; userId++) {
+                int size = offsets[userId + 1] - offsets[userId];
+                if (size > 0) {
+                    adjacency[userId] = new int[size];
+                    ints.get(adjacency[userId]);
+                }
+            }
+            friendshipGraph.load(adjacency);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Снимок графа дружбы не прочитан: {}", e.getMessage());
+            return false;
+        }
+        if (getLastEventId() < lastEventId) {
+            log.info("Снимок графа дружбы новее событий в БД, база сброшена");
+            return false;
+        }
+        Long archivedEventId = jdbcTemplate.queryForObject("select max(MAX_EVENT_ID) from EVENT_SEGMENTS",
+                Long.class);
+        if (archivedEventId != null && archivedEventId > lastEventId) {
+            log.info("События после снимка графа дружбы уже в архиве");
+            return false;
+        }
+        int replayed = replay(lastEventId);
+        long[] expected = getFriendshipsChecksum();
+        if (!matches(expected)) {
+            BitSet users = new BitSet();
+            jdbcTemplate.query("select USER_ID from USERS", rs -> {
+                users.set(rs.getInt("USER_ID"));
+            });
+            friendshipGraph.retainUsers(users);
+        }
+        log.info("К снимку графа дружбы применено {} событий после {}", replayed, lastEventId);
+        if (!matches(expected)) {
+            log.warn("Граф дружбы из снимка расходится с FRIENDSHIPS: {} связей вместо {} или другие связи",
+                    friendshipGraph.getEdgesCount(), expected[0]);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean matches(long[] expected) {
+        int[][] adjacency = friendshipGraph.copyAdjacency();
+        long edgesCount = 0;
+        long checksum = 0;
+        for (int userId = 0; userId < adjacency.length; userId++) {
+            if (adjacency[userId] != null) {
+                for (int friendId : adjacency[userId]) {
+                    long x = (userId * 65536L + friendId) % CHECKSUM_MODULUS;
+                    checksum += x * (x + CHECKSUM_SHIFT) % CHECKSUM_MODULUS;
+                    edgesCount++;
+                }
+            }
+        }
+        return edgesCount == expected[0] && checksum == expected[1];
+    }
+
+    private int replay(long afterEventId) {
+        int[] replayed = new int[1];
+        jdbcTemplate.query("select USER_ID, ENTITY_ID, EVENT_OPERATION from EVENTS " +
+                "where EVENT_ID > ? and EVENT_TYPE = ? order by EVENT_ID", rs -> {
+                    long userId = rs.getLong("USER_ID");
+                    long friendId = rs.getLong("ENTITY_ID");
+                    EventOperation operation = EventOperation.valueOf(rs.getString("EVENT_OPERATION"));
+                    if (operation == EventOperation.ADD) {
+                        friendshipGraph.addFriend(userId, friendId);
+                    } else if (operation == EventOperation.REMOVE) {
+                        friendshipGraph.removeFriend(userId, friendId);
+                    }
+                    replayed[0]++;
+                }, afterEventId, EventType.FRIEND.name());
+        return replayed[0];
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            log.error("Ошибка записи снимка графа дружбы", e);
+        }
+    }
+
+    // Последний id события с учётом архива
+    private long getLastEventId() {
+        Long lastEventId = jdbcTemplate.queryForObject("select greatest(" +
+                "coalesce((select max(EVENT_ID) from EVENTS), 0), " +
+                "coalesce((select max(MAX_EVENT_ID) from EVENT_SEGMENTS), 0))", Long.class);
+        return lastEventId == null ? 0 : lastEventId;
+    }
+
+    // Число связей и контрольная сумма, как в matches
+    private long[] getFriendshipsChecksum() {
+        String sqlQuery = "select count(*) as EDGES, coalesce(sum(mod(X * (X + ?), ?)), 0) as CHECKSUM " +
+                "from (select mod(cast(USER_ONE_ID as bigint) * 65536 + USER_TWO_ID, ?) as X from FRIENDSHIPS)";
+        return jdbcTemplate.queryForObject(sqlQuery, (rs, rowNum) -> new long[]{rs.getLong("EDGES"),
+                rs.getLong("CHECKSUM")}, CHECKSUM_SHIFT, CHECKSUM_MODULUS, CHECKSUM_MODULUS);
+    }
+}
@@ -0,0 +1,94 @@
+package ru.yandex.practicum.filmorate.version;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Счётчики версий сущностей и коллекций для ETag.
+// Версия увеличивается после записи, поэтому ответ, собранный по прочитанной до загрузки версии,
+// может оказаться только новее своего ETag, но не старше.
+// Общая версия меняется при редких изменениях, затрагивающих многие ответы сразу:
+// справочники, режиссёры, удаление пользователей и фильмов.
+// Счётчики живут в памяти, поэтому в ETag входит метка запуска, чтобы после рестарта теги не совпали.
+// Счётчик удалённой сущности убирается, её тег возвращается к версии 0: совпадение с ним
+// контроллер перепроверяет по существованию сущности и отвечает 404.
+@Component
+public class EntityVersions {
+    private static final String FILMS = "films";
+    private static final String GENRES = "genres";
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong shared = new AtomicLong();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    public void filmChanged(long filmId) {
+        bump("film:" + filmId);
+        bump(FILMS);
+    }
+
+    public void filmDeleted(long filmId) {
+        filmChanged(filmId);
+        drop("film:" + filmId);
+    }
+
+    public void genresChanged() {
+        bump(GENRES);
+        shared.incrementAndGet();
+    }
+
+    public void feedChanged(long userId) {
+        bump("feed:" + userId);
+    }
+
+    public void feedDeleted(long userId) {
+        feedChanged(userId);
+        drop("feed:" + userId);
+    }
+
+    public void reviewChanged(long reviewId) {
+        bump("review:" + reviewId);
+    }
+
+    public void reviewDeleted(long reviewId) {
+        reviewChanged(reviewId);
+        drop("review:" + reviewId);
+    }
+
+    public void sharedChanged() {
+        shared.incrementAndGet();
+    }
+
+    public String filmTag(long filmId) {
+        return tag("film:" + filmId) + "." + shared.get();
+    }
+
+    public String popularTag() {
+        return tag(FILMS) + "." + shared.get();
+    }
+
+    public String genresTag() {
+        return tag(GENRES);
+    }
+
+    public String feedTag(long userId) {
+        return tag("feed:" + userId);
+    }
+
+    public String reviewTag(long reviewId) {
+        return tag("review:" + reviewId) + "." + shared.get();
+    }
+
+    private void bump(String key) {
+        versions.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void drop(String key) {
+        versions.remove(key);
+    }
+
+    private String tag(String key) {
+        AtomicLong version = versions.get(key);
+        return key.replace(':', '-') + "-" + instance + "-" + (version == null ? 0 : version.get());
+    }
+}
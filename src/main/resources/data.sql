@@ -3,6 +3,8 @@ FROM FRIENDSHIPS;
 DELETE
 FROM FILMS_LIKES;
 DELETE
+FROM FILMS_RATINGS;
+DELETE
 FROM FILMS_GENRES;
 DELETE
 FROM FILMS_DIRECTORS;
@@ -18,6 +20,8 @@ DELETE
 FROM USEFULS;
 DELETE
 FROM EVENTS;
+DELETE
+FROM EVENT_SEGMENTS;
 
 ALTER TABLE FILMS
     ALTER COLUMN film_id RESTART WITH 1;
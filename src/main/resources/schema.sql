@@ -77,6 +77,18 @@ CREATE TABLE IF NOT EXISTS FILMS_LIKES
     CONSTRAINT fk_user_id FOREIGN KEY (user_id) REFERENCES USERS (user_id) ON DELETE CASCADE
 );
 
+CREATE TABLE IF NOT EXISTS FILMS_RATINGS
+(
+    film_id     int    NOT NULL PRIMARY KEY,
+    marks_sum   double NOT NULL DEFAULT 0,
+    marks_count int    NOT NULL DEFAULT 0,
+    rating      double GENERATED ALWAYS AS (CASE WHEN marks_count > 0 THEN marks_sum / marks_count END),
+    CONSTRAINT fk_film_r FOREIGN KEY (film_id) REFERENCES FILMS (film_id) ON DELETE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS idx_films_ratings_rating ON FILMS_RATINGS (rating);
+CREATE INDEX IF NOT EXISTS idx_films_directors_director ON FILMS_DIRECTORS (director_id, film_id);
+
 CREATE TABLE IF NOT EXISTS REVIEWS
 (
     review_id int GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
@@ -110,5 +122,18 @@ CREATE TABLE IF NOT EXISTS EVENTS
     CONSTRAINT fk_user FOREIGN KEY(user_id) REFERENCES users(user_id) ON DELETE CASCADE
 );
 
+CREATE INDEX IF NOT EXISTS idx_events_user ON EVENTS (user_id, event_id DESC, entity_id, event_type, event_operation, timestamp);
+CREATE INDEX IF NOT EXISTS idx_events_timestamp ON EVENTS (timestamp);
+
+CREATE TABLE IF NOT EXISTS EVENT_SEGMENTS
+(
+    file_name VARCHAR(100) PRIMARY KEY,
+    window_start long NOT NULL,
+    window_end long NOT NULL,
+    min_event_id long NOT NULL,
+    max_event_id long NOT NULL,
+    events_count int NOT NULL
+);
+
 
 
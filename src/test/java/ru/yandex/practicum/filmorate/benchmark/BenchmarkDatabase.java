@@ -0,0 +1,241 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.ReferenceQueries;
+import ru.yandex.practicum.filmorate.storage.director.impl.DBDirectorStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
+import ru.yandex.practicum.filmorate.storage.event.impl.DBEventStorage;
+import ru.yandex.practicum.filmorate.storage.event.impl.MappedEventStorage;
+import ru.yandex.practicum.filmorate.storage.film.impl.DBFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.impl.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
+import ru.yandex.practicum.filmorate.storage.user.impl.DBUserStorage;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// Встроенная H2 со схемой приложения и хранилищами, собранными без Spring-контекста
+public class BenchmarkDatabase {
+    private static final String[] WORDS = {"Robot", "Man", "Matrix", "Alien", "Solaris", "Blade", "Runner",
+            "Terminator", "Star", "Wars", "Godfather", "Pulp", "Fiction", "Fight", "Club", "Inception"};
+    private final EmbeddedDatabase database;
+    private final JdbcTemplate jdbcTemplate;
+    private final PopularityIndex popularityIndex;
+    private final SearchIndex searchIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final ReferenceDataRegistry referenceData;
+    private final FriendshipGraph friendshipGraph;
+    private final ReferenceQueries referenceQueries;
+    private final DBFilmStorage filmStorage;
+    private final DBUserStorage userStorage;
+    private final DBDirectorStorage directorStorage;
+
+    public BenchmarkDatabase() {
+        database = new EmbeddedDatabaseBuilder()
+                .generateUniqueName(true)
+                .setType(EmbeddedDatabaseType.H2)
+                .setScriptEncoding("UTF-8")
+                .addScripts("schema.sql", "data.sql")
+                .build();
+        jdbcTemplate = new JdbcTemplate(database);
+        popularityIndex = new PopularityIndex(jdbcTemplate);
+        searchIndex = new SearchIndex(jdbcTemplate);
+        recommendationIndex = new RecommendationIndex(jdbcTemplate);
+        referenceData = new ReferenceDataRegistry(jdbcTemplate);
+        referenceData.reload();
+        SuggestIndex suggestIndex = new SuggestIndex(jdbcTemplate, popularityIndex, searchIndex);
+        filmStorage = new DBFilmStorage(jdbcTemplate, popularityIndex, searchIndex, suggestIndex, recommendationIndex,
+                referenceData, createLikeBuffer(LikeWriteBuffer.Mode.SYNC, 0));
+        friendshipGraph = new FriendshipGraph(jdbcTemplate, 200);
+        userStorage = new DBUserStorage(jdbcTemplate, popularityIndex, recommendationIndex, friendshipGraph);
+        directorStorage = new DBDirectorStorage(jdbcTemplate, searchIndex, suggestIndex);
+        referenceQueries = new ReferenceQueries(jdbcTemplate);
+    }
+
+    // Буфер оценок над этой же базой; поток записи не запускается, сброс - вызовом flush()
+    public LikeWriteBuffer createLikeBuffer(LikeWriteBuffer.Mode mode, int flushSize) {
+        return new LikeWriteBuffer(jdbcTemplate, new DataSourceTransactionManager(database),
+                popularityIndex, recommendationIndex, mode, flushSize, 100);
+    }
+
+    // Архив событий в каталоге directory; retentionDays = 0 - архив выключен
+    public EventArchive createEventArchive(Path directory, long retentionDays) throws IOException {
+        EventArchive eventArchive = new EventArchive(jdbcTemplate, new DataSourceTransactionManager(database),
+                directory.toString(), retentionDays, 24, 3600000);
+        eventArchive.start();
+        return eventArchive;
+    }
+
+    public DBEventStorage createEventStorage() throws IOException {
+        return createEventStorage(createEventArchive(Files.createTempDirectory("events-archive"), 0));
+    }
+
+    // Хранилище событий с запущенным потоком записи; создаётся после заполнения таблицы EVENTS
+    public DBEventStorage createEventStorage(EventArchive eventArchive) {
+        DBEventStorage eventStorage = new DBEventStorage(jdbcTemplate, new DataSourceTransactionManager(database),
+                eventArchive, new EntityVersions(), new SimpleMeterRegistry(), 10000, 500,
+                DBEventStorage.OverflowPolicy.BLOCK);
+        eventStorage.start();
+        return eventStorage;
+    }
+
+    public MappedEventStorage createMappedEventStorage(Path file) throws IOException {
+        MappedEventStorage eventStorage = new MappedEventStorage(jdbcTemplate, new EntityVersions(), file.toString(),
+                1 << 20, 1000);
+        eventStorage.start();
+        return eventStorage;
+    }
+
+    // Заполняет базу фильмами со случайными названиями, режиссёрами, жанрами и оценками
+    public void fill(int films, int users, int directors, int likesPerUser, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < directors; i++) {
+            directorStorage.createDirector(new Director(0, randomName(random) + " " + i));
+        }
+        for (int i = 0; i < users; i++) {
+            userStorage.createUser(new User(0, "user" + i + "@mail.ru", "user" + i, "User " + i,
+                    LocalDate.of(1990, 1, 1), new HashSet<>()));
+        }
+        for (int i = 0; i < films; i++) {
+            Set<Genre> genres = new HashSet<>();
+            genres.add(new Genre(1 + random.nextInt(6), null));
+            Set<Director> filmDirectors = new HashSet<>();
+            if (directors > 0) {
+                filmDirectors.add(new Director(1 + random.nextInt(directors), null));
+            }
+            filmStorage.createFilm(new Film(0, randomName(random), "description",
+                    LocalDate.of(1950 + random.nextInt(70), 1, 1), 100,
+                    new Mpa(1 + random.nextInt(5), null, null), genres, filmDirectors, 0));
+        }
+        for (int user = 1; user <= users; user++) {
+            for (int i = 0; i < likesPerUser; i++) {
+                filmStorage.setLikeToFilm(1 + random.nextInt(films), user, 1 + random.nextInt(10));
+            }
+        }
+    }
+
+    // Пакетная вставка оценок одного пользователя в обход хранилища, затем пересчёт агрегатов и индексов
+    public void addMarks(long userId, List<Long> filmIds, int mark) {
+        jdbcTemplate.batchUpdate("merge into FILMS_LIKES (FILM_ID, USER_ID, MARK) values (?, ?, ?)",
+                filmIds, 1000, (ps, filmId) -> {
+                    ps.setLong(1, filmId);
+                    ps.setLong(2, userId);
+                    ps.setInt(3, mark);
+                });
+        jdbcTemplate.update("update FILMS_RATINGS as r set " +
+                "MARKS_SUM = coalesce((select SUM(MARK) from FILMS_LIKES as fl where fl.FILM_ID = r.FILM_ID), 0), " +
+                "MARKS_COUNT = (select COUNT(*) from FILMS_LIKES as fl where fl.FILM_ID = r.FILM_ID)");
+        popularityIndex.rebuild();
+        recommendationIndex.rebuild();
+    }
+
+    // Пакетная вставка друзей пользователя в обход хранилища, затем перезагрузка графа дружбы
+    public void addFriends(long userId, List<Long> friendIds) {
+        jdbcTemplate.batchUpdate("insert into FRIENDSHIPS (USER_ONE_ID, USER_TWO_ID, STATUS) values (?, ?, 0)",
+                friendIds, 10000, (ps, friendId) -> {
+                    ps.setLong(1, userId);
+                    ps.setLong(2, friendId);
+                });
+        friendshipGraph.rebuild();
+    }
+
+    // Пакетная вставка пользователей в обход хранилища, без пересчёта индексов
+    public void addUsers(int count) {
+        List<Integer> numbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            numbers.add(i);
+        }
+        jdbcTemplate.batchUpdate("insert into USERS (EMAIL, LOGIN, NAME, BIRTHDAY) values (?, ?, ?, '1990-01-01')",
+                numbers, 10000, (ps, i) -> {
+                    ps.setString(1, "user" + i + "@mail.ru");
+                    ps.setString(2, "user" + i);
+                    ps.setString(3, "User " + i);
+                });
+    }
+
+    // Пакетная вставка событий пользователя в обход хранилища
+    public void addEvents(long userId, int count) {
+        addEvents(userId, count, System.currentTimeMillis(), 0);
+    }
+
+    // События с метками времени from, from + stepMs, ...
+    public void addEvents(long userId, int count, long from, long stepMs) {
+        List<Integer> entityIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entityIds.add(i);
+        }
+        jdbcTemplate.batchUpdate("insert into EVENTS (user_id, entity_id, event_type, event_operation, timestamp) " +
+                "values (?, ?, 'LIKE', 'ADD', ?)", entityIds, 10000, (ps, entityId) -> {
+                    ps.setLong(1, userId);
+                    ps.setInt(2, entityId);
+                    ps.setLong(3, from + entityId * stepMs);
+                });
+    }
+
+    public void close() {
+        database.shutdown();
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    public PopularityIndex getPopularityIndex() {
+        return popularityIndex;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public RecommendationIndex getRecommendationIndex() {
+        return recommendationIndex;
+    }
+
+    public FriendshipGraph getFriendshipGraph() {
+        return friendshipGraph;
+    }
+
+    public ReferenceQueries getReferenceQueries() {
+        return referenceQueries;
+    }
+
+    public DBFilmStorage getFilmStorage() {
+        return filmStorage;
+    }
+
+    public DBUserStorage getUserStorage() {
+        return userStorage;
+    }
+
+    public DBDirectorStorage getDirectorStorage() {
+        return directorStorage;
+    }
+
+    private static String randomName(Random random) {
+        return WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+    }
+}
@@ -0,0 +1,73 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Общие фильмы /films/common: слияние отсортированных строк матрицы оценок против самосоединения FILMS_LIKES.
+// У каждого из двух пользователей likes оценок выше 5 среди 30000 фильмов.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.CommonFilmsBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommonFilmsBenchmark {
+    private static final int FILMS = 30000;
+
+    @Param({"1000", "10000", "20000"})
+    private int likes;
+
+    private BenchmarkDatabase database;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(FILMS, 2, 0, 0, 42);
+        Random random = new Random(42);
+        for (long userId = 1; userId <= 2; userId++) {
+            List<Long> filmIds = new ArrayList<>();
+            for (long filmId = 1; filmId <= FILMS; filmId++) {
+                filmIds.add(filmId);
+            }
+            Collections.shuffle(filmIds, random);
+            database.addMarks(userId, filmIds.subList(0, likes), 8);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    // Только пересечение идентификаторов, без загрузки фильмов из БД
+    @Benchmark
+    public List<Long> commonIndexIds() {
+        return database.getRecommendationIndex().getCommonFilms(1, 2);
+    }
+
+    @Benchmark
+    public List<Film> commonIndex() {
+        return database.getFilmStorage().getCommonFilms(1, 2);
+    }
+
+    // Самосоединение в БД, фильмы загружаются тем же пакетным запросом, что и для индекса
+    @Benchmark
+    public List<Film> commonSql() {
+        return database.getFilmStorage().getFilmsInOrder(database.getReferenceQueries().getCommonFilms(1, 2));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CommonFilmsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,99 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.EventLogStats;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
+import ru.yandex.practicum.filmorate.storage.event.impl.DBEventStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Лента при событиях в таблице EVENTS и после переноса старых окон в архив.
+// 10 пользователей по events событий за последние 100 дней; в архиве остаётся всё старше суток.
+// Размеры таблицы и архива до и после переноса печатаются при подготовке.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.EventArchiveBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventArchiveBenchmark {
+    private static final int PAGE_SIZE = 50;
+    private static final int USERS = 10;
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    @Param({"10000", "100000"})
+    private int events;
+
+    @Param({"TABLE", "ARCHIVE"})
+    private String location;
+
+    private BenchmarkDatabase database;
+    private Path directory;
+    private DBEventStorage eventStorage;
+    private long userId;
+    private long cursor;
+
+    @Setup
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        database.fill(0, USERS, 0, 0, 42);
+        long from = System.currentTimeMillis() - 100 * DAY_MS;
+        for (long user = 1; user <= USERS; user++) {
+            database.addEvents(user, events, from, 100 * DAY_MS / events);
+        }
+        directory = Files.createTempDirectory("events-archive");
+        EventArchive eventArchive = database.createEventArchive(directory, 1);
+        if ("ARCHIVE".equals(location)) {
+            print("до переноса", eventArchive.getStats());
+            eventArchive.archive();
+            print("после переноса", eventArchive.getStats());
+        }
+        eventStorage = database.createEventStorage(eventArchive);
+        userId = USERS / 2;
+        List<Event> middle = eventStorage.getEventOfUser(userId, null, null, events / 2);
+        cursor = middle.get(0).getEventId();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException, IOException {
+        eventStorage.stop();
+        database.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public List<Event> latestPage() {
+        return eventStorage.getEventOfUser(userId, null, null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Event> pageAfterCursor() {
+        return eventStorage.getEventOfUser(userId, cursor, null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Event> fullFeed() {
+        return eventStorage.getEventOfUser(userId);
+    }
+
+    private static void print(String stage, EventLogStats stats) {
+        System.out.printf("%s: в таблице %d событий, %d байт; в архиве %d сегментов, %d событий, %d байт%n",
+                stage, stats.getTableEvents(), stats.getTableBytes(), stats.getSegments(),
+                stats.getArchivedEvents(), stats.getArchiveBytes());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventArchiveBenchmark.class.getSimpleName()).build()).run();
+    }
+}
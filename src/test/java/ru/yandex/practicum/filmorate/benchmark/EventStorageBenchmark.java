@@ -0,0 +1,95 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+import ru.yandex.practicum.filmorate.storage.event.impl.DBEventStorage;
+import ru.yandex.practicum.filmorate.storage.event.impl.MappedEventStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Добавление события и чтение всей ленты пользователя: таблица EVENTS против журнала в отображённом файле.
+// В DBEventStorage добавление только ставит событие в очередь, запись идёт в фоновом потоке.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.EventStorageBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventStorageBenchmark {
+    private static final int USERS = 10;
+
+    @Param({"10000", "100000"})
+    private int events;
+
+    @Param({"db", "mapped"})
+    private String storage;
+
+    private BenchmarkDatabase database;
+    private Path directory;
+    private DBEventStorage dbStorage;
+    private MappedEventStorage mappedStorage;
+    private long entityId;
+
+    @Setup
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        database.fill(0, USERS + 1, 0, 0, 42);
+        directory = Files.createTempDirectory("events");
+        if ("db".equals(storage)) {
+            for (long user = 1; user <= USERS; user++) {
+                database.addEvents(user, events);
+            }
+            dbStorage = database.createEventStorage();
+        } else {
+            mappedStorage = database.createMappedEventStorage(directory.resolve("events.log"));
+            for (int i = 0; i < events; i++) {
+                for (long user = 1; user <= USERS; user++) {
+                    mappedStorage.addEvent(user, EventType.LIKE, EventOperation.ADD, i);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException, IOException {
+        if (dbStorage != null) {
+            dbStorage.stop();
+        }
+        if (mappedStorage != null) {
+            mappedStorage.stop();
+        }
+        database.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    // Добавляет в ленту отдельного пользователя, чтобы не менять просматриваемые
+    @Benchmark
+    public Event append() {
+        long userId = USERS + 1;
+        return dbStorage != null
+                ? dbStorage.addEvent(userId, EventType.LIKE, EventOperation.ADD, entityId++)
+                : mappedStorage.addEvent(userId, EventType.LIKE, EventOperation.ADD, entityId++);
+    }
+
+    @Benchmark
+    public List<Event> scanUser() {
+        long userId = USERS / 2;
+        return dbStorage != null ? dbStorage.getEventOfUser(userId) : mappedStorage.getEventOfUser(userId);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventStorageBenchmark.class.getSimpleName()).build()).run();
+    }
+}
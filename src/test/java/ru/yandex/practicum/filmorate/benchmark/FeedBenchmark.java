@@ -0,0 +1,77 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.storage.event.impl.DBEventStorage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Лента /users/{id}/feed при росте числа событий одного пользователя.
+// Страница по индексу должна читаться за одно время при любом размере ленты, полная лента растёт линейно.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.FeedBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedBenchmark {
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"1000", "100000", "1000000"})
+    private int events;
+
+    private BenchmarkDatabase database;
+    private DBEventStorage eventStorage;
+    private long userId;
+    private long cursor;
+
+    @Setup
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        database.fill(0, 10, 0, 0, 42);
+        userId = 5;
+        for (long user = 1; user <= 10; user++) {
+            database.addEvents(user, user == userId ? events : 1000);
+        }
+        eventStorage = database.createEventStorage();
+        List<Event> middle = eventStorage.getEventOfUser(userId, null, null, events / 2);
+        cursor = middle.get(0).getEventId();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        eventStorage.stop();
+        database.close();
+    }
+
+    @Benchmark
+    public List<Event> latestPage() {
+        return eventStorage.getEventOfUser(userId, null, null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Event> pageAfterCursor() {
+        return eventStorage.getEventOfUser(userId, cursor, null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Event> pageBeforeCursor() {
+        return eventStorage.getEventOfUser(userId, null, cursor, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Event> fullFeed() {
+        return eventStorage.getEventOfUser(userId);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FeedBenchmark.class.getSimpleName()).build()).run();
+    }
+}
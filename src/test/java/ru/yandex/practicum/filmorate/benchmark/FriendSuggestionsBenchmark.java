@@ -0,0 +1,59 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Рекомендации друзей /users/{id}/friends/suggestions: у пользователя friends друзей,
+// у каждого из них friendDegree случайных друзей среди 1 млн пользователей.
+// maxFanOut = 1000000 - обход без ограничения ветвления. Граф заполняется напрямую, без БД.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.FriendSuggestionsBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendSuggestionsBenchmark {
+    private static final int USERS = 1000000;
+
+    @Param({"100", "1000"})
+    private int friends;
+
+    @Param({"1000", "5000"})
+    private int friendDegree;
+
+    @Param({"200", "1000000"})
+    private int maxFanOut;
+
+    private FriendshipGraph graph;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        graph = new FriendshipGraph(new JdbcTemplate(), maxFanOut);
+        for (long friendId = 2; friendId <= friends + 1; friendId++) {
+            graph.addFriend(1, friendId);
+            for (int i = 0; i < friendDegree; i++) {
+                graph.addFriend(friendId, 1 + random.nextInt(USERS));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Long> suggestFriends() {
+        return graph.suggestFriends(1, 10);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FriendSuggestionsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
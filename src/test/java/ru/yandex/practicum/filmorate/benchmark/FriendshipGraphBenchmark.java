@@ -0,0 +1,72 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Граф дружбы на 10 млн связей: 1 млн пользователей по 10 случайных друзей.
+// Граф заполняется напрямую, без БД; занятая им куча выводится в лог при подготовке.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.FriendshipGraphBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendshipGraphBenchmark {
+    private static final int USERS = 1000000;
+    private static final int FRIENDS = 10;
+    private final Random random = new Random(42);
+    private FriendshipGraph graph;
+
+    @Setup
+    public void setUp() {
+        long before = usedHeap();
+        graph = new FriendshipGraph(new JdbcTemplate(), 200);
+        for (long userId = 1; userId <= USERS; userId++) {
+            for (int i = 0; i < FRIENDS; i++) {
+                graph.addFriend(userId, nextUser());
+            }
+        }
+        long used = usedHeap() - before;
+        System.out.printf("Граф дружбы: %d связей, %d МБ кучи%n", graph.getEdgesCount(), used >> 20);
+    }
+
+    @Benchmark
+    public List<Long> mutualFriends() {
+        return graph.getMutualFriends(nextUser(), nextUser());
+    }
+
+    // Добавление и удаление одной связи: копирование массива друзей пользователя
+    @Benchmark
+    public void addAndRemoveFriend() {
+        long userId = nextUser();
+        long friendId = nextUser();
+        graph.addFriend(userId, friendId);
+        graph.removeFriend(userId, friendId);
+    }
+
+    private long nextUser() {
+        return 1 + random.nextInt(USERS);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FriendshipGraphBenchmark.class.getSimpleName()).build()).run();
+    }
+}
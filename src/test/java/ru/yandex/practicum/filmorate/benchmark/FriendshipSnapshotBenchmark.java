@@ -0,0 +1,103 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipSnapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Загрузка графа дружбы при старте: из таблицы FRIENDSHIPS против снимка с дочитыванием событий.
+// 100 тыс. пользователей по 9 друзей, 900 тыс. связей; после снимка у первых events пользователей
+// появляется десятый друг: строка FRIENDSHIPS и событие FRIEND ADD.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.FriendshipSnapshotBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FriendshipSnapshotBenchmark {
+    private static final int USERS = 100000;
+    private static final int FRIENDS = 10;
+
+    @Param({"0", "10000"})
+    private int events;
+
+    private BenchmarkDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        jdbcTemplate = database.getJdbcTemplate();
+        database.addUsers(USERS);
+        List<long[]> friendships = new ArrayList<>();
+        for (long userId = 1; userId <= USERS; userId++) {
+            for (int i = 1; i < FRIENDS; i++) {
+                friendships.add(new long[]{userId, friendOf(userId, i)});
+            }
+        }
+        insertFriendships(friendships);
+        file = Files.createTempFile("friendships", ".csr");
+        database.getFriendshipGraph().rebuild();
+        new FriendshipSnapshot(jdbcTemplate, database.getFriendshipGraph(), file.toString(), 0, "db").write();
+        List<long[]> added = new ArrayList<>();
+        for (long userId = 1; userId <= events; userId++) {
+            added.add(new long[]{userId, friendOf(userId, FRIENDS)});
+        }
+        insertFriendships(added);
+        jdbcTemplate.batchUpdate("insert into EVENTS (USER_ID, ENTITY_ID, EVENT_TYPE, EVENT_OPERATION, TIMESTAMP) " +
+                "values (?, ?, 'FRIEND', 'ADD', 0)", added, 10000, (ps, friendship) -> {
+                    ps.setLong(1, friendship[0]);
+                    ps.setLong(2, friendship[1]);
+                });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        database.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public FriendshipGraph rebuild() {
+        FriendshipGraph graph = new FriendshipGraph(jdbcTemplate, 200);
+        new FriendshipSnapshot(jdbcTemplate, graph, "", 0, "db").start();
+        return graph;
+    }
+
+    @Benchmark
+    public FriendshipGraph snapshot() {
+        FriendshipGraph graph = new FriendshipGraph(jdbcTemplate, 200);
+        new FriendshipSnapshot(jdbcTemplate, graph, file.toString(), 0, "db").start();
+        return graph;
+    }
+
+    private void insertFriendships(List<long[]> friendships) {
+        jdbcTemplate.batchUpdate("insert into FRIENDSHIPS (USER_ONE_ID, USER_TWO_ID, STATUS) values (?, ?, 0)",
+                friendships, 10000, (ps, friendship) -> {
+                    ps.setLong(1, friendship[0]);
+                    ps.setLong(2, friendship[1]);
+                });
+    }
+
+    // i-й друг пользователя: разные друзья без совпадений с самим пользователем
+    private static long friendOf(long userId, int i) {
+        return 1 + (userId - 1 + i * 9973L) % USERS;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FriendshipSnapshotBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.storage.film.impl.LikeWriteBuffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Поток оценок на премьере: немного фильмов, много пользователей, повторные оценки.
+// Запись в запросе против буфера с пакетным сбросом каждые flushSize оценок.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.LikeBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LikeBenchmark {
+    private static final int HOT_FILMS = 10;
+    private static final int USERS = 1000;
+
+    @Param({"100", "1000"})
+    private int flushSize;
+
+    private BenchmarkDatabase database;
+    private LikeWriteBuffer buffer;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(100, USERS, 10, 0, 42);
+        buffer = database.createLikeBuffer(LikeWriteBuffer.Mode.WRITE_BEHIND, flushSize);
+        random = new Random(42);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffer.flush();
+        database.close();
+    }
+
+    @Benchmark
+    public Film likeSync() {
+        return database.getFilmStorage().setLikeToFilm(1 + random.nextInt(HOT_FILMS), 1 + random.nextInt(USERS),
+                1 + random.nextInt(10));
+    }
+
+    @Benchmark
+    public void likeBuffered() {
+        buffer.setMark(1 + random.nextInt(HOT_FILMS), 1 + random.nextInt(USERS), (double) (1 + random.nextInt(10)));
+        if (buffer.getPendingCount() >= flushSize) {
+            buffer.flush();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LikeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Общие друзья /users/{id}/friends/common/{otherId}: слияние массивов графа дружбы против соединения FRIENDSHIPS.
+// У каждого из двух пользователей friends друзей среди 10000 пользователей.
+// Граф на 10 млн связей - FriendshipGraphBenchmark.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.MutualFriendsBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutualFriendsBenchmark {
+    private static final int USERS = 10000;
+
+    @Param({"100", "1000", "5000"})
+    private int friends;
+
+    private BenchmarkDatabase database;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(0, USERS, 0, 0, 42);
+        Random random = new Random(42);
+        for (long userId = 1; userId <= 2; userId++) {
+            List<Long> friendIds = new ArrayList<>();
+            for (long friendId = 3; friendId <= USERS; friendId++) {
+                friendIds.add(friendId);
+            }
+            Collections.shuffle(friendIds, random);
+            database.addFriends(userId, friendIds.subList(0, friends));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    // Только пересечение идентификаторов, без загрузки пользователей из БД
+    @Benchmark
+    public List<Long> mutualGraphIds() {
+        return database.getFriendshipGraph().getMutualFriends(1, 2);
+    }
+
+    @Benchmark
+    public List<User> mutualGraph() {
+        return database.getUserStorage().getMutualFriends(1, 2);
+    }
+
+    // Соединение FRIENDSHIPS в БД, тоже только идентификаторы
+    @Benchmark
+    public List<Long> mutualSqlIds() {
+        return database.getReferenceQueries().getMutualFriends(1, 2);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MutualFriendsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
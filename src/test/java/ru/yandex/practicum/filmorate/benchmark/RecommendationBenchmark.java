@@ -0,0 +1,60 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Рекомендации /users/{id}/recommendations: матрица оценок в памяти против запроса к БД.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.RecommendationBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecommendationBenchmark {
+    @Param({"100", "1000"})
+    private int users;
+
+    private BenchmarkDatabase database;
+    private long userId;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(2000, users, 50, 30, 42);
+        userId = users / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    // Только подбор идентификаторов, без загрузки фильмов из БД
+    @Benchmark
+    public List<Long> recommendIndexIds() {
+        return database.getRecommendationIndex().recommend(userId);
+    }
+
+    @Benchmark
+    public List<Film> recommendIndex() {
+        return database.getFilmStorage().getRecommendationsByUserId(userId);
+    }
+
+    // Подбор в БД, фильмы загружаются тем же пакетным запросом, что и для индекса
+    @Benchmark
+    public List<Film> recommendSql() {
+        return database.getFilmStorage().getFilmsInOrder(database.getReferenceQueries().getRecommendations(userId));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RecommendationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Поиск /films/search: инвертированный индекс в памяти против ILIKE в БД.
+// Запуск: mvn test-compile exec:java -Dexec.classpathScope=test
+//         -Dexec.mainClass=ru.yandex.practicum.filmorate.benchmark.SearchBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"1000", "10000"})
+    private int films;
+
+    @Param({"solaris", "ru"})
+    private String query;
+
+    private BenchmarkDatabase database;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(films, 50, 100, 20, 42);
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    // Только отбор идентификаторов, без загрузки фильмов из БД
+    @Benchmark
+    public Set<Long> searchIndexIds() {
+        return database.getSearchIndex().search(query, true, true);
+    }
+
+    @Benchmark
+    public List<Film> searchIndex() {
+        return database.getFilmStorage().getFilmsBySearch(query, "title,director");
+    }
+
+    // ILIKE в БД, фильмы загружаются тем же пакетным запросом, что и для индекса
+    @Benchmark
+    public List<Film> searchSql() {
+        List<Long> ids = database.getReferenceQueries().getFilmsBySearch(query, "title,director");
+        return database.getFilmStorage().getFilmsInOrder(ids);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SearchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -1,11 +1,20 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.context.request.ServletWebRequest;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Mpa;
@@ -13,12 +22,23 @@ import ru.yandex.practicum.filmorate.service.FilmService;
 import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
 import ru.yandex.practicum.filmorate.storage.director.impl.DBDirectorStorage;
 import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
 import ru.yandex.practicum.filmorate.storage.event.impl.DBEventStorage;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationCache;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
 import ru.yandex.practicum.filmorate.storage.film.impl.DBFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.impl.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 import ru.yandex.practicum.filmorate.storage.user.impl.DBUserStorage;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
 
+import javax.sql.DataSource;
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.Validator;
@@ -131,15 +151,66 @@ public class FilmControllerTest {
                 .duration(DURATION)
                 .mpa(new Mpa(2, null, null))
                 .build();
-        JdbcTemplate jdbcTemplate = new JdbcTemplate();
-        FilmStorage filmSt = new DBFilmStorage(jdbcTemplate, new NamedParameterJdbcTemplate(jdbcTemplate));
-        UserStorage userSt = new DBUserStorage(new JdbcTemplate());
-        DirectorStorage dirSt = new DBDirectorStorage(new JdbcTemplate());
-        EventStorage eventSt = new DBEventStorage(new JdbcTemplate());
-        FilmService filmSv = new FilmService(filmSt, userSt, dirSt, eventSt);
-        FilmController filmCnt = new FilmController(filmSv);
+        FilmController filmCnt = createController(new EntityVersions(), new SimpleMeterRegistry());
         Throwable thrown = assertThrows(ValidationException.class, () ->
                 filmCnt.createFilm(film));
         assertEquals("Дата релиза раньше 28 декабря 1895 года", thrown.getMessage());
     }
+
+    @Test
+    @DisplayName("Отрицательный размер списка популярных фильмов")
+    void negativePopularCountTest() {
+        FilmController filmCnt = createController(new EntityVersions(), new SimpleMeterRegistry());
+        ServletWebRequest request = new ServletWebRequest(new MockHttpServletRequest("GET", "/films/popular"));
+        Throwable thrown = assertThrows(ValidationException.class, () ->
+                filmCnt.getPopularFilms(-1, 0, 0, request));
+        assertEquals("Размер страницы должен быть положительным: -1", thrown.getMessage());
+    }
+
+    @Test
+    @DisplayName("Условный запрос по ETag")
+    void notModifiedTest() {
+        EntityVersions entityVersions = new EntityVersions();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FilmController filmCnt = createController(entityVersions, meterRegistry);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/films/1");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"" + entityVersions.filmTag(1) + "\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        // При совпадении тега сначала проверяется существование фильма, здесь - в хранилище без базы.
+        // Ответ 304 для существующего фильма проверяется в EventStorageTests на ленте
+        assertThrows(RuntimeException.class, () -> filmCnt.getFilm(1, new ServletWebRequest(request, response)));
+        assertNotEquals(304, response.getStatus(), "Ответ 304 до проверки существования");
+
+        entityVersions.filmChanged(1);
+        // После изменения фильма запрос идёт в хранилище, у которого нет базы
+        assertThrows(RuntimeException.class, () -> filmCnt.getFilm(1,
+                new ServletWebRequest(request, new MockHttpServletResponse())));
+        assertEquals(1, meterRegistry.counter("filmorate.etag.requests",
+                "endpoint", "film", "result", "miss").count(), "Ошибка подсчёта промахов");
+    }
+
+    private FilmController createController(EntityVersions entityVersions, MeterRegistry meterRegistry) {
+        // Источник данных без адреса базы: любое обращение к хранилищу заканчивается ошибкой
+        DataSource dataSource = new DriverManagerDataSource();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        PlatformTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        PopularityIndex popularityIndex = new PopularityIndex(jdbcTemplate);
+        SearchIndex searchIndex = new SearchIndex(jdbcTemplate);
+        RecommendationIndex recommendationIndex = new RecommendationIndex(jdbcTemplate);
+        LikeWriteBuffer likeBuffer = new LikeWriteBuffer(jdbcTemplate, transactionManager,
+                popularityIndex, recommendationIndex, LikeWriteBuffer.Mode.SYNC, 0, 0);
+        SuggestIndex suggestIndex = new SuggestIndex(jdbcTemplate, popularityIndex, searchIndex);
+        FilmStorage filmSt = new DBFilmStorage(jdbcTemplate, popularityIndex, searchIndex, suggestIndex,
+                recommendationIndex, new ReferenceDataRegistry(jdbcTemplate), likeBuffer);
+        UserStorage userSt = new DBUserStorage(jdbcTemplate, popularityIndex, recommendationIndex,
+                new FriendshipGraph(jdbcTemplate, 200));
+        DirectorStorage dirSt = new DBDirectorStorage(jdbcTemplate, searchIndex, suggestIndex);
+        EventArchive eventArchive = new EventArchive(jdbcTemplate, transactionManager, "", 0, 24, 0);
+        EventStorage eventSt = new DBEventStorage(jdbcTemplate, transactionManager, eventArchive, entityVersions,
+                meterRegistry, 10, 10, DBEventStorage.OverflowPolicy.BLOCK);
+        RecommendationCache recommendationCache = new RecommendationCache(recommendationIndex, 0, 100);
+        FilmService filmSv = new FilmService(filmSt, userSt, dirSt, eventSt, suggestIndex, recommendationCache,
+                entityVersions, likeBuffer);
+        return new FilmController(filmSv, new ObjectMapper(), entityVersions, new ConditionalRequests(meterRegistry));
+    }
 }
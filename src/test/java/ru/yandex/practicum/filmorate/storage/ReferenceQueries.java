@@ -0,0 +1,110 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Эталонные расчёты средствами БД: индексы в памяти должны давать те же id в том же порядке.
+// Используются в тестах на совпадение с индексами и в бенчмарках как путь через SQL
+public class ReferenceQueries {
+    private final JdbcTemplate jdbcTemplate;
+
+    public ReferenceQueries(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public List<Long> getPopularFilms(int count, int genreId, int year) {
+        String sqlQuery = "select F.FILM_ID from FILMS as F "
+                + "left join FILMS_RATINGS R on F.FILM_ID = R.FILM_ID "
+                + "%s "
+                + "where %s "
+                + "order by R.RATING desc nulls last, F.FILM_ID "
+                + "limit ?";
+        String joinGenresQuery = genreId > 0 ? "left join FILMS_GENRES FG on F.FILM_ID = FG.FILM_ID " : "";
+        String whereCondition;
+        if (genreId > 0 && year > 0) {
+            whereCondition = "FG.GENRE_ID=? and extract(YEAR from F.RELEASEDATE)=?";
+        } else if (genreId > 0) {
+            whereCondition = "FG.GENRE_ID=?";
+        } else if (year > 0) {
+            whereCondition = "extract(YEAR from F.RELEASEDATE)=?";
+        } else {
+            whereCondition = "1=1";
+        }
+        List<Object> params = new ArrayList<>();
+        if (genreId > 0) {
+            params.add(genreId);
+        }
+        if (year > 0) {
+            params.add(year);
+        }
+        params.add(count);
+        return jdbcTemplate.queryForList(String.format(sqlQuery, joinGenresQuery, whereCondition), Long.class,
+                params.toArray());
+    }
+
+    // ILIKE '%query%' по названию и/или именам режиссёров
+    public List<Long> getFilmsBySearch(String query, String by) {
+        boolean director = false;
+        boolean title = false;
+        for (String str : by.split(",")) {
+            if (str.equals("director")) {
+                director = true;
+            } else if (str.equals("title")) {
+                title = true;
+            }
+        }
+        String sqlQuery = "select f.FILM_ID from FILMS as f " +
+                "left join FILMS_RATINGS as r on f.FILM_ID = r.FILM_ID " +
+                "where %s " +
+                "order by r.MARKS_COUNT desc, f.FILM_ID";
+        String directorCondition = "exists (select 1 from FILMS_DIRECTORS as fd " +
+                "join DIRECTORS as d on d.DIRECTOR_ID = fd.DIRECTOR_ID " +
+                "where fd.FILM_ID = f.FILM_ID and d.NAME ilike ?)";
+        String pattern = "%" + query + "%";
+        if (title && director) {
+            return jdbcTemplate.queryForList(String.format(sqlQuery, "f.NAME ilike ? or " + directorCondition),
+                    Long.class, pattern, pattern);
+        } else if (director) {
+            return jdbcTemplate.queryForList(String.format(sqlQuery, directorCondition), Long.class, pattern);
+        } else if (title) {
+            return jdbcTemplate.queryForList(String.format(sqlQuery, "f.NAME ilike ?"), Long.class, pattern);
+        }
+        return new ArrayList<>();
+    }
+
+    // Фильмы, которые оба пользователя оценили выше 5
+    public List<Long> getCommonFilms(long userId, long friendId) {
+        String sqlQuery = "select f.FILM_ID from FILMS as f " +
+                "join FILMS_LIKES as l1 on f.FILM_ID = l1.FILM_ID and l1.USER_ID = ? and l1.MARK > 5 " +
+                "join FILMS_LIKES as l2 on l1.FILM_ID = l2.FILM_ID and l2.USER_ID = ? and l2.MARK > 5 " +
+                "left join FILMS_RATINGS as r on r.FILM_ID = f.FILM_ID " +
+                "order by r.MARKS_COUNT desc, f.FILM_ID";
+        return jdbcTemplate.queryForList(sqlQuery, Long.class, userId, friendId);
+    }
+
+    // Фильмы пользователей с наибольшим числом общих положительных оценок, со средней оценкой выше 5
+    public List<Long> getRecommendations(long id) {
+        String sqlQuery = "with CF as (select l.USER_ID, count(l.FILM_ID) as COUNT_FILM " +
+                "            from FILMS_LIKES as l " +
+                "            join FILMS_LIKES as t on t.FILM_ID = l.FILM_ID and t.USER_ID = ? and t.MARK > 5 " +
+                "            where l.USER_ID != ? and l.MARK > 5 " +
+                "            group by l.USER_ID) " +
+                "select FILM_ID, avg(MARK) as RATE from FILMS_LIKES " +
+                "where FILM_ID not in (select FILM_ID from FILMS_LIKES where USER_ID = ?) " +
+                "  and USER_ID in (select USER_ID from CF where COUNT_FILM = (select max(COUNT_FILM) from CF)) " +
+                "group by FILM_ID " +
+                "having RATE > 5 " +
+                "order by RATE desc, FILM_ID";
+        return jdbcTemplate.query(sqlQuery, (rs, rowNum) -> rs.getLong("FILM_ID"), id, id, id);
+    }
+
+    public List<Long> getMutualFriends(long id, long otherId) {
+        String sqlQuery = "select f1.USER_TWO_ID from FRIENDSHIPS as f1 " +
+                "join FRIENDSHIPS as f2 on f2.USER_ONE_ID = ? and f2.USER_TWO_ID = f1.USER_TWO_ID " +
+                "where f1.USER_ONE_ID = ? " +
+                "order by f1.USER_TWO_ID";
+        return jdbcTemplate.queryForList(sqlQuery, Long.class, otherId, id);
+    }
+}
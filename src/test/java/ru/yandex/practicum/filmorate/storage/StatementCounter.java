@@ -0,0 +1,59 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Обёртка над DataSource, считающая подготовленные SQL-запросы (для проверки отсутствия N+1)
+public class StatementCounter {
+    private final AtomicInteger count = new AtomicInteger();
+    private final DataSource dataSource;
+
+    public StatementCounter(DataSource target) {
+        this.dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(target, method, args);
+                    if (result instanceof Connection) {
+                        return wrap((Connection) result);
+                    }
+                    return result;
+                });
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        count.set(0);
+    }
+
+    private Connection wrap(Connection target) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement") || name.equals("prepareCall")
+                            || name.equals("createStatement")) {
+                        count.incrementAndGet();
+                    }
+                    return invoke(target, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package ru.yandex.practicum.filmorate.storage.event.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.yandex.practicum.filmorate.model.Event;
+import ru.yandex.practicum.filmorate.model.EventLogStats;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.enums.EventOperation;
+import ru.yandex.practicum.filmorate.model.enums.EventType;
+import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.event.archive.EventArchive;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.version.EntityVersions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureTestDatabase
+@AutoConfigureMockMvc
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+@Sql(scripts = "file:src/main/resources/data.sql", executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD)
+@DisplayName("Тесты EventStorage")
+class EventStorageTests {
+    private final EventStorage eventStorage;
+    private final UserStorage userStorage;
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final EntityVersions entityVersions;
+    private final EventArchive eventArchive;
+    private final MockMvc mockMvc;
+    private final List<MappedEventStorage> mappedStorages = new ArrayList<>();
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"db", "mapped"})
+    @DisplayName("Лента сразу видит только что добавленные события")
+    void addEventTest(String storageType) throws IOException {
+        EventStorage eventStorage = openStorage(storageType);
+        User user = userStorage.createUser(createUser());
+        User friend = userStorage.createUser(createUser());
+        List<Long> ids = new ArrayList<>();
+        ids.add(eventStorage.addEvent(user.getId(), EventType.FRIEND, EventOperation.ADD, friend.getId()).getEventId());
+        ids.add(eventStorage.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, 1).getEventId());
+        eventStorage.addEvent(friend.getId(), EventType.LIKE, EventOperation.ADD, 1);
+        ids.add(eventStorage.addEvent(user.getId(), EventType.LIKE, EventOperation.REMOVE, 1).getEventId());
+        assertTrue(ids.get(0) < ids.get(1) && ids.get(1) < ids.get(2), "Идентификаторы должны возрастать");
+
+        List<Long> feed = new ArrayList<>();
+        for (Event event : eventStorage.getEventOfUser(user.getId())) {
+            feed.add(event.getEventId());
+        }
+        feed.sort(Long::compare);
+        assertEquals(ids, feed, "Ошибка ленты");
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"db", "mapped"})
+    @DisplayName("Постраничная лента по курсорам")
+    void feedPageTest(String storageType) throws IOException {
+        EventStorage eventStorage = openStorage(storageType);
+        User user = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(eventStorage.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, i).getEventId());
+            eventStorage.addEvent(other.getId(), EventType.LIKE, EventOperation.ADD, i);
+        }
+        assertEquals(ids.subList(7, 10), toIds(eventStorage.getEventOfUser(user.getId(), null, null, 3)),
+                "Ошибка последней страницы");
+        assertEquals(ids.subList(3, 6), toIds(eventStorage.getEventOfUser(user.getId(), ids.get(2), null, 3)),
+                "Ошибка страницы после курсора");
+        assertEquals(ids.subList(3, 5), toIds(eventStorage.getEventOfUser(user.getId(), null, ids.get(5), 2)),
+                "Ошибка страницы до курсора");
+        assertEquals(ids.subList(2, 4), toIds(eventStorage.getEventOfUser(user.getId(), ids.get(1), ids.get(4), 10)),
+                "Ошибка страницы между курсорами");
+        assertTrue(eventStorage.getEventOfUser(user.getId(), ids.get(9), null, 10).isEmpty(), "Ошибка конца ленты");
+    }
+
+    @Test
+    @DisplayName("Страницы ленты читаются по индексу")
+    void feedIndexTest() {
+        for (String order : List.of("EVENT_ID", "EVENT_ID DESC")) {
+            String plan = jdbcTemplate.queryForObject("EXPLAIN SELECT EVENT_ID, USER_ID, ENTITY_ID, EVENT_TYPE, " +
+                    "EVENT_OPERATION, TIMESTAMP FROM EVENTS USE INDEX (IDX_EVENTS_USER) " +
+                    "WHERE USER_ID = 1 AND EVENT_ID > 1 ORDER BY USER_ID, " + order + " LIMIT 3", String.class);
+            assertTrue(plan.replaceAll("\\s+", " ").contains("IDX_EVENTS_USER: USER_ID = 1 AND EVENT_ID > 1"),
+                    "Лента должна читаться по диапазону индекса: " + plan);
+            assertEquals(order.endsWith("DESC"), plan.contains("index sorted"),
+                    "Без сортировки читается только лента назад: " + plan);
+        }
+    }
+
+    @Test
+    @DisplayName("Переполнение очереди событий")
+    void overflowTest() throws InterruptedException {
+        User user = userStorage.createUser(createUser());
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        DBEventStorage storage = new DBEventStorage(jdbcTemplate, transactionManager, eventArchive, entityVersions,
+                meterRegistry, 2, 10, DBEventStorage.OverflowPolicy.DROP);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(storage.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, i).getEventId());
+        }
+        assertEquals(1, meterRegistry.counter("filmorate.events.dropped").count(), "Ошибка счётчика отброшенных");
+        assertNull(ids.get(2), "Отброшенное событие не должно получать id");
+
+        storage.start();
+        storage.stop();
+        assertEquals(2, storage.getEventOfUser(user.getId()).size(), "Очередь должна дописываться при остановке");
+    }
+
+    @Test
+    @DisplayName("Живая лента по SSE: досылка после Last-Event-ID и новые события")
+    void feedStreamTest() throws Exception {
+        User user = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        long missed = eventStorage.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, 1).getEventId();
+        MvcResult result = mockMvc.perform(get("/users/{id}/feed/stream", user.getId())
+                        .header("Last-Event-ID", missed - 1))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        eventStorage.addEvent(other.getId(), EventType.LIKE, EventOperation.ADD, 1);
+        long live = eventStorage.addEvent(user.getId(), EventType.LIKE, EventOperation.REMOVE, 1).getEventId();
+
+        MockHttpServletResponse response = result.getResponse();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!response.getContentAsString().contains("id:" + live) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        String content = response.getContentAsString();
+        assertTrue(content.contains("id:" + missed), "Пропущенное событие должно быть дослано: " + content);
+        assertTrue(content.indexOf("id:" + missed) < content.indexOf("id:" + live),
+                "Новое событие должно прийти после пропущенного: " + content);
+        assertEquals(2, content.split("event:event").length - 1, "В поток попали чужие события: " + content);
+
+        mockMvc.perform(get("/users/{id}/feed/stream", 9999)).andExpect(status().isNotFound());
+        mockMvc.perform(get("/users/{id}/feed", user.getId()).param("limit", "1001"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @DisplayName("Условный запрос ленты: 304 без изменений, 404 для отсутствующего пользователя")
+    void feedNotModifiedTest() throws Exception {
+        User user = userStorage.createUser(createUser());
+        String etag = mockMvc.perform(get("/users/{id}/feed", user.getId()))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag, "Ответ без ETag");
+        mockMvc.perform(get("/users/{id}/feed", user.getId()).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get("/users/{id}/feed", 9999)
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"" + entityVersions.feedTag(9999) + "\""))
+                .andExpect(status().isNotFound());
+
+        userStorage.deleteUser(user.getId());
+        entityVersions.feedDeleted(user.getId());
+        String deletedTag = entityVersions.feedTag(user.getId());
+        assertTrue(deletedTag.endsWith("-0"), "Счётчик удалённого пользователя должен убираться: " + deletedTag);
+        mockMvc.perform(get("/users/{id}/feed", user.getId())
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"" + deletedTag + "\""))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @DisplayName("Перенос старых окон в архив и чтение ленты через архив")
+    void archiveTest(@TempDir Path directory) throws Exception {
+        User user = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        EventArchive archive = new EventArchive(jdbcTemplate, transactionManager, directory.toString(), 3, 24, 60000);
+        archive.start();
+        DBEventStorage storage = new DBEventStorage(jdbcTemplate, transactionManager, archive, entityVersions,
+                new SimpleMeterRegistry(), 100, 10, DBEventStorage.OverflowPolicy.BLOCK);
+        storage.start();
+        long day = TimeUnit.DAYS.toMillis(1);
+        long now = System.currentTimeMillis();
+        long cutoff = Math.floorDiv(now - 3 * day, day) * day;
+        List<Long> ids = new ArrayList<>();
+        int expectedArchived = 0;
+        for (int i = 0; i < 10; i++) {
+            long timestamp = now - (9 - i) * day;
+            ids.add(storage.saveEvent(createEvent(user.getId(), timestamp)).getEventId());
+            storage.saveEvent(createEvent(other.getId(), timestamp));
+            expectedArchived += timestamp < cutoff ? 2 : 0;
+        }
+        List<Event> feed = storage.getEventOfUser(user.getId());
+
+        assertEquals(expectedArchived, archive.archive(now), "Ошибка числа перенесённых событий");
+        EventLogStats stats = archive.getStats();
+        assertEquals(expectedArchived, stats.getArchivedEvents(), "Ошибка статистики архива");
+        assertEquals(20 - expectedArchived, stats.getTableEvents(), "Старые события должны уйти из таблицы");
+        assertEquals(expectedArchived / 2, stats.getSegments(), "Ожидается сегмент на каждое окно");
+        assertEquals(toIds(feed), toIds(storage.getEventOfUser(user.getId())), "Лента изменилась после переноса");
+        assertEquals(feed.get(0).getTimestamp(), storage.getEventOfUser(user.getId()).get(0).getTimestamp(),
+                "Ошибка чтения события из архива");
+        assertEquals(ids.subList(2, 5), toIds(storage.getEventOfUser(user.getId(), ids.get(1), null, 3)),
+                "Ошибка страницы из архива");
+        assertEquals(ids.subList(4, 8), toIds(storage.getEventOfUser(user.getId(), null, ids.get(8), 4)),
+                "Ошибка страницы на границе архива и таблицы");
+        assertEquals(ids.subList(7, 10), toIds(storage.getEventOfUser(user.getId(), null, null, 3)),
+                "Ошибка последней страницы");
+        storage.stop();
+
+        Path orphan = directory.resolve("events-0-0.seg.tmp");
+        Files.write(orphan, new byte[]{1, 2, 3});
+        EventArchive restarted = new EventArchive(jdbcTemplate, transactionManager, directory.toString(), 3, 24,
+                60000);
+        restarted.start();
+        assertFalse(Files.exists(orphan), "Недописанный сегмент должен удаляться при старте");
+        DBEventStorage reopened = new DBEventStorage(jdbcTemplate, transactionManager, restarted, entityVersions,
+                new SimpleMeterRegistry(), 100, 10, DBEventStorage.OverflowPolicy.BLOCK);
+        reopened.start();
+        assertEquals(toIds(feed), toIds(reopened.getEventOfUser(user.getId())), "Архив не прочитан после перезапуска");
+        long next = reopened.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, 1).getEventId();
+        assertTrue(next > ids.get(9), "Идентификаторы не должны повторять архивные");
+
+        assertEquals(expectedArchived / 2, restarted.removeUser(other.getId()), "Ошибка удаления из архива");
+        assertEquals(expectedArchived / 2, restarted.getStats().getArchivedEvents(), "Ошибка статистики архива");
+        assertEquals(toIds(feed).subList(0, expectedArchived / 2),
+                toIds(restarted.withArchived(user.getId(), List.of(), null, null, Integer.MAX_VALUE, true)),
+                "События других пользователей должны остаться в архиве");
+        assertTrue(restarted.withArchived(other.getId(), List.of(), null, null, Integer.MAX_VALUE, true).isEmpty(),
+                "События удалённого пользователя остались в архиве");
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(expectedArchived / 2, files.count(), "Старые файлы сегментов должны удаляться");
+        }
+        reopened.stop();
+        restarted.stop();
+        archive.stop();
+    }
+
+    @Test
+    @DisplayName("Журнал событий восстанавливается после перезапуска")
+    void mappedRecoveryTest() throws IOException {
+        User user = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        Path file = tempDir.resolve("events.log");
+        MappedEventStorage storage = new MappedEventStorage(jdbcTemplate, entityVersions, file.toString(), 4, 1000);
+        storage.start();
+        for (int i = 0; i < 10; i++) {
+            storage.addEvent(user.getId(), EventType.LIKE, EventOperation.ADD, i);
+            storage.addEvent(other.getId(), EventType.FRIEND, EventOperation.REMOVE, i);
+        }
+        List<Event> feed = storage.getEventOfUser(user.getId());
+        storage.stop();
+        // Оборванная при сбое запись после последней целой
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9}), 20L * MappedEventStorage.RECORD_SIZE);
+        }
+        userStorage.deleteUser(other.getId());
+
+        MappedEventStorage reopened = openMapped(file);
+        List<Event> recovered = reopened.getEventOfUser(user.getId());
+        assertEquals(toIds(feed), toIds(recovered), "Ошибка ленты после перезапуска");
+        assertEquals(feed.get(3).getEntityId(), recovered.get(3).getEntityId(), "Ошибка чтения записи");
+        assertEquals(feed.get(3).getTimestamp(), recovered.get(3).getTimestamp(), "Ошибка чтения записи");
+        assertEquals(EventType.LIKE, recovered.get(3).getEventType(), "Ошибка чтения записи");
+        assertTrue(reopened.getEventOfUser(other.getId()).isEmpty(), "События удалённого пользователя в индексе");
+        assertTrue(Files.size(file) < 20L * MappedEventStorage.RECORD_SIZE,
+                "Журнал должен сжиматься без событий удалённого пользователя");
+        long next = reopened.addEvent(user.getId(), EventType.REVIEW, EventOperation.UPDATE, 1).getEventId();
+        assertEquals(21, next, "Идентификаторы должны продолжаться после восстановления");
+        reopened.stop();
+
+        assertEquals(11, openMapped(file).getEventOfUser(user.getId()).size(),
+                "Новая запись должна заменить оборванную");
+    }
+
+    @AfterEach
+    void closeStorages() throws IOException {
+        for (MappedEventStorage storage : mappedStorages) {
+            storage.stop();
+        }
+        mappedStorages.clear();
+    }
+
+    private EventStorage openStorage(String storageType) throws IOException {
+        return "mapped".equals(storageType) ? openMapped(tempDir.resolve("events.log")) : eventStorage;
+    }
+
+    // Маленькие куски, чтобы тесты проходили через отображение нескольких кусков
+    private MappedEventStorage openMapped(Path file) throws IOException {
+        MappedEventStorage storage = new MappedEventStorage(jdbcTemplate, entityVersions, file.toString(), 4, 1000);
+        storage.start();
+        mappedStorages.add(storage);
+        return storage;
+    }
+
+    private List<Long> toIds(List<Event> events) {
+        List<Long> ids = new ArrayList<>();
+        for (Event event : events) {
+            ids.add(event.getEventId());
+        }
+        return ids;
+    }
+
+    private Event createEvent(long userId, long timestamp) {
+        return Event.builder()
+                .userId(userId)
+                .eventType(EventType.LIKE)
+                .operation(EventOperation.ADD)
+                .entityId(1L)
+                .timestamp(timestamp)
+                .build();
+    }
+
+    private User createUser() {
+        return User.builder()
+                .email("andrew@robot.com")
+                .login("Andrew")
+                .name("Andrew Robot")
+                .birthday(LocalDate.parse("1999-12-28"))
+                .build();
+    }
+}
@@ -1,23 +1,40 @@
 package ru.yandex.practicum.filmorate.storage.film.impl;
 
 import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.exception.SQLWorkException;
+import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.model.Suggestion;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.ReferenceQueries;
+import ru.yandex.practicum.filmorate.storage.StatementCounter;
+import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationCache;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.SuggestIndex;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
+import javax.sql.DataSource;
 import java.time.LocalDate;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -29,6 +46,24 @@ import static org.junit.jupiter.api.Assertions.*;
 class FilmStorageTests {
     private final FilmStorage filmStorage;
     private final UserStorage userStorage;
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final DirectorStorage directorStorage;
+    private final PopularityIndex popularityIndex;
+    private final SearchIndex searchIndex;
+    private final SuggestIndex suggestIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final ReferenceDataRegistry referenceData;
+    private final LikeWriteBuffer likeBuffer;
+    private final PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    void reloadIndexes() {
+        popularityIndex.rebuild();
+        searchIndex.rebuild();
+        suggestIndex.rebuild();
+        recommendationIndex.rebuild();
+    }
 
     @Test
     @DisplayName("Создание фильма")
@@ -54,6 +89,28 @@ class FilmStorageTests {
         filmStorage.createFilm(createFilm());
         List<Film> films = filmStorage.getFilms();
         assertEquals(2, films.size(), "Ошибка получения списка");
+        assertSame(films.get(0).getMpa(), films.get(1).getMpa(), "MPA должен браться из справочника");
+        assertEquals("PG", films.get(0).getMpa().getName(), "Ошибка получения MPA");
+        assertSame(referenceData.getGenre(1), films.get(0).getGenres().stream()
+                .filter(genre -> genre.getId() == 1).findFirst().orElseThrow(), "Жанр должен браться из справочника");
+    }
+
+    @Test
+    @DisplayName("Постраничное получение и потоковая выгрузка фильмов")
+    void getFilmsPageTest() {
+        for (int i = 0; i < 5; i++) {
+            filmStorage.createFilm(createFilm());
+        }
+        List<Film> page = filmStorage.getFilms(0, 2);
+        assertEquals(List.of(1L, 2L), List.of(page.get(0).getId(), page.get(1).getId()), "Ошибка первой страницы");
+        page = filmStorage.getFilms(4, 2);
+        assertEquals(1, page.size(), "Ошибка последней страницы");
+        assertEquals(5, page.get(0).getId(), "Ошибка последней страницы");
+        assertEquals(2, page.get(0).getGenres().size(), "Ошибка загрузки жанров");
+        List<Film> streamed = new ArrayList<>();
+        filmStorage.streamFilms(streamed::add);
+        assertEquals(5, streamed.size(), "Ошибка потоковой выгрузки");
+        assertEquals(2, streamed.get(4).getGenres().size(), "Ошибка загрузки жанров");
     }
 
     @Test
@@ -66,6 +123,42 @@ class FilmStorageTests {
         assertEquals("test", result.getName(), "Ошибка обновления");
     }
 
+    @Test
+    @DisplayName("Запись фильма: пакетные связи, изменение по разнице, ответ без повторного чтения")
+    void writeFilmTest() {
+        Director director = directorStorage.createDirector(new Director(0, "James Cameron"));
+        Director other = directorStorage.createDirector(new Director(0, "Ridley Scott"));
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmStorage countedStorage = createDbStorage(new JdbcTemplate(counter.getDataSource()));
+        Film film = createFilm();
+        film.setDirectors(new HashSet<>(List.of(new Director(director.getId(), null))));
+        Film created = countedStorage.createFilm(film);
+        assertEquals(4, counter.getCount(), "Фильм, рейтинг и два пакета связей");
+        assertFilmEquals(filmStorage.getFilm(created.getId()), created);
+
+        User user = userStorage.createUser(createUser());
+        filmStorage.setLikeToFilm(created.getId(), user.getId(), 7);
+        Film changed = filmStorage.getFilm(created.getId());
+        changed.setName("Titanic");
+        changed.setGenres(new HashSet<>(List.of(new Genre(2, null), new Genre(3, null))));
+        changed.setDirectors(new HashSet<>(List.of(new Director(other.getId(), null))));
+        counter.reset();
+        Film updated = countedStorage.updateFilm(changed);
+        assertEquals(6, counter.getCount(), "Изменение фильма, чтение связей и четыре пакета");
+        assertFilmEquals(filmStorage.getFilm(created.getId()), updated);
+        assertEquals("Ridley Scott", updated.getDirectors().iterator().next().getName(), "Ошибка имени режиссёра");
+        assertEquals(7, updated.getRating(), "Ошибка рейтинга");
+
+        counter.reset();
+        countedStorage.updateFilm(updated);
+        assertEquals(2, counter.getCount(), "Без изменений связей пишется только фильм");
+
+        updated.setName("Alien");
+        updated.setGenres(new HashSet<>(List.of(new Genre(100, null))));
+        assertThrows(RuntimeException.class, () -> filmStorage.updateFilm(updated));
+        assertEquals("Titanic", filmStorage.getFilm(created.getId()).getName(), "Изменение должно откатиться");
+    }
+
     @Test
     @DisplayName("Проверка существования")
     void isExistsTest() {
@@ -97,6 +190,82 @@ class FilmStorageTests {
         assertEquals(0, result.getRating(), "Ошибка удаления лайка");
     }
 
+    @Test
+    @DisplayName("Индексы меняются только после фиксации оценки")
+    void likeRollbackTest() {
+        User user = userStorage.createUser(createUser());
+        Film film = filmStorage.createFilm(createFilm());
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            filmStorage.setLikeToFilm(film.getId(), user.getId(), 8);
+            assertEquals(0, popularityIndex.getMarksCount(film.getId()), "Незафиксированная оценка видна в индексе");
+            status.setRollbackOnly();
+        });
+        assertEquals(0, popularityIndex.getMarksCount(film.getId()), "Откаченная оценка осталась в индексе");
+        assertNull(recommendationIndex.getMark(user.getId(), film.getId()), "Откаченная оценка осталась в матрице");
+
+        filmStorage.setLikeToFilm(film.getId(), user.getId(), 8);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            filmStorage.deleteLikeFromFilm(film.getId(), user.getId());
+            status.setRollbackOnly();
+        });
+        assertEquals(1, popularityIndex.getMarksCount(film.getId()), "Откаченное удаление оценки в индексе");
+        assertEquals(8, recommendationIndex.getMark(user.getId(), film.getId()), "Откаченное удаление в матрице");
+    }
+
+    @Test
+    @DisplayName("Отложенная запись оценок")
+    void likeWriteBufferTest() throws InterruptedException {
+        Film first = filmStorage.createFilm(createFilm());
+        Film second = filmStorage.createFilm(createFilm());
+        User user = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        LikeWriteBuffer buffer = new LikeWriteBuffer(jdbcTemplate, transactionManager, popularityIndex,
+                recommendationIndex, LikeWriteBuffer.Mode.WRITE_BEHIND, 100, 100);
+        DBFilmStorage bufferedStorage = new DBFilmStorage(jdbcTemplate, popularityIndex, searchIndex, suggestIndex,
+                recommendationIndex, referenceData, buffer);
+
+        buffer.setMark(first.getId(), user.getId(), 8.0);
+        buffer.setMark(first.getId(), user.getId(), 6.0);
+        buffer.setMark(second.getId(), user.getId(), 9.0);
+        buffer.setMark(second.getId(), user.getId(), null);
+        buffer.setMark(first.getId(), other.getId(), 4.0);
+        assertEquals(2, buffer.getPendingCount(), "Повторные оценки должны схлопываться");
+        assertEquals(0, countLikes(), "До сброса оценки не должны попадать в БД");
+        assertEquals(5, bufferedStorage.getFilm(first.getId()).getRating(), "Чтение должно видеть буфер");
+        assertEquals(List.of(first.getId()), toIds(bufferedStorage.getPopularFilms(1, 0, 0)),
+                "Популярные должны учитывать буфер");
+
+        buffer.flush();
+        assertEquals(0, buffer.getPendingCount(), "Ошибка сброса буфера");
+        assertEquals(2, countLikes(), "Ошибка записи оценок");
+        assertEquals(5, filmStorage.getFilm(first.getId()).getRating(), "Ошибка записи рейтинга");
+
+        buffer.setMark(first.getId(), other.getId(), null);
+        buffer.flush();
+        assertEquals(6, filmStorage.getFilm(first.getId()).getRating(), "Ошибка удаления оценки");
+        popularityIndex.rebuild();
+        recommendationIndex.rebuild();
+        assertEquals(6, popularityIndex.getRating(first.getId()), "Индекс расходится с БД");
+        assertEquals(6.0, recommendationIndex.getMark(user.getId(), first.getId()), "Индекс расходится с БД");
+        assertNull(recommendationIndex.getMark(other.getId(), first.getId()), "Индекс расходится с БД");
+
+        LikeWriteBuffer groupCommit = new LikeWriteBuffer(jdbcTemplate, transactionManager, popularityIndex,
+                recommendationIndex, LikeWriteBuffer.Mode.GROUP_COMMIT, 100, 10);
+        groupCommit.start();
+        try {
+            groupCommit.setMark(second.getId(), other.getId(), 7.0);
+            assertEquals(2, countLikes(), "При групповой записи оценка должна быть в БД после вызова");
+
+            long missingFilmId = second.getId() + 100;
+            assertThrows(SQLWorkException.class, () -> groupCommit.setMark(missingFilmId, other.getId(), 7.0),
+                    "Незаписанная оценка не должна считаться записанной");
+            assertNull(recommendationIndex.getMark(other.getId(), missingFilmId),
+                    "Незаписанная оценка должна уйти из индексов");
+        } finally {
+            groupCommit.stop();
+        }
+    }
+
     @Test
     @DisplayName("Популярные")
     void getPopularFilmsTest() {
@@ -149,6 +318,396 @@ class FilmStorageTests {
         List<Film> result = filmStorage.getCommonFilms(user1.getId(), user2.getId());
         assertEquals(1, result.size());
         assertEquals(2, result.get(0).getId());
+        assertEquals(2, result.get(0).getRating(), "В общих фильмах рейтинг - число оценок");
+    }
+
+    @Test
+    @DisplayName("Агрегат рейтинга при перезаписи оценки и удалении пользователя")
+    void ratingAggregateTest() {
+        Film film = filmStorage.createFilm(createFilm());
+        User user1 = userStorage.createUser(createUser());
+        User user2 = userStorage.createUser(createUser());
+        filmStorage.setLikeToFilm(film.getId(), user1.getId(), 10);
+        filmStorage.setLikeToFilm(film.getId(), user1.getId(), 4);
+        assertEquals(4, filmStorage.getFilm(film.getId()).getRating(), "Ошибка перезаписи оценки");
+        filmStorage.setLikeToFilm(film.getId(), user2.getId(), 8);
+        assertEquals(6, filmStorage.getFilm(film.getId()).getRating(), "Ошибка расчета рейтинга");
+        filmStorage.deleteLikeFromFilm(film.getId(), user2.getId());
+        filmStorage.deleteLikeFromFilm(film.getId(), user2.getId());
+        assertEquals(4, filmStorage.getFilm(film.getId()).getRating(), "Ошибка удаления оценки");
+        userStorage.deleteUser(user1.getId());
+        assertEquals(0, filmStorage.getFilm(film.getId()).getRating(), "Ошибка удаления пользователя");
+        assertEquals(0, filmStorage.getPopularFilms(10, 0, 0).get(0).getRating());
+    }
+
+    @Test
+    @DisplayName("Количество запросов списка фильмов не зависит от его размера")
+    void getFilmsQueryCountTest() {
+        StatementCounter counter = new StatementCounter(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(counter.getDataSource());
+        FilmStorage countedStorage = createDbStorage(jdbcTemplate);
+        filmStorage.createFilm(createFilm());
+        filmStorage.createFilm(createFilm());
+        assertEquals(2, countedStorage.getFilms().size());
+        int smallCount = counter.getCount();
+        for (int i = 0; i < 10; i++) {
+            filmStorage.createFilm(createFilm());
+        }
+        counter.reset();
+        List<Film> films = countedStorage.getFilms();
+        assertEquals(12, films.size());
+        assertEquals(smallCount, counter.getCount(), "Количество запросов выросло вместе со списком");
+        assertEquals(2, films.get(11).getGenres().size(), "Ошибка загрузки жанров");
+    }
+
+    @Test
+    @DisplayName("Фильмы режиссёра: сортировка, постраничный вывод и число запросов")
+    void getDirectorsFilmsTest() {
+        Director director = directorStorage.createDirector(new Director(0, "James Cameron"));
+        Director other = directorStorage.createDirector(new Director(0, "Ridley Scott"));
+        User user = userStorage.createUser(createUser());
+        String[] dates = {"1997-12-19", "1984-10-26", "2009-12-18", "1991-07-03"};
+        int[] marks = {9, 6, 7, 10};
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < dates.length; i++) {
+            Film film = createFilm();
+            film.setReleaseDate(LocalDate.parse(dates[i]));
+            film.setDirectors(new HashSet<>(List.of(director)));
+            films.add(filmStorage.createFilm(film));
+            filmStorage.setLikeToFilm(film.getId(), user.getId(), marks[i]);
+        }
+        Film alien = createFilm();
+        alien.setDirectors(new HashSet<>(List.of(other)));
+        filmStorage.createFilm(alien);
+
+        StatementCounter counter = new StatementCounter(dataSource);
+        FilmStorage countedStorage = createDbStorage(new JdbcTemplate(counter.getDataSource()));
+        List<Film> byYear = countedStorage.getDirectorsFilms(director.getId(), Set.of("year"), 0, null);
+        assertEquals(List.of(films.get(1).getId(), films.get(3).getId(), films.get(0).getId(), films.get(2).getId()),
+                toIds(byYear), "Ошибка сортировки по году");
+        assertEquals(3, counter.getCount(), "Фильмы режиссёра должны загружаться тремя запросами");
+        assertEquals(1, byYear.get(0).getDirectors().size(), "Ошибка загрузки режиссёров");
+
+        List<Film> byLikes = filmStorage.getDirectorsFilms(director.getId(), Set.of("likes"), 0, null);
+        assertEquals(List.of(films.get(1).getId(), films.get(2).getId(), films.get(0).getId(), films.get(3).getId()),
+                toIds(byLikes), "Ошибка сортировки по оценкам");
+
+        List<Film> page = filmStorage.getDirectorsFilms(director.getId(), Set.of("year"), 1, 2);
+        assertEquals(List.of(films.get(3).getId(), films.get(0).getId()), toIds(page), "Ошибка постраничного вывода");
+        assertTrue(filmStorage.getDirectorsFilms(director.getId(), Set.of("year"), 4, 2).isEmpty(),
+                "Ошибка постраничного вывода");
+    }
+
+    @Test
+    @DisplayName("Фильм загружается одним запросом")
+    void getFilmSingleQueryTest() {
+        StatementCounter counter = new StatementCounter(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(counter.getDataSource());
+        FilmStorage countedStorage = createDbStorage(jdbcTemplate);
+        Film created = filmStorage.createFilm(createFilm());
+        User user = userStorage.createUser(createUser());
+        filmStorage.setLikeToFilm(created.getId(), user.getId(), 6);
+        Film film = countedStorage.getFilm(created.getId());
+        assertEquals(1, counter.getCount(), "Фильм должен загружаться одним запросом");
+        assertEquals(2, film.getGenres().size(), "Ошибка загрузки жанров");
+        assertEquals("PG", film.getMpa().getName(), "Ошибка загрузки MPA");
+        assertEquals(6, film.getRating(), "Ошибка загрузки рейтинга");
+        assertNull(countedStorage.getFilm(100), "Несуществующий фильм");
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"popular", "search", "recommendations", "common"})
+    @DisplayName("Индексы в памяти совпадают с расчётом в БД")
+    void indexMatchesDbTest(String query) {
+        List<User> users = fillRandomCatalog(new Random(42));
+        ReferenceQueries reference = new ReferenceQueries(jdbcTemplate);
+        assertMatchesDb(query, reference, users);
+        // Индексы, загруженные из БД заново, совпадают с обновлёнными по ходу изменений
+        reloadIndexes();
+        assertMatchesDb(query, reference, users);
+    }
+
+    @Test
+    @DisplayName("Подсказки по началу слов в названиях и именах режиссёров")
+    void suggestTest() {
+        Director director = directorStorage.createDirector(new Director(0, "Mamoru Oshii"));
+        Film matrix = createFilm();
+        matrix.setName("The Matrix");
+        matrix = filmStorage.createFilm(matrix);
+        Film reloaded = createFilm();
+        reloaded.setName("Matrix Reloaded");
+        reloaded.setDirectors(new HashSet<>(List.of(director)));
+        reloaded = filmStorage.createFilm(reloaded);
+        Film terminator = createFilm();
+        terminator.setName("Terminator");
+        filmStorage.createFilm(terminator);
+        User first = userStorage.createUser(createUser());
+        User second = userStorage.createUser(createUser());
+        filmStorage.setLikeToFilm(matrix.getId(), first.getId(), 8);
+        filmStorage.setLikeToFilm(matrix.getId(), second.getId(), 6);
+        filmStorage.setLikeToFilm(reloaded.getId(), first.getId(), 9);
+
+        List<Suggestion> suggestions = suggestIndex.suggest("MA", 10);
+        assertEquals(3, suggestions.size(), "Ошибка отбора подсказок");
+        assertEquals(matrix.getId(), suggestions.get(0).getId(), "Ошибка ранжирования по числу оценок");
+        assertEquals(reloaded.getId(), suggestions.get(1).getId(), "При равенстве оценок фильм идёт раньше режиссёра");
+        assertEquals("Mamoru Oshii", suggestions.get(2).getName(), "Ошибка подсказки по режиссёру");
+        assertEquals(1, suggestIndex.suggest("ma", 1).size(), "Ошибка ограничения количества");
+        assertEquals(1, suggestIndex.suggest("reloa", 10).size(), "Ошибка поиска по началу слова");
+        assertTrue(suggestIndex.suggest("atrix", 10).isEmpty(), "Подсказка не по началу слова");
+        assertTrue(suggestIndex.suggest(" ", 10).isEmpty(), "Пустой префикс");
+
+        matrix.setName("Матрица");
+        filmStorage.updateFilm(matrix);
+        suggestIndex.removeDirector(director.getId());
+        List<Suggestion> updated = suggestIndex.suggest("ma", 10);
+        assertEquals(1, updated.size(), "Ошибка обновления индекса");
+        assertEquals(reloaded.getId(), updated.get(0).getId(), "Ошибка обновления индекса");
+        assertEquals(1, suggestIndex.suggest("мат", 10).size(), "Ошибка обновления индекса");
+
+        Film madMax = createFilm();
+        madMax.setName("Mad Max");
+        madMax = filmStorage.createFilm(madMax);
+        assertEquals(List.of(reloaded.getId(), madMax.getId()), toSuggestionIds(suggestIndex.suggest("ma", 10)),
+                "Фильм с двумя подходящими словами должен попасть в подсказки один раз");
+    }
+
+    @Test
+    @DisplayName("Рекомендации берутся только у пользователей с наибольшим пересечением")
+    void recommendationsTest() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            users.add(userStorage.createUser(createUser()));
+        }
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            films.add(filmStorage.createFilm(createFilm()));
+        }
+        filmStorage.setLikeToFilm(films.get(0).getId(), users.get(0).getId(), 8);
+        filmStorage.setLikeToFilm(films.get(1).getId(), users.get(0).getId(), 8);
+        filmStorage.setLikeToFilm(films.get(0).getId(), users.get(1).getId(), 9);
+        filmStorage.setLikeToFilm(films.get(1).getId(), users.get(1).getId(), 9);
+        filmStorage.setLikeToFilm(films.get(2).getId(), users.get(1).getId(), 7);
+        filmStorage.setLikeToFilm(films.get(0).getId(), users.get(2).getId(), 9);
+        filmStorage.setLikeToFilm(films.get(3).getId(), users.get(2).getId(), 10);
+
+        List<Film> recommendations = filmStorage.getRecommendationsByUserId(users.get(0).getId());
+        assertEquals(1, recommendations.size(), "Ошибка выбора похожих пользователей");
+        assertEquals(films.get(2).getId(), recommendations.get(0).getId(), "Ошибка рекомендации");
+
+        filmStorage.deleteLikeFromFilm(films.get(1).getId(), users.get(1).getId());
+        List<Long> ids = new ArrayList<>();
+        for (Film film : filmStorage.getRecommendationsByUserId(users.get(0).getId())) {
+            ids.add(film.getId());
+        }
+        assertEquals(List.of(films.get(3).getId(), films.get(2).getId()), ids, "Ошибка обновления матрицы оценок");
+    }
+
+    @Test
+    @DisplayName("Готовые списки рекомендаций устаревают после оценок похожих пользователей")
+    void recommendationCacheTest() throws InterruptedException {
+        User user = userStorage.createUser(createUser());
+        User similar = userStorage.createUser(createUser());
+        User other = userStorage.createUser(createUser());
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            films.add(filmStorage.createFilm(createFilm()));
+        }
+        filmStorage.setLikeToFilm(films.get(0).getId(), user.getId(), 8);
+        filmStorage.setLikeToFilm(films.get(0).getId(), similar.getId(), 8);
+        filmStorage.setLikeToFilm(films.get(2).getId(), other.getId(), 8);
+
+        RecommendationCache lazy = new RecommendationCache(recommendationIndex, Long.MAX_VALUE, 100);
+        RecommendationCache strict = new RecommendationCache(recommendationIndex, 0, 100);
+        assertTrue(lazy.get(user.getId()).isEmpty(), "Ошибка расчёта рекомендаций");
+        assertTrue(strict.get(user.getId()).isEmpty(), "Ошибка расчёта рекомендаций");
+
+        filmStorage.setLikeToFilm(films.get(1).getId(), similar.getId(), 9);
+        lazy.invalidate(similar.getId(), films.get(1).getId());
+        strict.invalidate(similar.getId(), films.get(1).getId());
+        assertTrue(lazy.get(user.getId()).isEmpty(), "Устаревший список должен отдаваться в пределах срока");
+        assertEquals(List.of(films.get(1).getId()), strict.get(user.getId()), "Ошибка пересчёта при запросе");
+
+        lazy.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lazy.get(user.getId()).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of(films.get(1).getId()), lazy.get(user.getId()), "Ошибка фонового пересчёта");
+        } finally {
+            lazy.stop();
+        }
+
+        filmStorage.setLikeToFilm(films.get(2).getId(), other.getId(), 2);
+        strict.invalidate(other.getId(), films.get(2).getId());
+        assertEquals(List.of(films.get(1).getId()), strict.get(user.getId()), "Лишняя пометка устаревания");
+
+        RecommendationCache small = new RecommendationCache(recommendationIndex, Long.MAX_VALUE, 1);
+        small.get(user.getId());
+        small.get(similar.getId());
+        assertEquals(1, small.size(), "Ошибка вытеснения из кэша рекомендаций");
+        assertEquals(List.of(films.get(1).getId()), small.get(user.getId()), "Ошибка расчёта после вытеснения");
+    }
+
+    @Test
+    @DisplayName("Удаление пользователя обновляет рекомендации его соседей")
+    void recommendationCacheUserRemovalTest() {
+        User user = userStorage.createUser(createUser());
+        User similar = userStorage.createUser(createUser());
+        Film common = filmStorage.createFilm(createFilm());
+        Film recommended = filmStorage.createFilm(createFilm());
+        filmStorage.setLikeToFilm(common.getId(), user.getId(), 8);
+        filmStorage.setLikeToFilm(common.getId(), similar.getId(), 8);
+        filmStorage.setLikeToFilm(recommended.getId(), similar.getId(), 9);
+        RecommendationCache strict = new RecommendationCache(recommendationIndex, 0, 100);
+        assertEquals(List.of(recommended.getId()), strict.get(user.getId()), "Ошибка расчёта рекомендаций");
+
+        Set<Long> neighbours = strict.getNeighbours(similar.getId());
+        userStorage.deleteUser(similar.getId());
+        strict.remove(similar.getId(), neighbours);
+        assertTrue(strict.get(user.getId()).isEmpty(), "Рекомендации по оценкам удалённого пользователя");
+    }
+
+    private int countLikes() {
+        return Objects.requireNonNull(jdbcTemplate.queryForObject("select count(*) from FILMS_LIKES", Integer.class));
+    }
+
+    private List<Long> toIds(List<Film> films) {
+        List<Long> ids = new ArrayList<>();
+        for (Film film : films) {
+            ids.add(film.getId());
+        }
+        return ids;
+    }
+
+    private List<Long> toSuggestionIds(List<Suggestion> suggestions) {
+        List<Long> ids = new ArrayList<>();
+        for (Suggestion suggestion : suggestions) {
+            ids.add(suggestion.getId());
+        }
+        return ids;
+    }
+
+    private void assertFilmEquals(Film expected, Film actual) {
+        assertEquals(expected.getId(), actual.getId(), "Ошибка ID фильма");
+        assertEquals(expected.getName(), actual.getName(), "Ошибка названия");
+        assertEquals(expected.getReleaseDate(), actual.getReleaseDate(), "Ошибка даты релиза");
+        assertEquals(expected.getMpa().getName(), actual.getMpa().getName(), "Ошибка MPA");
+        assertEquals(expected.getGenres(), actual.getGenres(), "Ошибка жанров");
+        Map<Long, String> expectedDirectors = new HashMap<>();
+        expected.getDirectors().forEach(director -> expectedDirectors.put(director.getId(), director.getName()));
+        Map<Long, String> actualDirectors = new HashMap<>();
+        actual.getDirectors().forEach(director -> actualDirectors.put(director.getId(), director.getName()));
+        assertEquals(expectedDirectors, actualDirectors, "Ошибка режиссёров");
+        assertEquals(expected.getRating(), actual.getRating(), "Ошибка рейтинга");
+    }
+
+    private DBFilmStorage createDbStorage(JdbcTemplate jdbcTemplate) {
+        return new DBFilmStorage(jdbcTemplate, popularityIndex, searchIndex, suggestIndex, recommendationIndex,
+                referenceData, likeBuffer);
+    }
+
+    // Фильмы со случайными названиями, годами, жанрами и режиссёрами, случайные оценки и их удаление,
+    // затем правка и удаление фильма, удаление пользователя, переименование и удаление режиссёра.
+    // Возвращает оставшихся пользователей
+    private List<User> fillRandomCatalog(Random random) {
+        String[] words = {"Robot", "Man", "Бегущий", "по", "лезвию", "Matrix", "Терминатор", "Alien", "Солярис",
+                "T_X", "100%"};
+        int[] years = {1999, 2005, 2020};
+        List<Director> directors = new ArrayList<>();
+        for (String name : new String[]{"James Cameron", "Ridley Scott", "Андрей Тарковский", "Wachowski"}) {
+            directors.add(directorStorage.createDirector(new Director(0, name)));
+        }
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            users.add(userStorage.createUser(createUser()));
+        }
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Film film = createFilm();
+            film.setName(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]);
+            film.setReleaseDate(LocalDate.of(years[random.nextInt(years.length)], 1, 1));
+            Set<Genre> genres = new HashSet<>();
+            for (int g = 1; g <= 6; g++) {
+                if (random.nextInt(3) == 0) {
+                    genres.add(new Genre(g, null));
+                }
+            }
+            film.setGenres(genres);
+            Set<Director> filmDirectors = new HashSet<>();
+            if (random.nextBoolean()) {
+                filmDirectors.add(directors.get(random.nextInt(directors.size())));
+            }
+            film.setDirectors(filmDirectors);
+            films.add(filmStorage.createFilm(film));
+        }
+        for (User user : users) {
+            for (Film film : films) {
+                if (random.nextInt(3) == 0) {
+                    filmStorage.setLikeToFilm(film.getId(), user.getId(), 1 + random.nextInt(10));
+                }
+            }
+        }
+        for (int i = 0; i < 30; i++) {
+            long filmId = films.get(random.nextInt(films.size())).getId();
+            filmStorage.deleteLikeFromFilm(filmId, users.get(random.nextInt(users.size())).getId());
+        }
+        Film updated = films.get(0);
+        updated.setName("Обновлённый Robot");
+        updated.setGenres(new HashSet<>(List.of(new Genre(3, null))));
+        updated.setReleaseDate(LocalDate.of(2005, 5, 5));
+        updated.setDirectors(new HashSet<>(List.of(directors.get(1))));
+        filmStorage.updateFilm(updated);
+        filmStorage.deleteFilm(films.get(1).getId());
+        userStorage.deleteUser(users.get(0).getId());
+        Director renamed = directors.get(2);
+        renamed.setName("Тарковский А.");
+        directorStorage.updateDirector(renamed);
+        directorStorage.deleteDirector(directors.get(3).getId());
+        return users.subList(1, users.size());
+    }
+
+    private void assertMatchesDb(String query, ReferenceQueries reference, List<User> users) {
+        switch (query) {
+            case "popular":
+                for (int genreId = 0; genreId <= 6; genreId++) {
+                    for (int year : new int[]{0, 1999, 2005, 2020}) {
+                        for (int count : new int[]{1, 5, 50}) {
+                            assertEquals(reference.getPopularFilms(count, genreId, year),
+                                    toIds(filmStorage.getPopularFilms(count, genreId, year)),
+                                    "Расхождение для genreId=" + genreId + ", year=" + year + ", count=" + count);
+                        }
+                    }
+                }
+                break;
+            case "search":
+                String[] queries = {"", "r", "ro", "robot", "MAN", "бег", "по", "ЛЕЗВИЮ", "cam", "ТАРКОВ", "wach",
+                        "zzz", "r_b", "ma%ix", "%", "_", "ро%о", "ca_er%n", "t\\_x", "t_x", "100\\%"};
+                for (String by : new String[]{"title", "director", "title,director", "director,title", ""}) {
+                    for (String text : queries) {
+                        assertEquals(reference.getFilmsBySearch(text, by),
+                                toIds(filmStorage.getFilmsBySearch(text, by)),
+                                "Расхождение для query=" + text + ", by=" + by);
+                    }
+                }
+                break;
+            case "recommendations":
+                for (User user : users) {
+                    assertEquals(reference.getRecommendations(user.getId()),
+                            toIds(filmStorage.getRecommendationsByUserId(user.getId())),
+                            "Расхождение для пользователя " + user.getId());
+                }
+                break;
+            default:
+                for (User user : users) {
+                    for (User friend : users) {
+                        assertEquals(reference.getCommonFilms(user.getId(), friend.getId()),
+                                toIds(filmStorage.getCommonFilms(user.getId(), friend.getId())),
+                                "Расхождение общих фильмов для " + user.getId() + " и " + friend.getId());
+                    }
+                }
+        }
     }
 
     private Film createFilm() {
@@ -6,13 +6,16 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.storage.genre.GenreStorage;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -20,6 +23,8 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 @DisplayName("Тесты GenreStorage")
 class GenreStorageTests {
     private final GenreStorage genreStorage;
+    private final ReferenceDataRegistry referenceData;
+    private final JdbcTemplate jdbcTemplate;
 
     @Test
     @DisplayName("Получение списка жанров")
@@ -41,4 +46,20 @@ class GenreStorageTests {
         Genre genre = genreStorage.getGenre(10);
         assertNull(genre, "Не верная реакция на жанр");
     }
+
+    @Test
+    @DisplayName("Справочник перечитывается только явно")
+    void reloadTest() {
+        Genre genre = genreStorage.getGenre(3);
+        assertSame(genre, genreStorage.getGenre(3), "Жанр должен быть общим экземпляром");
+        jdbcTemplate.update("update GENRES set NAME=? where GENRE_ID=?", "Анимация", 3);
+        try {
+            assertEquals("Мультфильм", genreStorage.getGenre(3).getName(), "Справочник перечитан без запроса");
+            referenceData.reload();
+            assertEquals("Анимация", genreStorage.getGenre(3).getName(), "Справочник не перечитан");
+        } finally {
+            jdbcTemplate.update("update GENRES set NAME=? where GENRE_ID=?", "Мультфильм", 3);
+            referenceData.reload();
+        }
+    }
 }
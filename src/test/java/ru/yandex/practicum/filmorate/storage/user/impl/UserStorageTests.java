@@ -1,17 +1,36 @@
 package ru.yandex.practicum.filmorate.storage.user.impl;
 
 import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.ReferenceQueries;
+import ru.yandex.practicum.filmorate.storage.StatementCounter;
+import ru.yandex.practicum.filmorate.storage.event.EventStorage;
+import ru.yandex.practicum.filmorate.storage.film.index.PopularityIndex;
+import ru.yandex.practicum.filmorate.storage.film.index.RecommendationIndex;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipGraph;
+import ru.yandex.practicum.filmorate.storage.user.index.FriendshipSnapshot;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,6 +41,19 @@ import static org.junit.jupiter.api.Assertions.*;
 @DisplayName("Тесты UserStorage")
 class UserStorageTests {
     private final UserStorage userStorage;
+    private final DataSource dataSource;
+    private final PopularityIndex popularityIndex;
+    private final RecommendationIndex recommendationIndex;
+    private final FriendshipGraph friendshipGraph;
+    private final UserService userService;
+    private final EventStorage eventStorage;
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    void reloadGraph() {
+        friendshipGraph.rebuild();
+    }
 
     @Test
     @DisplayName("Создание пользователя")
@@ -50,6 +82,58 @@ class UserStorageTests {
         assertEquals(2, users.size(), "Ошибочное количество пользователей");
     }
 
+    @Test
+    @DisplayName("Постраничное получение и потоковая выгрузка пользователей")
+    void getUsersPageTest() {
+        for (int i = 0; i < 3; i++) {
+            userStorage.createUser(createUser());
+        }
+        userStorage.addFriend(1, 2);
+        userStorage.addFriend(1, 3);
+        userStorage.addFriend(3, 1);
+        List<User> page = userStorage.getUsers(0, 2);
+        assertEquals(2, page.size(), "Ошибка размера страницы");
+        assertEquals(Set.of(2L, 3L), page.get(0).getFriends(), "Ошибка списка друзей");
+        assertTrue(page.get(1).getFriends().isEmpty(), "Ошибка списка друзей");
+        page = userStorage.getUsers(2, 2);
+        assertEquals(1, page.size(), "Ошибка последней страницы");
+        assertEquals(Set.of(1L), page.get(0).getFriends(), "Ошибка списка друзей");
+        List<User> streamed = new ArrayList<>();
+        userStorage.streamUsers(streamed::add);
+        assertEquals(3, streamed.size(), "Ошибка потоковой выгрузки");
+        assertEquals(Set.of(2L, 3L), streamed.get(0).getFriends(), "Ошибка списка друзей");
+    }
+
+    @Test
+    @DisplayName("Количество запросов списка пользователей не зависит от его размера")
+    void getUsersQueryCountTest() {
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserStorage countedStorage = new DBUserStorage(new JdbcTemplate(counter.getDataSource()),
+                popularityIndex, recommendationIndex, friendshipGraph);
+        userStorage.createUser(createUser());
+        userStorage.createUser(createUser());
+        userStorage.addFriend(1, 2);
+        assertEquals(2, countedStorage.getUsers().size());
+        assertEquals(1, counter.getCount(), "Пользователи и друзья читаются одним запросом");
+        for (int i = 3; i <= 12; i++) {
+            userStorage.createUser(createUser());
+            userStorage.addFriend(i, 1);
+            userStorage.addFriend(1, i);
+        }
+        counter.reset();
+        List<User> users = countedStorage.getUsers();
+        assertEquals(1, counter.getCount(), "Количество запросов выросло вместе со списком");
+        assertEquals(12, users.size(), "Ошибочное количество пользователей");
+        assertEquals(11, users.get(0).getFriends().size(), "Ошибка списка друзей");
+        assertEquals(Set.of(1L), users.get(11).getFriends(), "Ошибка списка друзей");
+        assertTrue(users.get(1).getFriends().isEmpty(), "Ошибка списка друзей");
+        counter.reset();
+        assertEquals(5, countedStorage.getUsers(0, 5).size(), "Ошибка размера страницы");
+        assertEquals(11, countedStorage.getUser(1).getFriends().size(), "Ошибка списка друзей");
+        assertNull(countedStorage.getUser(100), "Найден несуществующий пользователь");
+        assertEquals(3, counter.getCount(), "Страница и пользователь читаются одним запросом");
+    }
+
     @Test
     @DisplayName("Обновление пользователя")
     void updateUserTest() {
@@ -98,6 +182,35 @@ class UserStorageTests {
         assertEquals(2, friends.get(0).getId(), "Ошибочный ID друга");
     }
 
+    @Test
+    @DisplayName("Друзья с их друзьями, постранично и только id, за постоянное число запросов")
+    void getFriendsListPageTest() {
+        StatementCounter counter = new StatementCounter(dataSource);
+        UserStorage countedStorage = new DBUserStorage(new JdbcTemplate(counter.getDataSource()),
+                popularityIndex, recommendationIndex, friendshipGraph);
+        for (int i = 1; i <= 6; i++) {
+            userStorage.createUser(createUser());
+        }
+        for (int i = 2; i <= 6; i++) {
+            userStorage.addFriend(1, i);
+        }
+        userStorage.addFriend(3, 1);
+        userStorage.addFriend(3, 6);
+        List<User> friends = countedStorage.getFriendsListForUser(1);
+        assertEquals(1, counter.getCount(), "Друзья читаются одним запросом");
+        assertEquals(5, friends.size(), "Не верное количество друзей");
+        assertEquals(Set.of(1L, 6L), friends.get(1).getFriends(), "Ошибка списка друзей друга");
+        counter.reset();
+        List<User> page = countedStorage.getFriendsListForUser(1, 2, 2);
+        assertEquals(1, counter.getCount(), "Страница друзей читается одним запросом");
+        assertEquals(List.of(3L, 4L), List.of(page.get(0).getId(), page.get(1).getId()), "Ошибка страницы");
+        assertEquals(Set.of(1L, 6L), page.get(0).getFriends(), "Ошибка списка друзей друга");
+        assertTrue(countedStorage.getFriendsListForUser(1, 6, 2).isEmpty(), "Ошибка последней страницы");
+        assertEquals(List.of(5L, 6L), countedStorage.getFriendIds(1, 4, 10), "Ошибка списка id друзей");
+        assertEquals(List.of(2L, 3L), countedStorage.getFriendIds(1, 0, 2), "Ошибка страницы id друзей");
+        assertTrue(countedStorage.getFriendIds(2, 0, 10).isEmpty(), "Ошибка списка id друзей");
+    }
+
     @Test
     @DisplayName("Общий друг")
     void getMutualFriendsTest() {
@@ -111,6 +224,131 @@ class UserStorageTests {
         assertEquals(3, friends.get(0).getId(), "Ошибочный ID друга");
     }
 
+    @Test
+    @DisplayName("Все общие друзья из графа дружбы, граф следит за изменениями")
+    void getMutualFriendsGraphTest() {
+        for (int i = 1; i <= 7; i++) {
+            userStorage.createUser(createUser());
+        }
+        for (long friendId : List.of(3L, 4L, 5L, 6L)) {
+            userStorage.addFriend(1, friendId);
+        }
+        for (long friendId : List.of(1L, 4L, 6L, 5L, 7L)) {
+            userStorage.addFriend(2, friendId);
+        }
+        List<User> friends = userStorage.getMutualFriends(1, 2);
+        assertEquals(List.of(4L, 5L, 6L), toIds(friends), "Ошибка списка общих друзей");
+        assertEquals(new ReferenceQueries(jdbcTemplate).getMutualFriends(1, 2), toIds(friends),
+                "Граф расходится с БД");
+        userStorage.deleteFromFriends(2, 5);
+        userStorage.deleteUser(6);
+        assertEquals(List.of(4L), toIds(userStorage.getMutualFriends(1, 2)), "Граф не обновился");
+        assertEquals(List.of(3L, 4L, 5L), friendshipGraph.getFriends(1), "Удалённый пользователь остался в графе");
+        assertEquals(6, friendshipGraph.getEdgesCount(), "Ошибка количества связей после удаления");
+        assertThrows(IllegalArgumentException.class, () -> friendshipGraph.addFriend(1, 1L << 32),
+                "Id вне диапазона int должен отклоняться");
+        friendshipGraph.rebuild();
+        assertEquals(List.of(4L), toIds(userStorage.getMutualFriends(1, 2)), "Ошибка загрузки графа");
+        assertEquals(6, friendshipGraph.getEdgesCount(), "Ошибка количества связей");
+    }
+
+    @Test
+    @DisplayName("Граф дружбы меняется только после фиксации удаления пользователя")
+    void deleteUserRollbackTest() {
+        userStorage.createUser(createUser());
+        userStorage.createUser(createUser());
+        userStorage.addFriend(1, 2);
+        userStorage.addFriend(2, 1);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            userStorage.deleteUser(2);
+            assertEquals(List.of(2L), friendshipGraph.getFriends(1), "Незафиксированное удаление видно в графе");
+            status.setRollbackOnly();
+        });
+        assertEquals(List.of(2L), friendshipGraph.getFriends(1), "Откаченное удаление убрало друга из графа");
+        assertEquals(List.of(1L), friendshipGraph.getFriends(2), "Откаченное удаление убрало друзей из графа");
+        userStorage.deleteUser(2);
+        assertTrue(friendshipGraph.getFriends(1).isEmpty(), "Удалённый пользователь остался в графе");
+    }
+
+    @Test
+    @DisplayName("Рекомендации друзей по числу общих друзей")
+    void getFriendSuggestionsTest() {
+        for (int i = 1; i <= 8; i++) {
+            userStorage.createUser(createUser());
+        }
+        addFriends(1, 2, 3, 4);
+        addFriends(2, 1, 5, 6, 3);
+        addFriends(3, 5, 6, 7);
+        addFriends(4, 5, 8);
+        assertEquals(List.of(5L, 6L, 7L, 8L), toIds(userStorage.getFriendSuggestions(1, 10)),
+                "Ошибка порядка рекомендаций");
+        List<User> suggestions = userStorage.getFriendSuggestions(1, 3);
+        assertEquals(List.of(5L, 6L, 7L), toIds(suggestions), "Ошибка ограничения числа рекомендаций");
+        assertNotNull(suggestions.get(0).getFriends(), "Ошибка списка друзей");
+        userStorage.addFriend(1, 5);
+        assertEquals(List.of(6L, 7L, 8L), toIds(userStorage.getFriendSuggestions(1, 10)),
+                "Друг остался в рекомендациях");
+        assertTrue(userStorage.getFriendSuggestions(8, 10).isEmpty(), "Рекомендации без друзей");
+    }
+
+    @Test
+    @DisplayName("Рекомендации друзей с ограничением ветвления обхода")
+    void suggestFriendsFanOutTest() {
+        FriendshipGraph graph = new FriendshipGraph(new JdbcTemplate(), 2);
+        for (long friendId : List.of(2L, 3L, 4L)) {
+            graph.addFriend(1, friendId);
+        }
+        for (long friendId : List.of(5L, 6L, 7L, 8L)) {
+            graph.addFriend(2, friendId);
+        }
+        graph.addFriend(3, 9);
+        graph.addFriend(4, 5);
+        graph.addFriend(4, 6);
+        // От пользователя берутся друзья 2 и 4, от друга 2 - каждый второй: 5 и 7
+        assertEquals(List.of(5L, 6L, 7L), graph.suggestFriends(1, 10), "Ошибка выборки друзей друзей");
+    }
+
+    @Test
+    @DisplayName("Загрузка графа дружбы из снимка с событиями после него")
+    void friendshipSnapshotTest(@TempDir Path directory) throws IOException {
+        for (int i = 1; i <= 5; i++) {
+            userStorage.createUser(createUser());
+        }
+        userService.addToFriends(1, 2);
+        userService.addToFriends(1, 3);
+        userService.addToFriends(2, 3);
+        // События дружбы пишутся в БД в фоне, чтение ленты дожидается их записи
+        eventStorage.getEventOfUser(1);
+        eventStorage.getEventOfUser(2);
+        Path file = directory.resolve("friendships.csr");
+        new FriendshipSnapshot(jdbcTemplate, friendshipGraph, file.toString(), 0, "db").write();
+        userService.addToFriends(1, 4);
+        userService.deleteFromFriends(1, 2);
+        userService.addToFriends(4, 5);
+        userStorage.deleteUser(3);
+        eventStorage.getEventOfUser(1);
+        eventStorage.getEventOfUser(4);
+        FriendshipGraph graph = new FriendshipGraph(jdbcTemplate, 200);
+        new FriendshipSnapshot(jdbcTemplate, graph, file.toString(), 0, "db").start();
+        assertEquals(List.of(4L), graph.getFriends(1), "Ошибка событий после снимка");
+        assertTrue(graph.getFriends(2).isEmpty(), "Удалённый пользователь остался в графе");
+        assertEquals(List.of(5L), graph.getFriends(4), "Ошибка событий после снимка");
+        assertEquals(2, graph.getEdgesCount(), "Ошибка количества связей");
+        // Потерянные события добавления и удаления не меняют числа связей
+        new FriendshipSnapshot(jdbcTemplate, graph, file.toString(), 0, "db").write();
+        jdbcTemplate.update("delete from FRIENDSHIPS where USER_ONE_ID = 4 and USER_TWO_ID = 5");
+        jdbcTemplate.update("insert into FRIENDSHIPS (USER_ONE_ID, USER_TWO_ID, STATUS) values (5, 4, 0)");
+        graph = new FriendshipGraph(jdbcTemplate, 200);
+        new FriendshipSnapshot(jdbcTemplate, graph, file.toString(), 0, "db").start();
+        assertEquals(List.of(4L), graph.getFriends(5), "Граф не построен из БД при потерянных событиях");
+        assertTrue(graph.getFriends(4).isEmpty(), "Граф не построен из БД при потерянных событиях");
+        Files.write(file, new byte[]{1, 2, 3});
+        graph = new FriendshipGraph(jdbcTemplate, 200);
+        new FriendshipSnapshot(jdbcTemplate, graph, file.toString(), 0, "db").start();
+        assertEquals(List.of(4L), graph.getFriends(1), "Граф не построен из БД при повреждённом снимке");
+        assertEquals(2, graph.getEdgesCount(), "Ошибка количества связей");
+    }
+
     @Test
     @DisplayName("Взаимная дружба")
     void twoFriendsTest() {
@@ -123,6 +361,20 @@ class UserStorageTests {
         assertTrue(user.getFriends().isEmpty(), "Ошибка списка друзей");
     }
 
+    private void addFriends(long id, long... friendIds) {
+        for (long friendId : friendIds) {
+            userStorage.addFriend(id, friendId);
+        }
+    }
+
+    private static List<Long> toIds(List<User> users) {
+        List<Long> ids = new ArrayList<>();
+        for (User user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
+    }
+
     private User createUser() {
         return User.builder()
                 .email("andrew@robot.com")